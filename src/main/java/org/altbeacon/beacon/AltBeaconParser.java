@@ -26,6 +26,8 @@ package org.altbeacon.beacon;
 import android.bluetooth.BluetoothDevice;
 import android.util.Log;
 
+import org.altbeacon.bluetooth.PduCursor;
+
 /**
  * A specific beacon parser designed to parse only AltBeacons from raw BLE packets detected by
  * Android.  By default, this is the only <code>BeaconParser</code> that is used by the library.
@@ -67,4 +69,17 @@ public class AltBeaconParser extends BeaconParser {
         return fromScanData(scanData, rssi, device, new AltBeacon());
     }
 
+    /**
+     * Construct an AltBeacon from a Bluetooth LE packet whose PDUs are exposed by a cursor
+     *
+     * @param advertisement A cursor over the actual packet bytes
+     * @param rssi The measured signal strength of the packet
+     * @param device The Bluetooth device that was detected
+     * @return An instance of an <code>Beacon</code>
+     */
+    @Override
+    public Beacon fromScanData(PduCursor advertisement, int rssi, BluetoothDevice device) {
+        return fromScanData(advertisement, rssi, device, new AltBeacon());
+    }
+
 }
@@ -72,6 +72,12 @@ public class Beacon implements Parcelable, Serializable {
 
     protected static DistanceCalculator sDistanceCalculator = null;
 
+    /**
+     * Cached key used for equality and hashing.  Computed on first use, after the identifiers and
+     * bluetooth address have been set by the parser or builder.
+     */
+    private transient volatile BeaconIdentityKey mIdentityKey;
+
     /**
      * The a list of the multi-part identifiers of the beacon.  Together, these identifiers signify
      * a unique beacon.  The identifiers are ordered by significance for the purpose of grouping
@@ -305,6 +311,13 @@ public class Beacon implements Parcelable, Serializable {
         return mRssi;
     }
 
+    /**
+     * @return the running average rssi, or null if it has not been set
+     */
+    Double getRunningAverageRssiIfSet() {
+        return mRunningAverageRssi;
+    }
+
     /**
      * Sets the most recently measured rssi for use in distance calculations if a running average is
      * not available
@@ -481,17 +494,27 @@ public class Beacon implements Parcelable, Serializable {
      */
     public boolean isMultiFrameBeacon() { return mMultiFrameBeacon; }
 
+    /**
+     * Returns an immutable key that is equal for beacons that are equal.  The key is computed once
+     * and cached, so it is cheap to use for hash lookups on every detection.
+     * @return
+     */
+    public BeaconIdentityKey getIdentityKey() {
+        BeaconIdentityKey identityKey = mIdentityKey;
+        if (identityKey == null || identityKey.isHardwareEqualityEnforced() != sHardwareEqualityEnforced) {
+            identityKey = new BeaconIdentityKey(mIdentifiers, sHardwareEqualityEnforced, mBluetoothAddress);
+            mIdentityKey = identityKey;
+        }
+        return identityKey;
+    }
+
     /**
      * Calculate a hashCode for this beacon
      * @return
      */
     @Override
     public int hashCode() {
-        StringBuilder sb = toStringBuilder();
-        if (sHardwareEqualityEnforced) {
-            sb.append(mBluetoothAddress);
-        }
-        return sb.toString().hashCode();
+        return getIdentityKey().hashCode();
     }
 
     /**
@@ -503,12 +526,7 @@ public class Beacon implements Parcelable, Serializable {
             return false;
         }
         Beacon thatBeacon = (Beacon) that;
-        if (!this.mIdentifiers.equals(thatBeacon.mIdentifiers)) {
-            return false;
-        }
-        return sHardwareEqualityEnforced ?
-                this.getBluetoothAddress().equals(thatBeacon.getBluetoothAddress()) :
-                true;
+        return getIdentityKey().equals(thatBeacon.getIdentityKey());
     }
 
     /**
@@ -653,6 +671,7 @@ public class Beacon implements Parcelable, Serializable {
                     }
                 }
             }
+            mBeacon.mIdentityKey = null;
             return mBeacon;
         }
 
@@ -0,0 +1,523 @@
+package org.altbeacon.beacon;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat binary encoding of beacons and regions, used to pass ranging and monitoring data between
+ * the BeaconService and the client in a single byte array instead of with Java serialization.
+ *
+ * Strings (bluetooth addresses, names, parser identifiers and region ids) and identifiers are each
+ * stored once in a table at the start of the batch and referenced by index, so a batch of beacons
+ * sharing a UUID or seen in several lists costs little more than their numeric fields.
+ *
+ * Only <code>Beacon</code>, <code>AltBeacon</code> and <code>Region</code> instances can be encoded.
+ * Callers should check <code>canEncode</code> and fall back to serialization for subclasses.
+ * <code>BeaconParser</code> and <code>AltBeaconParser</code> instances are stored as their layout
+ * strings and settings, for saving the scan state.
+ *
+ * @hide
+ */
+public final class BeaconBatchCodec {
+    private static final int VERSION = 1;
+    private static final int NULL_REF = -1;
+    private static final byte TYPE_BEACON = 0;
+    private static final byte TYPE_ALT_BEACON = 1;
+    private static final byte TYPE_BEACON_PARSER = 0;
+    private static final byte TYPE_ALT_BEACON_PARSER = 1;
+    private static final byte PDU_OVERFLOW_UNSET = 0;
+    private static final byte PDU_OVERFLOW_ALLOWED = 1;
+    private static final byte PDU_OVERFLOW_REJECTED = 2;
+    private static final int FLAG_MULTI_FRAME = 1;
+    private static final int FLAG_DISTANCE = 1 << 1;
+    private static final int FLAG_RUNNING_AVERAGE_RSSI = 1 << 2;
+
+    private BeaconBatchCodec() {
+    }
+
+    /**
+     * @return true if the beacons can be written by a <code>Writer</code> without losing data
+     */
+    public static boolean canEncode(@NonNull Collection<Beacon> beacons) {
+        for (Beacon beacon : beacons) {
+            if (beacon == null) {
+                return false;
+            }
+            if (beacon.getClass() != Beacon.class && beacon.getClass() != AltBeacon.class) {
+                return false;
+            }
+            if (beacon.mIdentifiers == null || beacon.mDataFields == null || beacon.mExtraDataFields == null
+                    || beacon.mDataFields.contains(null) || beacon.mExtraDataFields.contains(null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the region can be written by a <code>Writer</code> without losing data
+     */
+    public static boolean canEncode(@Nullable Region region) {
+        return region == null || region.getClass() == Region.class;
+    }
+
+    /**
+     * @return true if the parsers and their extra data parsers can be written by a
+     * <code>Writer</code> without losing data
+     */
+    public static boolean canEncodeParsers(@NonNull Collection<BeaconParser> parsers) {
+        for (BeaconParser parser : parsers) {
+            if (parser == null) {
+                return false;
+            }
+            if (parser.getClass() != BeaconParser.class && parser.getClass() != AltBeaconParser.class) {
+                return false;
+            }
+            if (parser.mHardwareAssistManufacturers == null || !canEncodeParsers(parser.extraParsers)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the encoding of a single region
+     */
+    @NonNull
+    public static byte[] encodeRegion(@Nullable Region region) throws IOException {
+        Writer writer = new Writer();
+        writer.writeRegion(region);
+        return writer.toByteArray();
+    }
+
+    @Nullable
+    public static Region decodeRegion(@NonNull byte[] bytes) throws IOException {
+        return new Reader(bytes).readRegion();
+    }
+
+    /**
+     * Copies beacons that <code>canEncode</code> accepts without encoding them, so they can be handed
+     * to another thread while the originals keep being updated.
+     *
+     * @return the copies, or null if the beacons are null
+     */
+    @Nullable
+    public static List<Beacon> copyBeacons(@Nullable Collection<Beacon> beacons) {
+        if (beacons == null) {
+            return null;
+        }
+        List<Beacon> copies = new ArrayList<>(beacons.size());
+        for (Beacon beacon : beacons) {
+            Beacon copy = beacon.getClass() == AltBeacon.class ? new AltBeacon() : new Beacon();
+            copy.mIdentifiers = new ArrayList<>(beacon.mIdentifiers);
+            copy.mDataFields = new ArrayList<>(beacon.mDataFields);
+            copy.mExtraDataFields = new ArrayList<>(beacon.mExtraDataFields);
+            copy.mRssi = beacon.mRssi;
+            copy.mTxPower = beacon.mTxPower;
+            copy.mBeaconTypeCode = beacon.mBeaconTypeCode;
+            copy.mManufacturer = beacon.mManufacturer;
+            copy.mServiceUuid = beacon.mServiceUuid;
+            copy.mMultiFrameBeacon = beacon.mMultiFrameBeacon;
+            copy.mBluetoothAddress = beacon.mBluetoothAddress;
+            copy.mBluetoothName = beacon.mBluetoothName;
+            copy.mParserIdentifier = beacon.mParserIdentifier;
+            // Read once, as the original may be updated concurrently
+            Double distance = beacon.mDistance;
+            Double runningAverageRssi = beacon.getRunningAverageRssiIfSet();
+            if (runningAverageRssi != null) {
+                copy.setRunningAverageRssi(runningAverageRssi);
+            }
+            copy.mDistance = distance;
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Writes beacons and regions in the order they are to be read.
+     */
+    public static final class Writer {
+        private final ByteArrayOutputStream mBody = new ByteArrayOutputStream(256);
+        private final DataOutputStream mOut = new DataOutputStream(mBody);
+        private final Map<String, Integer> mStringRefs = new HashMap<>();
+        private final List<String> mStrings = new ArrayList<>();
+        private final Map<Identifier, Integer> mIdentifierRefs = new HashMap<>();
+        private final List<byte[]> mIdentifierBytes = new ArrayList<>();
+
+        public void writeBoolean(boolean value) throws IOException {
+            mOut.writeBoolean(value);
+        }
+
+        public void writeInt(int value) throws IOException {
+            mOut.writeInt(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            mOut.writeLong(value);
+        }
+
+        public void writeDouble(double value) throws IOException {
+            mOut.writeDouble(value);
+        }
+
+        public void writeRegion(@Nullable Region region) throws IOException {
+            mOut.writeBoolean(region != null);
+            if (region == null) {
+                return;
+            }
+            mOut.writeInt(stringRef(region.mUniqueId));
+            mOut.writeInt(stringRef(region.mBluetoothAddress));
+            writeIdentifiers(region.mIdentifiers);
+        }
+
+        /**
+         * Writes the beacons, or a marker for a null collection
+         */
+        public void writeBeacons(@Nullable Collection<Beacon> beacons) throws IOException {
+            if (beacons == null) {
+                mOut.writeInt(NULL_REF);
+                return;
+            }
+            mOut.writeInt(beacons.size());
+            for (Beacon beacon : beacons) {
+                writeBeacon(beacon);
+            }
+        }
+
+        /**
+         * Writes parsers that <code>canEncodeParsers</code> accepts
+         */
+        public void writeParsers(@NonNull Collection<BeaconParser> parsers) throws IOException {
+            mOut.writeInt(parsers.size());
+            for (BeaconParser parser : parsers) {
+                mOut.writeByte(parser.getClass() == AltBeaconParser.class ? TYPE_ALT_BEACON_PARSER : TYPE_BEACON_PARSER);
+                mOut.writeInt(stringRef(parser.mIdentifier));
+                mOut.writeInt(stringRef(parser.mBeaconLayout));
+                Long matchingBeaconTypeCode = parser.getMatchingBeaconTypeCode();
+                mOut.writeBoolean(matchingBeaconTypeCode != null);
+                if (matchingBeaconTypeCode != null) {
+                    mOut.writeLong(matchingBeaconTypeCode);
+                }
+                mOut.writeShort(parser.mHardwareAssistManufacturers.length);
+                for (int manufacturer : parser.mHardwareAssistManufacturers) {
+                    mOut.writeInt(manufacturer);
+                }
+                if (parser.mAllowPduOverflow == null) {
+                    mOut.writeByte(PDU_OVERFLOW_UNSET);
+                }
+                else {
+                    mOut.writeByte(parser.mAllowPduOverflow ? PDU_OVERFLOW_ALLOWED : PDU_OVERFLOW_REJECTED);
+                }
+                writeParsers(parser.extraParsers);
+            }
+        }
+
+        @NonNull
+        public byte[] toByteArray() throws IOException {
+            mOut.flush();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(mBody.size() + mStrings.size() * 24 + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeInt(mStrings.size());
+            for (String string : mStrings) {
+                out.writeUTF(string);
+            }
+            // Identifier lengths followed by one packed block of identifier bytes
+            out.writeInt(mIdentifierBytes.size());
+            for (byte[] identifierBytes : mIdentifierBytes) {
+                out.writeShort(identifierBytes.length);
+            }
+            for (byte[] identifierBytes : mIdentifierBytes) {
+                out.write(identifierBytes);
+            }
+            mBody.writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeBeacon(Beacon beacon) throws IOException {
+            mOut.writeByte(beacon.getClass() == AltBeacon.class ? TYPE_ALT_BEACON : TYPE_BEACON);
+            Double runningAverageRssi = beacon.getRunningAverageRssiIfSet();
+            int flags = 0;
+            if (beacon.mMultiFrameBeacon) {
+                flags |= FLAG_MULTI_FRAME;
+            }
+            if (beacon.mDistance != null) {
+                flags |= FLAG_DISTANCE;
+            }
+            if (runningAverageRssi != null) {
+                flags |= FLAG_RUNNING_AVERAGE_RSSI;
+            }
+            mOut.writeByte(flags);
+            writeIdentifiers(beacon.mIdentifiers);
+            mOut.writeInt(beacon.mRssi);
+            mOut.writeInt(beacon.mTxPower);
+            mOut.writeInt(beacon.mBeaconTypeCode);
+            mOut.writeInt(beacon.mManufacturer);
+            mOut.writeInt(beacon.mServiceUuid);
+            if (beacon.mDistance != null) {
+                mOut.writeDouble(beacon.mDistance);
+            }
+            if (runningAverageRssi != null) {
+                mOut.writeDouble(runningAverageRssi);
+            }
+            mOut.writeInt(stringRef(beacon.mBluetoothAddress));
+            mOut.writeInt(stringRef(beacon.mBluetoothName));
+            mOut.writeInt(stringRef(beacon.mParserIdentifier));
+            writeLongs(beacon.mDataFields);
+            writeLongs(beacon.mExtraDataFields);
+        }
+
+        private void writeIdentifiers(List<Identifier> identifiers) throws IOException {
+            mOut.writeShort(identifiers.size());
+            for (Identifier identifier : identifiers) {
+                mOut.writeInt(identifierRef(identifier));
+            }
+        }
+
+        private void writeLongs(List<Long> values) throws IOException {
+            mOut.writeShort(values.size());
+            for (Long value : values) {
+                mOut.writeLong(value);
+            }
+        }
+
+        private int stringRef(String string) {
+            if (string == null) {
+                return NULL_REF;
+            }
+            Integer ref = mStringRefs.get(string);
+            if (ref == null) {
+                ref = mStrings.size();
+                mStrings.add(string);
+                mStringRefs.put(string, ref);
+            }
+            return ref;
+        }
+
+        private int identifierRef(Identifier identifier) {
+            if (identifier == null) {
+                return NULL_REF;
+            }
+            Integer ref = mIdentifierRefs.get(identifier);
+            if (ref == null) {
+                ref = mIdentifierBytes.size();
+                mIdentifierBytes.add(identifier.toByteArray());
+                mIdentifierRefs.put(identifier, ref);
+            }
+            return ref;
+        }
+    }
+
+    /**
+     * Reads beacons and regions in the order they were written.
+     */
+    public static final class Reader {
+        private final DataInputStream mIn;
+        private final String[] mStrings;
+        private final Identifier[] mIdentifiers;
+
+        public Reader(@NonNull byte[] bytes) throws IOException {
+            mIn = new DataInputStream(new ByteArrayInputStream(bytes));
+            int version = mIn.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported beacon batch version " + version);
+            }
+            mStrings = new String[readCount()];
+            for (int i = 0; i < mStrings.length; i++) {
+                mStrings[i] = mIn.readUTF();
+            }
+            int[] identifierLengths = new int[readCount()];
+            for (int i = 0; i < identifierLengths.length; i++) {
+                identifierLengths[i] = mIn.readUnsignedShort();
+            }
+            mIdentifiers = new Identifier[identifierLengths.length];
+            for (int i = 0; i < mIdentifiers.length; i++) {
+                byte[] identifierBytes = new byte[identifierLengths[i]];
+                mIn.readFully(identifierBytes);
+                mIdentifiers[i] = Identifier.fromBytes(identifierBytes, 0, identifierBytes.length, false);
+            }
+        }
+
+        public boolean readBoolean() throws IOException {
+            return mIn.readBoolean();
+        }
+
+        public int readInt() throws IOException {
+            return mIn.readInt();
+        }
+
+        public long readLong() throws IOException {
+            return mIn.readLong();
+        }
+
+        public double readDouble() throws IOException {
+            return mIn.readDouble();
+        }
+
+        @Nullable
+        public Region readRegion() throws IOException {
+            if (!mIn.readBoolean()) {
+                return null;
+            }
+            String uniqueId = string(mIn.readInt());
+            String bluetoothAddress = string(mIn.readInt());
+            return new Region(uniqueId, readIdentifiers(), bluetoothAddress);
+        }
+
+        /**
+         * @return the beacons, or null if a null collection was written
+         */
+        @Nullable
+        public List<Beacon> readBeacons() throws IOException {
+            int count = mIn.readInt();
+            if (count == NULL_REF) {
+                return null;
+            }
+            if (count < 0) {
+                throw new IOException("Invalid beacon count " + count);
+            }
+            List<Beacon> beacons = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                beacons.add(readBeacon());
+            }
+            return beacons;
+        }
+
+        @NonNull
+        public List<BeaconParser> readParsers() throws IOException {
+            int count = readCount();
+            List<BeaconParser> parsers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                parsers.add(readParser());
+            }
+            return parsers;
+        }
+
+        private BeaconParser readParser() throws IOException {
+            byte type = mIn.readByte();
+            BeaconParser parser;
+            if (type == TYPE_ALT_BEACON_PARSER) {
+                parser = new AltBeaconParser();
+            }
+            else if (type == TYPE_BEACON_PARSER) {
+                parser = new BeaconParser();
+            }
+            else {
+                throw new IOException("Unknown beacon parser type " + type);
+            }
+            parser.mIdentifier = string(mIn.readInt());
+            String layout = string(mIn.readInt());
+            Long matchingBeaconTypeCode = mIn.readBoolean() ? mIn.readLong() : null;
+            try {
+                if (layout != null && !layout.equals(parser.mBeaconLayout)) {
+                    parser.setBeaconLayout(layout);
+                }
+                if (matchingBeaconTypeCode != null && !matchingBeaconTypeCode.equals(parser.getMatchingBeaconTypeCode())) {
+                    parser.setMatchingBeaconTypeCode(matchingBeaconTypeCode);
+                }
+            } catch (BeaconParser.BeaconLayoutException e) {
+                throw new IOException("Invalid beacon layout " + layout);
+            }
+            int[] manufacturers = new int[mIn.readUnsignedShort()];
+            for (int i = 0; i < manufacturers.length; i++) {
+                manufacturers[i] = mIn.readInt();
+            }
+            parser.mHardwareAssistManufacturers = manufacturers;
+            byte pduOverflow = mIn.readByte();
+            parser.mAllowPduOverflow = pduOverflow == PDU_OVERFLOW_UNSET ? null : pduOverflow == PDU_OVERFLOW_ALLOWED;
+            parser.extraParsers.addAll(readParsers());
+            return parser;
+        }
+
+        private Beacon readBeacon() throws IOException {
+            byte type = mIn.readByte();
+            Beacon beacon;
+            if (type == TYPE_ALT_BEACON) {
+                beacon = new AltBeacon();
+            }
+            else if (type == TYPE_BEACON) {
+                beacon = new Beacon();
+            }
+            else {
+                throw new IOException("Unknown beacon type " + type);
+            }
+            int flags = mIn.readUnsignedByte();
+            beacon.mMultiFrameBeacon = (flags & FLAG_MULTI_FRAME) != 0;
+            beacon.mIdentifiers = readIdentifiers();
+            beacon.mRssi = mIn.readInt();
+            beacon.mTxPower = mIn.readInt();
+            beacon.mBeaconTypeCode = mIn.readInt();
+            beacon.mManufacturer = mIn.readInt();
+            beacon.mServiceUuid = mIn.readInt();
+            Double distance = (flags & FLAG_DISTANCE) != 0 ? mIn.readDouble() : null;
+            if ((flags & FLAG_RUNNING_AVERAGE_RSSI) != 0) {
+                // Clears the distance, so it is restored afterwards
+                beacon.setRunningAverageRssi(mIn.readDouble());
+            }
+            beacon.mDistance = distance;
+            beacon.mBluetoothAddress = string(mIn.readInt());
+            beacon.mBluetoothName = string(mIn.readInt());
+            beacon.mParserIdentifier = string(mIn.readInt());
+            beacon.mDataFields = readLongs();
+            beacon.mExtraDataFields = readLongs();
+            return beacon;
+        }
+
+        private List<Identifier> readIdentifiers() throws IOException {
+            int count = mIn.readUnsignedShort();
+            List<Identifier> identifiers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int ref = mIn.readInt();
+                if (ref == NULL_REF) {
+                    identifiers.add(null);
+                }
+                else if (ref >= 0 && ref < mIdentifiers.length) {
+                    identifiers.add(mIdentifiers[ref]);
+                }
+                else {
+                    throw new IOException("Invalid identifier reference " + ref);
+                }
+            }
+            return identifiers;
+        }
+
+        private List<Long> readLongs() throws IOException {
+            int count = mIn.readUnsignedShort();
+            List<Long> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(mIn.readLong());
+            }
+            return values;
+        }
+
+        private String string(int ref) throws IOException {
+            if (ref == NULL_REF) {
+                return null;
+            }
+            if (ref < 0 || ref >= mStrings.length) {
+                throw new IOException("Invalid string reference " + ref);
+            }
+            return mStrings[ref];
+        }
+
+        private int readCount() throws IOException {
+            int count = mIn.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid table size " + count);
+            }
+            return count;
+        }
+    }
+}
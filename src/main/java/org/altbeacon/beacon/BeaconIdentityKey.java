@@ -0,0 +1,83 @@
+package org.altbeacon.beacon;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable key with the same equality as <code>Beacon#equals</code>: the beacon identifiers,
+ * plus the bluetooth address if hardware equality is enforced.  The hash code is computed once, so
+ * the key can be used for hash lookups on every detection without building strings.
+ *
+ * @see Beacon#getIdentityKey()
+ * @see Beacon#setHardwareEqualityEnforced(boolean)
+ */
+public final class BeaconIdentityKey implements Serializable {
+    private final Identifier[] mIdentifiers;
+    private final boolean mHardwareEqualityEnforced;
+    @Nullable
+    private final String mBluetoothAddress;
+    private final int mHashCode;
+
+    BeaconIdentityKey(@NonNull List<Identifier> identifiers, boolean hardwareEqualityEnforced,
+                      @Nullable String bluetoothAddress) {
+        mIdentifiers = identifiers.toArray(new Identifier[identifiers.size()]);
+        mHardwareEqualityEnforced = hardwareEqualityEnforced;
+        mBluetoothAddress = hardwareEqualityEnforced ? bluetoothAddress : null;
+        int hashCode = Arrays.hashCode(mIdentifiers);
+        if (mHardwareEqualityEnforced) {
+            hashCode = 31 * hashCode + (mBluetoothAddress == null ? 0 : mBluetoothAddress.hashCode());
+        }
+        mHashCode = hashCode;
+    }
+
+    boolean isHardwareEqualityEnforced() {
+        return mHardwareEqualityEnforced;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof BeaconIdentityKey)) {
+            return false;
+        }
+        BeaconIdentityKey thatKey = (BeaconIdentityKey) that;
+        if (mHashCode != thatKey.mHashCode || mHardwareEqualityEnforced != thatKey.mHardwareEqualityEnforced) {
+            return false;
+        }
+        if (!Arrays.equals(mIdentifiers, thatKey.mIdentifiers)) {
+            return false;
+        }
+        return mBluetoothAddress == null ? thatKey.mBluetoothAddress == null :
+                mBluetoothAddress.equals(thatKey.mBluetoothAddress);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mIdentifiers.length; i++) {
+            if (i > 0) {
+                sb.append(" ");
+            }
+            sb.append("id");
+            sb.append(i + 1);
+            sb.append(": ");
+            sb.append(mIdentifiers[i] == null ? "null" : mIdentifiers[i].toString());
+        }
+        if (mHardwareEqualityEnforced) {
+            sb.append(" address: ");
+            sb.append(mBluetoothAddress);
+        }
+        return sb.toString();
+    }
+}
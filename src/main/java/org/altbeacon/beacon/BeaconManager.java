@@ -33,6 +33,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
@@ -43,20 +44,25 @@ import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
 import org.altbeacon.beacon.service.BeaconService;
 import org.altbeacon.beacon.service.Callback;
+import org.altbeacon.beacon.service.ExtraDataBeaconTracker;
 import org.altbeacon.beacon.service.MonitoringStatus;
 import org.altbeacon.beacon.service.RangeState;
 import org.altbeacon.beacon.service.RangedBeacon;
 import org.altbeacon.beacon.service.RegionMonitoringState;
+import org.altbeacon.beacon.service.RssiFilter;
 import org.altbeacon.beacon.service.RunningAverageRssiFilter;
+import org.altbeacon.beacon.service.ScanBufferOverflowPolicy;
 import org.altbeacon.beacon.service.ScanJob;
 import org.altbeacon.beacon.service.ScanJobScheduler;
 import org.altbeacon.beacon.service.ScanState;
 import org.altbeacon.beacon.service.SettingsData;
+import org.altbeacon.beacon.service.SharedScanState;
 import org.altbeacon.beacon.service.StartRMData;
 import org.altbeacon.beacon.service.scanner.NonBeaconLeScanCallback;
 import org.altbeacon.beacon.simulator.BeaconSimulator;
 import org.altbeacon.beacon.utils.ProcessUtils;
 
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -68,6 +74,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 
 import org.altbeacon.beacon.service.ScanJob;
 import org.altbeacon.beacon.service.ScanState;
@@ -138,12 +145,20 @@ public class BeaconManager {
     @NonNull
     protected final Set<RangeNotifier> rangeNotifiers = new CopyOnWriteArraySet<>();
 
+    @NonNull
+    protected final Set<RangeDeltaNotifier> rangeDeltaNotifiers = new CopyOnWriteArraySet<>();
+
+    @NonNull
+    private final RangeDeltaAccumulator rangeDeltaAccumulator = new RangeDeltaAccumulator();
+
     @Nullable
     protected RangeNotifier dataRequestNotifier = null;
 
     @NonNull
     protected final Set<MonitorNotifier> monitorNotifiers = new CopyOnWriteArraySet<>();
 
+    private final NotifierExecutors notifierExecutors = new NotifierExecutors();
+
     @NonNull
     private final ArrayList<Region> rangedRegions = new ArrayList<>();
 
@@ -163,6 +178,12 @@ public class BeaconManager {
     private static boolean sAndroidLScanningDisabled = false;
     private static boolean sManifestCheckingDisabled = false;
 
+    private static volatile boolean sDirectCallbackDeliveryEnabled = false;
+    private static volatile boolean sScanCycleOnScanThreadEnabled = false;
+    @Nullable
+    private static volatile Looper sScanCycleLooper = null;
+    private static volatile long sBatchScanReportDelayMillis = 0;
+
     /**
      * Private lock object for singleton initialization protecting against denial-of-service attack.
      */
@@ -605,7 +626,7 @@ public class BeaconManager {
      */
     @Deprecated
     public void setRangeNotifier(@Nullable RangeNotifier notifier) {
-        rangeNotifiers.clear();
+        removeAllRangeNotifiers();
         if (null != notifier) {
             addRangeNotifier(notifier);
         }
@@ -629,6 +650,22 @@ public class BeaconManager {
         }
     }
 
+    /**
+     * Registers a <code>RangeNotifier</code> as in {@link #addRangeNotifier(RangeNotifier)}, to be
+     * called on the given executor.  Calls for the same region are made one at a time, in order.
+     *
+     * @param notifier The {@link RangeNotifier} to register.
+     * @param executor The executor for calls to this notifier, or null to use the default.
+     * @see #setNotifierExecutor(Executor)
+     */
+    public void addRangeNotifier(@NonNull RangeNotifier notifier, @Nullable Executor executor) {
+        //noinspection ConstantConditions
+        if (notifier != null) {
+            notifierExecutors.setExecutor(notifier, executor);
+            rangeNotifiers.add(notifier);
+        }
+    }
+
     /**
      * Specifies a class to remove from the array of <code>RangeNotifier</code>
      *
@@ -636,6 +673,7 @@ public class BeaconManager {
      * @see RangeNotifier
      */
     public boolean removeRangeNotifier(@NonNull RangeNotifier notifier) {
+        notifierExecutors.removeExecutor(notifier);
         return rangeNotifiers.remove(notifier);
     }
 
@@ -643,9 +681,82 @@ public class BeaconManager {
      * Remove all the Range Notifiers.
      */
     public void removeAllRangeNotifiers() {
+        for (RangeNotifier notifier : rangeNotifiers) {
+            notifierExecutors.removeExecutor(notifier);
+        }
         rangeNotifiers.clear();
     }
 
+    /**
+     * Specifies a class that should be called with the beacons that appeared, changed or
+     * disappeared in a ranged region.  Only called while range delta reporting is enabled.
+     *
+     * @param notifier The {@link RangeDeltaNotifier} to register.
+     * @see #setRangeDeltaReportingEnabled(boolean)
+     */
+    public void addRangeDeltaNotifier(@NonNull RangeDeltaNotifier notifier) {
+        //noinspection ConstantConditions
+        if (notifier != null) {
+            rangeDeltaNotifiers.add(notifier);
+        }
+    }
+
+    /**
+     * Registers a <code>RangeDeltaNotifier</code> to be called on the given executor.  Calls for the
+     * same region are made one at a time, in order.
+     *
+     * @param notifier The {@link RangeDeltaNotifier} to register.
+     * @param executor The executor for calls to this notifier, or null to use the default.
+     * @see #setNotifierExecutor(Executor)
+     */
+    public void addRangeDeltaNotifier(@NonNull RangeDeltaNotifier notifier, @Nullable Executor executor) {
+        //noinspection ConstantConditions
+        if (notifier != null) {
+            notifierExecutors.setExecutor(notifier, executor);
+            rangeDeltaNotifiers.add(notifier);
+        }
+    }
+
+    /**
+     * Specifies a class to remove from the array of <code>RangeDeltaNotifier</code>
+     *
+     * @param notifier The {@link RangeDeltaNotifier} to unregister.
+     */
+    public boolean removeRangeDeltaNotifier(@NonNull RangeDeltaNotifier notifier) {
+        notifierExecutors.removeExecutor(notifier);
+        return rangeDeltaNotifiers.remove(notifier);
+    }
+
+    /**
+     * @return a read-only view of the registered {@link RangeDeltaNotifier} instances
+     */
+    @NonNull
+    public Set<RangeDeltaNotifier> getRangeDeltaNotifiers() {
+        return Collections.unmodifiableSet(rangeDeltaNotifiers);
+    }
+
+    @NonNull
+    RangeDeltaAccumulator getRangeDeltaAccumulator() {
+        return rangeDeltaAccumulator;
+    }
+
+    /**
+     * Sets the executor used to call notifiers that were registered without one.  By default they
+     * are called on the thread delivering the ranging or monitoring data, which is usually the main
+     * thread.  Calls to each notifier for the same region are made one at a time, in order, so a
+     * thread pool may be used.
+     *
+     * @param executor The executor, or null to call notifiers on the delivering thread.
+     */
+    public void setNotifierExecutor(@Nullable Executor executor) {
+        notifierExecutors.setDefaultExecutor(executor);
+    }
+
+    @NonNull
+    NotifierExecutors getNotifierExecutors() {
+        return notifierExecutors;
+    }
+
     /**
      * Specifies a class that should be called each time the <code>BeaconService</code> sees
      * or stops seeing a Region of beacons.
@@ -665,7 +776,7 @@ public class BeaconManager {
         if (determineIfCalledFromSeparateScannerProcess()) {
             return;
         }
-        monitorNotifiers.clear();
+        removeAllMonitorNotifiers();
         if (null != notifier) {
             addMonitorNotifier(notifier);
         }
@@ -694,6 +805,26 @@ public class BeaconManager {
         }
     }
 
+    /**
+     * Registers a <code>MonitorNotifier</code> as in {@link #addMonitorNotifier(MonitorNotifier)},
+     * to be called on the given executor.  Calls for the same region are made one at a time, in
+     * order.
+     *
+     * @param notifier The {@link MonitorNotifier} to register.
+     * @param executor The executor for calls to this notifier, or null to use the default.
+     * @see #setNotifierExecutor(Executor)
+     */
+    public void addMonitorNotifier(@NonNull MonitorNotifier notifier, @Nullable Executor executor) {
+        if (determineIfCalledFromSeparateScannerProcess()) {
+            return;
+        }
+        //noinspection ConstantConditions
+        if (notifier != null) {
+            notifierExecutors.setExecutor(notifier, executor);
+            monitorNotifiers.add(notifier);
+        }
+    }
+
     /**
      * @see #removeMonitorNotifier
      * @deprecated Misspelled. Replaced by {@link #removeMonitorNotifier}
@@ -715,6 +846,7 @@ public class BeaconManager {
         if (determineIfCalledFromSeparateScannerProcess()) {
             return false;
         }
+        notifierExecutors.removeExecutor(notifier);
         return monitorNotifiers.remove(notifier);
     }
 
@@ -725,6 +857,9 @@ public class BeaconManager {
         if (determineIfCalledFromSeparateScannerProcess()) {
             return;
         }
+        for (MonitorNotifier notifier : monitorNotifiers) {
+            notifierExecutors.removeExecutor(notifier);
+        }
         monitorNotifiers.clear();
     }
 
@@ -772,18 +907,34 @@ public class BeaconManager {
      * method.  If it is not a monitored region, it will be ignored.
      * @param region
      */
-    public void requestStateForRegion(@NonNull Region region) {
+    public void requestStateForRegion(@NonNull final Region region) {
         if (determineIfCalledFromSeparateScannerProcess()) {
             return;
         }
-        MonitoringStatus status = MonitoringStatus.getInstanceForApplication(mContext);
-        RegionMonitoringState stateObj = status.stateOf(region);
         int state = MonitorNotifier.OUTSIDE;
-        if (stateObj != null && stateObj.getInside()) {
-            state = MonitorNotifier.INSIDE;
+        // A scanner in another process shares its region states, which are fresher than ours
+        Boolean sharedInside = isScannerInDifferentProcess() ?
+                SharedScanState.getInstance(mContext).readInsideState(region) : null;
+        if (sharedInside != null) {
+            if (sharedInside) {
+                state = MonitorNotifier.INSIDE;
+            }
         }
-        for (MonitorNotifier notifier : monitorNotifiers) {
-            notifier.didDetermineStateForRegion(state, region);
+        else {
+            MonitoringStatus status = MonitoringStatus.getInstanceForApplication(mContext);
+            RegionMonitoringState stateObj = status.stateOf(region);
+            if (stateObj != null && stateObj.getInside()) {
+                state = MonitorNotifier.INSIDE;
+            }
+        }
+        final int finalState = state;
+        for (final MonitorNotifier notifier : monitorNotifiers) {
+            notifierExecutors.execute(notifier, region, new Runnable() {
+                @Override
+                public void run() {
+                    notifier.didDetermineStateForRegion(finalState, region);
+                }
+            });
         }
     }
 
@@ -842,6 +993,7 @@ public class BeaconManager {
             }
             rangedRegions.remove(regionToRemove);
         }
+        rangeDeltaAccumulator.clear(region);
         applyChangesToServices(BeaconService.MSG_STOP_RANGING, region);
     }
 
@@ -1112,6 +1264,26 @@ public class BeaconManager {
         distanceModelUpdateUrl = url;
     }
 
+    protected static boolean distanceLookupTableEnabled = false;
+
+    /**
+     * Makes the default distance calculator answer from a lookup table built for the coefficients
+     * of the selected device model, instead of evaluating its curve for every beacon.  Distances
+     * are those of the rssi rounded to the nearest 0.1 dB.  Must be set before scanning starts.
+     * Disabled by default.
+     *
+     * @param enabled
+     * @see org.altbeacon.beacon.distance.CurveFittedDistanceCalculator
+     */
+    public static void setDistanceLookupTableEnabled(boolean enabled) {
+        warnIfScannerNotInSameProcess();
+        distanceLookupTableEnabled = enabled;
+    }
+
+    public static boolean isDistanceLookupTableEnabled() {
+        return distanceLookupTableEnabled;
+    }
+
     /**
      * Default class for rssi filter/calculation implementation
      */
@@ -1126,6 +1298,179 @@ public class BeaconManager {
         return rssiFilterImplClass;
     }
 
+    @Nullable
+    protected static RssiFilter.Factory rssiFilterFactory = null;
+    @Nullable
+    private static RssiFilterImplClassFactory rssiFilterImplClassFactory = null;
+    private static final Map<Region, RssiFilter.Factory> regionRssiFilterFactories =
+            new ConcurrentHashMap<Region, RssiFilter.Factory>();
+
+    /**
+     * Sets the factory used to create the rssi filter for each ranged beacon, taking precedence
+     * over <code>setRssiFilterImplClass</code>.  Set to null to go back to using the rssi filter
+     * implementation class.
+     *
+     * @param factory
+     * @see RunningAverageRssiFilter#factory(long)
+     * @see org.altbeacon.beacon.service.ArmaRssiFilter#factory(double)
+     */
+    public static void setRssiFilterFactory(@Nullable RssiFilter.Factory factory) {
+        warnIfScannerNotInSameProcess();
+        rssiFilterFactory = factory;
+    }
+
+    /**
+     * Sets the factory used to create the rssi filter for beacons ranged in the given region,
+     * overriding the default factory.  This allows, for example, a fast filter for a short range
+     * region and a smooth filter for a long range region.  Takes effect for beacons that are newly
+     * ranged in the region.  Set to null to use the default factory again.
+     *
+     * @param region
+     * @param factory
+     */
+    public static void setRssiFilterFactory(@NonNull Region region, @Nullable RssiFilter.Factory factory) {
+        warnIfScannerNotInSameProcess();
+        if (factory == null) {
+            regionRssiFilterFactories.remove(region);
+        }
+        else {
+            regionRssiFilterFactories.put(region, factory);
+        }
+    }
+
+    /**
+     * @return the factory used to create rssi filters for beacons ranged in the given region
+     */
+    @NonNull
+    public static RssiFilter.Factory getRssiFilterFactory(@Nullable Region region) {
+        if (region != null && !regionRssiFilterFactories.isEmpty()) {
+            RssiFilter.Factory factory = regionRssiFilterFactories.get(region);
+            if (factory != null) {
+                return factory;
+            }
+        }
+        return getRssiFilterFactory();
+    }
+
+    /**
+     * @return the factory used to create rssi filters for ranged beacons when no region specific
+     * factory is set
+     */
+    @NonNull
+    public static RssiFilter.Factory getRssiFilterFactory() {
+        RssiFilter.Factory factory = rssiFilterFactory;
+        if (factory != null) {
+            return factory;
+        }
+        RssiFilterImplClassFactory implClassFactory = rssiFilterImplClassFactory;
+        if (implClassFactory == null || implClassFactory.mFilterClass != rssiFilterImplClass) {
+            implClassFactory = new RssiFilterImplClassFactory(rssiFilterImplClass);
+            rssiFilterImplClassFactory = implClassFactory;
+        }
+        return implClassFactory;
+    }
+
+    /**
+     * Creates instances of the rssi filter implementation class.  The default filter is created
+     * directly, and the constructor of other classes is looked up only once.
+     */
+    private static class RssiFilterImplClassFactory implements RssiFilter.Factory {
+        private final Class mFilterClass;
+        @Nullable
+        private Constructor mConstructor;
+
+        RssiFilterImplClassFactory(Class filterClass) {
+            mFilterClass = filterClass;
+        }
+
+        @NonNull
+        @Override
+        public RssiFilter createFilter() {
+            if (mFilterClass == RunningAverageRssiFilter.class) {
+                return new RunningAverageRssiFilter();
+            }
+            try {
+                if (mConstructor == null) {
+                    mConstructor = mFilterClass.getConstructor();
+                }
+                return (RssiFilter) mConstructor.newInstance();
+            } catch (Exception e) {
+                LogManager.e(TAG, "Could not construct RssiFilterImplClass %s", mFilterClass.getName());
+                return new RunningAverageRssiFilter();
+            }
+        }
+
+        @Override
+        public void recycleFilter(@NonNull RssiFilter filter) {
+        }
+    }
+
+    /**
+     * Default number of scan results that may wait to be parsed
+     */
+    public static final int DEFAULT_SCAN_BUFFER_CAPACITY = 500;
+
+    protected static int scanBufferCapacity = DEFAULT_SCAN_BUFFER_CAPACITY;
+
+    protected static int scanProcessingThreadCount = Runtime.getRuntime().availableProcessors() + 1;
+
+    @NonNull
+    protected static ScanBufferOverflowPolicy scanBufferOverflowPolicy = ScanBufferOverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Sets how many raw scan results may wait to be parsed before the
+     * <code>ScanBufferOverflowPolicy</code> starts dropping them.  Takes effect the next time the
+     * scanning service starts.
+     *
+     * @param capacity the number of scan results to buffer, at least 1
+     */
+    public static void setScanBufferCapacity(int capacity) {
+        warnIfScannerNotInSameProcess();
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Scan buffer capacity must be at least 1");
+        }
+        scanBufferCapacity = capacity;
+    }
+
+    public static int getScanBufferCapacity() {
+        return scanBufferCapacity;
+    }
+
+    /**
+     * Sets how many threads parse raw scan results.  Defaults to the number of processors plus
+     * one.  A single thread processes scan results in the order they are received.  Takes effect
+     * the next time the scanning service starts.
+     *
+     * @param threadCount the number of threads, at least 1
+     */
+    public static void setScanProcessingThreadCount(int threadCount) {
+        warnIfScannerNotInSameProcess();
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Scan processing thread count must be at least 1");
+        }
+        scanProcessingThreadCount = threadCount;
+    }
+
+    public static int getScanProcessingThreadCount() {
+        return scanProcessingThreadCount;
+    }
+
+    /**
+     * Sets which scan result is dropped when scan results arrive faster than they can be parsed.
+     * Takes effect the next time the scanning service starts.
+     *
+     * @param policy
+     */
+    public static void setScanBufferOverflowPolicy(@NonNull ScanBufferOverflowPolicy policy) {
+        warnIfScannerNotInSameProcess();
+        scanBufferOverflowPolicy = policy;
+    }
+
+    @NonNull
+    public static ScanBufferOverflowPolicy getScanBufferOverflowPolicy() {
+        return scanBufferOverflowPolicy;
+    }
+
     /**
      * Allow the library to use a tracking cache
      * @param useTrackingCache
@@ -1137,6 +1482,131 @@ public class BeaconManager {
         }
     }
 
+    /**
+     * Sends ranging updates to the client only when beacons appear, change or disappear, instead
+     * of sending every visible beacon each cycle.  Changes are delivered to
+     * {@link RangeDeltaNotifier} instances.  {@link RangeNotifier} instances are still called with
+     * every visible beacon, but only after cycles with changes, and with the rssi and distance of
+     * each beacon as last reported.  Disabled by default.
+     *
+     * @param enabled
+     * @see #setRangeDeltaThresholds(double, double)
+     */
+    public static void setRangeDeltaReportingEnabled(boolean enabled) {
+        RangeState.setDeltaReportingEnabled(enabled);
+        if (sInstance != null) {
+            sInstance.applySettings();
+        }
+    }
+
+    public static boolean isRangeDeltaReportingEnabled() {
+        return RangeState.getDeltaReportingEnabled();
+    }
+
+    /**
+     * Sets how far a beacon's running average rssi or distance must move from the values last
+     * reported before it is reported as changed when range delta reporting is enabled.
+     *
+     * @param rssiThreshold in dBm, defaults to 5
+     * @param distanceThreshold in meters, defaults to 1
+     */
+    public static void setRangeDeltaThresholds(double rssiThreshold, double distanceThreshold) {
+        RangeState.setDeltaThresholds(rssiThreshold, distanceThreshold);
+        if (sInstance != null) {
+            sInstance.applySettings();
+        }
+    }
+
+    /**
+     * Limits how many devices the scanner remembers so that extra data frames (like Eddystone-TLM)
+     * can be merged into their beacons, and how long a device is remembered after it was last
+     * seen.  The least recently seen devices are forgotten first.
+     *
+     * @param maxTrackedDevices defaults to 1000
+     * @param timeToLiveMillis defaults to 10 minutes
+     */
+    public static void setExtraDataTrackingLimits(int maxTrackedDevices, long timeToLiveMillis) {
+        ExtraDataBeaconTracker.setLimits(maxTrackedDevices, timeToLiveMillis);
+        if (sInstance != null) {
+            sInstance.applySettings();
+        }
+    }
+
+    /**
+     * When the scanner runs in the main application process, hands ranging and monitoring data
+     * straight to the notifiers instead of sending it in an Intent.  Notifiers are then called on
+     * a single background dispatcher thread rather than the main thread, so they must not update
+     * the user interface directly.  Has no effect when the scanner runs in a separate process.
+     * Disabled by default.
+     *
+     * @param enabled
+     */
+    public static void setDirectCallbackDeliveryEnabled(boolean enabled) {
+        sDirectCallbackDeliveryEnabled = enabled;
+    }
+
+    public static boolean isDirectCallbackDeliveryEnabled() {
+        return sDirectCallbackDeliveryEnabled;
+    }
+
+    /**
+     * Runs the scan cycle timing, the handling of each scan result and the processing at the end
+     * of each scan cycle on the scanner's own background thread instead of the main thread.  Takes
+     * effect the next time scanning is started by the service or scan job.  Disabled by default.
+     *
+     * @param enabled
+     * @see #setScanCycleLooper(Looper)
+     */
+    public static void setScanCycleOnScanThreadEnabled(boolean enabled) {
+        sScanCycleOnScanThreadEnabled = enabled;
+        if (sInstance != null) {
+            sInstance.applySettings();
+        }
+    }
+
+    public static boolean isScanCycleOnScanThreadEnabled() {
+        return sScanCycleOnScanThreadEnabled;
+    }
+
+    /**
+     * Runs scan cycles, scan results and the end of cycle processing on the thread of the given
+     * Looper, which takes precedence over {@link #setScanCycleOnScanThreadEnabled(boolean)}.  Takes
+     * effect the next time scanning is started.  A Looper cannot be passed to a scanner running in
+     * a separate process.
+     *
+     * @param looper the Looper to use, or null (the default) to stop using one
+     */
+    public static void setScanCycleLooper(@Nullable Looper looper) {
+        warnIfScannerNotInSameProcess();
+        sScanCycleLooper = looper;
+    }
+
+    @Nullable
+    public static Looper getScanCycleLooper() {
+        return sScanCycleLooper;
+    }
+
+    /**
+     * Lets the Bluetooth controller hold scan results for up to the given delay and deliver them
+     * in batches, instead of waking the app for every advertisement.  The controller is asked to
+     * deliver held results at the end of each scan cycle, so they are processed in the cycle in
+     * which they were detected.  Only used for full scan cycles on Android 5.0+ devices that
+     * support offloaded scan batching, and ignored otherwise.  Takes effect the next time a scan
+     * is started.
+     *
+     * @param reportDelayMillis the maximum delay, or 0 (the default) to disable batching
+     */
+    public static void setBatchScanReportDelayMillis(long reportDelayMillis) {
+        sBatchScanReportDelayMillis = reportDelayMillis;
+        if (sInstance != null) {
+            sInstance.applySettings();
+        }
+    }
+
+    public static long getBatchScanReportDelayMillis() {
+        return sBatchScanReportDelayMillis;
+    }
+
     /**
      * Set the period of time, in which a beacon did not receive new
      * measurements
@@ -6,8 +6,7 @@ import android.os.Build;
 import android.util.Log;
 
 import org.altbeacon.beacon.logging.LogManager;
-import org.altbeacon.bluetooth.BleAdvertisement;
-import org.altbeacon.bluetooth.Pdu;
+import org.altbeacon.bluetooth.PduCursor;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -80,6 +79,9 @@ public class BeaconParser implements Serializable {
 
     protected List<BeaconParser> extraParsers = new ArrayList<BeaconParser>();
 
+    // Primitive form of the layout fields above, rebuilt whenever the layout changes so that
+    // parsing a packet does not need to unbox offsets or rebuild the matching byte sequences
+    private transient volatile CompiledLayout mCompiledLayout;
 
     /**
      * Makes a new BeaconParser.  Should normally be immediately followed by a call to #setLayout
@@ -285,6 +287,7 @@ public class BeaconParser implements Serializable {
             throw new BeaconLayoutException("You must supply a matching beacon type expression with a prefix of 'm'");
         }
         mLayoutSize = calculateLayoutSize();
+        compileLayout();
         return this;
     }
 
@@ -418,61 +421,67 @@ public class BeaconParser implements Serializable {
         return fromScanData(scanData, rssi, device, new Beacon());
     }
 
+    /**
+     * Construct a Beacon from a Bluetooth LE packet whose PDUs are exposed by a cursor.  The same
+     * cursor may be handed to several parsers, so the advertisement structure is only walked once.
+     *
+     * @param advertisement A cursor over the actual packet bytes
+     * @param rssi The measured signal strength of the packet
+     * @param device The Bluetooth device that was detected
+     * @return An instance of a <code>Beacon</code>
+     */
+    public Beacon fromScanData(PduCursor advertisement, int rssi, BluetoothDevice device) {
+        return fromScanData(advertisement, rssi, device, new Beacon());
+    }
+
     protected Beacon fromScanData(byte[] bytesToProcess, int rssi, BluetoothDevice device, Beacon beacon) {
-        BleAdvertisement advert = new BleAdvertisement(bytesToProcess);
+        return fromScanData(new PduCursor(bytesToProcess), rssi, device, beacon);
+    }
+
+    protected Beacon fromScanData(PduCursor advertisement, int rssi, BluetoothDevice device, Beacon beacon) {
+        CompiledLayout layout = getCompiledLayout();
+        if (layout == null) {
+            LogManager.w(TAG, "Cannot parse scan data because no beacon layout has been set");
+            return null;
+        }
+        byte[] bytesToProcess = advertisement.getBytes();
         boolean parseFailed = false;
-        Pdu pduToParse = null;
         int startByte = 0;
-        ArrayList<Identifier> identifiers = new ArrayList<Identifier>();
-        ArrayList<Long> dataFields = new ArrayList<Long>();
+        int pduEndIndex = 0;
+        ArrayList<Identifier> identifiers = new ArrayList<Identifier>(layout.identifierStartOffsets.length);
+        ArrayList<Long> dataFields = new ArrayList<Long>(layout.dataStartOffsets.length);
 
-        for (Pdu pdu: advert.getPdus()) {
-            if (pdu.getType() == Pdu.GATT_SERVICE_UUID_PDU_TYPE ||
-                    pdu.getType() == Pdu.MANUFACTURER_DATA_PDU_TYPE) {
-                pduToParse = pdu;
-                if (LogManager.isVerboseLoggingEnabled()) {
-                    LogManager.d(TAG, "Processing pdu type %02X: %s with startIndex: %d, endIndex: %d", pdu.getType(), bytesToHex(bytesToProcess), pdu.getStartIndex(), pdu.getEndIndex());
-                }
-                break;
-            }
-            else {
-                if (LogManager.isVerboseLoggingEnabled()) {
-                    LogManager.d(TAG, "Ignoring pdu type %02X", pdu.getType());
-                }
-            }
-        }
-        if (pduToParse == null) {
+        if (!advertisement.moveToBeaconPdu()) {
             if (LogManager.isVerboseLoggingEnabled()) {
                 LogManager.d(TAG, "No PDUs to process in this packet.");
             }
             parseFailed = true;
         }
         else {
-            byte[] serviceUuidBytes = null;
-            byte[] typeCodeBytes = longToByteArray(getMatchingBeaconTypeCode(), mMatchingBeaconTypeCodeEndOffset - mMatchingBeaconTypeCodeStartOffset + 1);
-            if (getServiceUuid() != null) {
-                serviceUuidBytes = longToByteArray(getServiceUuid(), mServiceUuidEndOffset - mServiceUuidStartOffset + 1, false);
+            if (LogManager.isVerboseLoggingEnabled()) {
+                LogManager.d(TAG, "Processing pdu type %02X: %s with startIndex: %d, endIndex: %d", advertisement.getType(), bytesToHex(bytesToProcess), advertisement.getStartIndex(), advertisement.getEndIndex());
             }
-            startByte = pduToParse.getStartIndex();
+            startByte = advertisement.getStartIndex();
+            pduEndIndex = advertisement.getEndIndex();
             boolean patternFound = false;
 
-            if (getServiceUuid() == null) {
-                if (byteArraysMatch(bytesToProcess, startByte + mMatchingBeaconTypeCodeStartOffset, typeCodeBytes)) {
+            if (layout.serviceUuidBytes == null) {
+                if (byteArraysMatch(bytesToProcess, startByte + layout.typeCodeStartOffset, layout.typeCodeBytes)) {
                     patternFound = true;
                 }
             } else {
-                if (byteArraysMatch(bytesToProcess, startByte + mServiceUuidStartOffset, serviceUuidBytes) &&
-                        byteArraysMatch(bytesToProcess, startByte + mMatchingBeaconTypeCodeStartOffset, typeCodeBytes)) {
+                if (byteArraysMatch(bytesToProcess, startByte + layout.serviceUuidStartOffset, layout.serviceUuidBytes) &&
+                        byteArraysMatch(bytesToProcess, startByte + layout.typeCodeStartOffset, layout.typeCodeBytes)) {
                     patternFound = true;
                 }
             }
 
             if (patternFound == false) {
                 // This is not a beacon
-                if (getServiceUuid() == null) {
+                if (layout.serviceUuidBytes == null) {
                     if (LogManager.isVerboseLoggingEnabled()) {
                         LogManager.d(TAG, "This is not a matching Beacon advertisement. (Was expecting %s.  "
-                                        + "The bytes I see are: %s", byteArrayToString(typeCodeBytes),
+                                        + "The bytes I see are: %s", byteArrayToString(layout.typeCodeBytes),
                                 bytesToHex(bytesToProcess));
 
                     }
@@ -480,10 +489,10 @@ public class BeaconParser implements Serializable {
                     if (LogManager.isVerboseLoggingEnabled()) {
                         LogManager.d(TAG, "This is not a matching Beacon advertisement. Was expecting %s at offset %d and %s at offset %d.  "
                                         + "The bytes I see are: %s",
-                                byteArrayToString(serviceUuidBytes),
-                                startByte + mServiceUuidStartOffset,
-                                byteArrayToString(typeCodeBytes),
-                                startByte + mMatchingBeaconTypeCodeStartOffset,
+                                byteArrayToString(layout.serviceUuidBytes),
+                                startByte + layout.serviceUuidStartOffset,
+                                byteArrayToString(layout.typeCodeBytes),
+                                startByte + layout.typeCodeStartOffset,
                                 bytesToHex(bytesToProcess));
                     }
                 }
@@ -492,71 +501,71 @@ public class BeaconParser implements Serializable {
             } else {
                 if (LogManager.isVerboseLoggingEnabled()) {
                     LogManager.d(TAG, "This is a recognized beacon advertisement -- %s seen",
-                            byteArrayToString(typeCodeBytes));
+                            byteArrayToString(layout.typeCodeBytes));
                     LogManager.d(TAG, "Bytes are: %s", bytesToHex(bytesToProcess));
                 }
             }
 
             if (patternFound) {
-                if (bytesToProcess.length <= startByte+mLayoutSize && mAllowPduOverflow) {
+                if (bytesToProcess.length <= startByte+layout.layoutSize && mAllowPduOverflow) {
                     // If the layout size is bigger than this PDU, and we allow overflow.  Make sure
                     // the byte buffer is big enough by zero padding the end so we don't try to read
                     // outside the byte array of the advertisement
                     if (LogManager.isVerboseLoggingEnabled()) {
-                        LogManager.d(TAG, "Expanding buffer because it is too short to parse: "+bytesToProcess.length+", needed: "+(startByte+mLayoutSize));
+                        LogManager.d(TAG, "Expanding buffer because it is too short to parse: "+bytesToProcess.length+", needed: "+(startByte+layout.layoutSize));
                     }
-                    bytesToProcess = ensureMaxSize(bytesToProcess, startByte+mLayoutSize);
+                    bytesToProcess = ensureMaxSize(bytesToProcess, startByte+layout.layoutSize);
                 }
-                for (int i = 0; i < mIdentifierEndOffsets.size(); i++) {
-                    int endIndex = mIdentifierEndOffsets.get(i) + startByte;
+                for (int i = 0; i < layout.identifierEndOffsets.length; i++) {
+                    int endIndex = layout.identifierEndOffsets[i] + startByte;
 
-                    if (endIndex > pduToParse.getEndIndex() && mIdentifierVariableLengthFlags.get(i)) {
+                    if (endIndex > pduEndIndex && layout.identifierVariableLengthFlags[i]) {
                         if (LogManager.isVerboseLoggingEnabled()) {
-                            LogManager.d(TAG, "Need to truncate identifier by "+(endIndex-pduToParse.getEndIndex()));
+                            LogManager.d(TAG, "Need to truncate identifier by "+(endIndex-pduEndIndex));
                         }
                         // If this is a variable length identifier, we truncate it to the size that
                         // is available in the packet
-                        Identifier identifier = Identifier.fromBytes(bytesToProcess, mIdentifierStartOffsets.get(i) + startByte, pduToParse.getEndIndex()+1, mIdentifierLittleEndianFlags.get(i));
+                        Identifier identifier = Identifier.fromBytes(bytesToProcess, layout.identifierStartOffsets[i] + startByte, pduEndIndex+1, layout.identifierLittleEndianFlags[i]);
                         identifiers.add(identifier);
                     }
-                    else if (endIndex > pduToParse.getEndIndex() && !mAllowPduOverflow) {
+                    else if (endIndex > pduEndIndex && !mAllowPduOverflow) {
                         parseFailed = true;
                         if (LogManager.isVerboseLoggingEnabled()) {
-                            LogManager.d(TAG, "Cannot parse identifier "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduToParse.getEndIndex());
+                            LogManager.d(TAG, "Cannot parse identifier "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduEndIndex);
                         }
                     }
                     else {
-                        Identifier identifier = Identifier.fromBytes(bytesToProcess, mIdentifierStartOffsets.get(i) + startByte, endIndex+1, mIdentifierLittleEndianFlags.get(i));
+                        Identifier identifier = Identifier.fromBytes(bytesToProcess, layout.identifierStartOffsets[i] + startByte, endIndex+1, layout.identifierLittleEndianFlags[i]);
                         identifiers.add(identifier);
                     }
                 }
-                for (int i = 0; i < mDataEndOffsets.size(); i++) {
-                    int endIndex = mDataEndOffsets.get(i) + startByte;
-                    if (endIndex > pduToParse.getEndIndex() && !mAllowPduOverflow) {
+                for (int i = 0; i < layout.dataEndOffsets.length; i++) {
+                    int endIndex = layout.dataEndOffsets[i] + startByte;
+                    if (endIndex > pduEndIndex && !mAllowPduOverflow) {
                         if (LogManager.isVerboseLoggingEnabled()) {
-                            LogManager.d(TAG, "Cannot parse data field "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduToParse.getEndIndex()+".  Setting value to 0");
+                            LogManager.d(TAG, "Cannot parse data field "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduEndIndex+".  Setting value to 0");
                         }
                         dataFields.add(new Long(0l));
                     }
                     else {
-                        String dataString = byteArrayToFormattedString(bytesToProcess, mDataStartOffsets.get(i) + startByte, endIndex, mDataLittleEndianFlags.get(i));
-                        dataFields.add(Long.decode(dataString));
+                        dataFields.add(byteArrayToLong(bytesToProcess, layout.dataStartOffsets[i] + startByte, endIndex, layout.dataLittleEndianFlags[i]));
                     }
                 }
 
-                if (mPowerStartOffset != null) {
-                    int endIndex = mPowerEndOffset + startByte;
+                if (layout.hasPowerField) {
+                    int endIndex = layout.powerEndOffset + startByte;
                     int txPower = 0;
-                    try {
-                        if (endIndex > pduToParse.getEndIndex() && !mAllowPduOverflow) {
-                            parseFailed = true;
-                            if (LogManager.isVerboseLoggingEnabled()) {
-                                LogManager.d(TAG, "Cannot parse power field because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduToParse.getEndIndex());
-                            }
+                    if (endIndex > pduEndIndex && !mAllowPduOverflow) {
+                        parseFailed = true;
+                        if (LogManager.isVerboseLoggingEnabled()) {
+                            LogManager.d(TAG, "Cannot parse power field because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduEndIndex);
                         }
-                        else {
-                            String powerString = byteArrayToFormattedString(bytesToProcess, mPowerStartOffset + startByte, mPowerEndOffset + startByte, false);
-                            txPower = Integer.parseInt(powerString)+mDBmCorrection;
+                    }
+                    else if (layout.powerEndOffset - layout.powerStartOffset < 4) {
+                        long powerValue = byteArrayToLong(bytesToProcess, layout.powerStartOffset + startByte, layout.powerEndOffset + startByte, false);
+                        // a power field that does not fit in an integer keeps the default value
+                        if (powerValue <= Integer.MAX_VALUE) {
+                            txPower = (int) powerValue + layout.dBmCorrection;
                             // make sure it is a signed integer
                             if (txPower > 127) {
                                 txPower -= 256;
@@ -564,12 +573,6 @@ public class BeaconParser implements Serializable {
                             beacon.mTxPower = txPower;
                         }
                     }
-                    catch (NumberFormatException e1) {
-                        // keep default value
-                    }
-                    catch (NullPointerException e2) {
-                        // keep default value
-                    }
                 }
             }
         }
@@ -578,14 +581,8 @@ public class BeaconParser implements Serializable {
             beacon = null;
         }
         else {
-            int beaconTypeCode = 0;
-            String beaconTypeString = byteArrayToFormattedString(bytesToProcess, mMatchingBeaconTypeCodeStartOffset+startByte, mMatchingBeaconTypeCodeEndOffset+startByte, false);
-            beaconTypeCode = Integer.parseInt(beaconTypeString);
-            // TODO: error handling needed on the parse
-
-            int manufacturer = 0;
-            String manufacturerString = byteArrayToFormattedString(bytesToProcess, startByte, startByte+1, true);
-            manufacturer = Integer.parseInt(manufacturerString);
+            int beaconTypeCode = (int) byteArrayToLong(bytesToProcess, layout.typeCodeStartOffset+startByte, layout.typeCodeEndOffset+startByte, false);
+            int manufacturer = (int) byteArrayToLong(bytesToProcess, startByte, startByte+1, true);
 
             String macAddress = null;
             String name = null;
@@ -598,18 +595,13 @@ public class BeaconParser implements Serializable {
             beacon.mDataFields = dataFields;
             beacon.mRssi = rssi;
             beacon.mBeaconTypeCode = beaconTypeCode;
-            if (mServiceUuid != null) {
-                beacon.mServiceUuid = (int) mServiceUuid.longValue();
-            }
-            else {
-                beacon.mServiceUuid = -1;
-            }
+            beacon.mServiceUuid = layout.serviceUuid;
 
             beacon.mBluetoothAddress = macAddress;
             beacon.mBluetoothName= name;
             beacon.mManufacturer = manufacturer;
             beacon.mParserIdentifier = mIdentifier;
-            beacon.mMultiFrameBeacon = extraParsers.size() > 0 || mExtraFrame;
+            beacon.mMultiFrameBeacon = extraParsers.size() > 0 || layout.extraFrame;
         }
         return beacon;
     }
@@ -732,6 +724,7 @@ public class BeaconParser implements Serializable {
 
     public BeaconParser setMatchingBeaconTypeCode(Long typeCode) {
         mMatchingBeaconTypeCode = typeCode;
+        compileLayout();
         return this;
     }
 
@@ -828,6 +821,96 @@ public class BeaconParser implements Serializable {
         return lastEndOffset+1;
     }
 
+    private void compileLayout() {
+        if (mMatchingBeaconTypeCode == null || mMatchingBeaconTypeCodeStartOffset == null ||
+                mMatchingBeaconTypeCodeEndOffset == null) {
+            mCompiledLayout = null;
+        }
+        else {
+            mCompiledLayout = new CompiledLayout(this);
+        }
+    }
+
+    private CompiledLayout getCompiledLayout() {
+        // The compiled layout is transient, so it must be rebuilt after deserialization
+        if (mCompiledLayout == null) {
+            compileLayout();
+        }
+        return mCompiledLayout;
+    }
+
+    /**
+     * Immutable snapshot of a beacon layout using primitive offset tables and precomputed matching
+     * byte sequences.  Built once each time the layout is set and shared by all threads parsing
+     * packets with this <code>BeaconParser</code>.
+     */
+    private static final class CompiledLayout {
+        final int[] identifierStartOffsets;
+        final int[] identifierEndOffsets;
+        final boolean[] identifierLittleEndianFlags;
+        final boolean[] identifierVariableLengthFlags;
+        final int[] dataStartOffsets;
+        final int[] dataEndOffsets;
+        final boolean[] dataLittleEndianFlags;
+        final int typeCodeStartOffset;
+        final int typeCodeEndOffset;
+        final byte[] typeCodeBytes;
+        final int serviceUuidStartOffset;
+        final byte[] serviceUuidBytes;
+        final int serviceUuid;
+        final boolean hasPowerField;
+        final int powerStartOffset;
+        final int powerEndOffset;
+        final int dBmCorrection;
+        final int layoutSize;
+        final boolean extraFrame;
+
+        CompiledLayout(BeaconParser parser) {
+            identifierStartOffsets = toIntArray(parser.mIdentifierStartOffsets);
+            identifierEndOffsets = toIntArray(parser.mIdentifierEndOffsets);
+            identifierLittleEndianFlags = toBooleanArray(parser.mIdentifierLittleEndianFlags);
+            identifierVariableLengthFlags = toBooleanArray(parser.mIdentifierVariableLengthFlags);
+            dataStartOffsets = toIntArray(parser.mDataStartOffsets);
+            dataEndOffsets = toIntArray(parser.mDataEndOffsets);
+            dataLittleEndianFlags = toBooleanArray(parser.mDataLittleEndianFlags);
+            typeCodeStartOffset = parser.mMatchingBeaconTypeCodeStartOffset;
+            typeCodeEndOffset = parser.mMatchingBeaconTypeCodeEndOffset;
+            typeCodeBytes = longToByteArray(parser.mMatchingBeaconTypeCode, typeCodeEndOffset - typeCodeStartOffset + 1);
+            if (parser.mServiceUuid != null) {
+                serviceUuidStartOffset = parser.mServiceUuidStartOffset;
+                serviceUuidBytes = longToByteArray(parser.mServiceUuid, parser.mServiceUuidEndOffset - parser.mServiceUuidStartOffset + 1, false);
+                serviceUuid = (int) parser.mServiceUuid.longValue();
+            }
+            else {
+                serviceUuidStartOffset = 0;
+                serviceUuidBytes = null;
+                serviceUuid = -1;
+            }
+            hasPowerField = parser.mPowerStartOffset != null && parser.mPowerEndOffset != null;
+            powerStartOffset = hasPowerField ? parser.mPowerStartOffset : 0;
+            powerEndOffset = hasPowerField ? parser.mPowerEndOffset : 0;
+            dBmCorrection = parser.mDBmCorrection != null ? parser.mDBmCorrection : 0;
+            layoutSize = parser.mLayoutSize != null ? parser.mLayoutSize : parser.calculateLayoutSize();
+            extraFrame = parser.mExtraFrame != null && parser.mExtraFrame;
+        }
+
+        private static int[] toIntArray(List<Integer> values) {
+            int[] array = new int[values.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = values.get(i);
+            }
+            return array;
+        }
+
+        private static boolean[] toBooleanArray(List<Boolean> values) {
+            boolean[] array = new boolean[values.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = values.get(i);
+            }
+            return array;
+        }
+    }
+
     private boolean byteArraysMatch(byte[] source, int offset, byte[] expected) {
         int length = expected.length;
         if (source.length - offset < length) {
@@ -850,51 +933,24 @@ public class BeaconParser implements Serializable {
         return sb.toString().trim();
     }
 
-    private String byteArrayToFormattedString(byte[] byteBuffer, int startIndex, int endIndex, boolean littleEndian) {
-        byte[] bytes = new byte[endIndex-startIndex+1];
+    /**
+     * Decodes the unsigned integer stored in the inclusive byte range of the buffer directly,
+     * without going through an intermediate String.  Fields longer than eight bytes keep only their
+     * least significant eight bytes.
+     */
+    private static long byteArrayToLong(byte[] byteBuffer, int startIndex, int endIndex, boolean littleEndian) {
+        long value = 0l;
         if (littleEndian) {
-            for (int i = 0; i <= endIndex-startIndex; i++) {
-                bytes[i] = byteBuffer[startIndex+bytes.length-1-i];
+            for (int i = endIndex; i >= startIndex; i--) {
+                value = (value << 8) | (byteBuffer[i] & 0xff);
             }
         }
         else {
-            for (int i = 0; i <= endIndex-startIndex; i++) {
-                bytes[i] = byteBuffer[startIndex+i];
+            for (int i = startIndex; i <= endIndex; i++) {
+                value = (value << 8) | (byteBuffer[i] & 0xff);
             }
         }
-
-
-        int length = endIndex-startIndex +1;
-        // We treat a 1-4 byte number as decimal string
-        if (length < 5) {
-            long number = 0l;
-            for (int i = 0; i < bytes.length; i++)  {
-                long byteValue = (long) (bytes[bytes.length - i-1] & 0xff);
-                long positionValue = (long) Math.pow(256.0,i*1.0);
-                long calculatedValue =  (byteValue * positionValue);
-                number += calculatedValue;
-            }
-            return Long.toString(number);
-        }
-
-        // We treat a 7+ byte number as a hex string
-        String hexString = bytesToHex(bytes);
-
-        // And if it is a 12 byte number we add dashes to it to make it look like a standard UUID
-        if (bytes.length == 16) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(hexString.substring(0,8));
-            sb.append("-");
-            sb.append(hexString.substring(8,12));
-            sb.append("-");
-            sb.append(hexString.substring(12,16));
-            sb.append("-");
-            sb.append(hexString.substring(16,20));
-            sb.append("-");
-            sb.append(hexString.substring(20,32));
-            return sb.toString();
-        }
-        return "0x"+hexString;
+        return value;
     }
 
     @TargetApi(Build.VERSION_CODES.GINGERBREAD)
@@ -0,0 +1,101 @@
+package org.altbeacon.beacon;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.logging.LogManager;
+import org.altbeacon.beacon.service.MonitoringData;
+import org.altbeacon.beacon.service.RangingData;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers ranging and monitoring data to the notifiers without Intents, when the scanner runs in
+ * the main application process.
+ *
+ * The scanner adds data objects to a lock-free queue, which a single dispatcher thread drains in
+ * order, calling the notifiers the same way <code>IntentHandler</code> does for Intents.  Nothing is
+ * packed into a Bundle and the scanner never waits for the notifiers.
+ *
+ * Internal library class.  Do not use directly from outside the library
+ *
+ * @see BeaconManager#setDirectCallbackDeliveryEnabled(boolean)
+ * @hide
+ */
+public class DirectCallbackDispatcher {
+    private static final String TAG = DirectCallbackDispatcher.class.getSimpleName();
+    private static DirectCallbackDispatcher sInstance;
+
+    private final Context mContext;
+    private final IntentHandler mIntentHandler = new IntentHandler();
+    private final ConcurrentLinkedQueue<Object> mQueue = new ConcurrentLinkedQueue<>();
+    private final Thread mThread;
+
+    public static synchronized DirectCallbackDispatcher getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new DirectCallbackDispatcher(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return true if data for the notifiers of this process may be dispatched directly
+     */
+    public static boolean canDispatch(@NonNull Context context) {
+        return BeaconManager.isDirectCallbackDeliveryEnabled() &&
+                BeaconManager.getInstanceForApplication(context).isMainProcess();
+    }
+
+    private DirectCallbackDispatcher(Context context) {
+        mContext = context;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchQueued();
+            }
+        }, "BeaconCallbackDispatcher");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues the ranging data for the range notifiers.  The beacons must not be modified afterwards.
+     */
+    public void dispatch(@NonNull RangingData rangingData) {
+        enqueue(rangingData);
+    }
+
+    /**
+     * Queues the monitoring data for the monitor notifiers.
+     */
+    public void dispatch(@NonNull MonitoringData monitoringData) {
+        enqueue(monitoringData);
+    }
+
+    private void enqueue(Object data) {
+        mQueue.offer(data);
+        LockSupport.unpark(mThread);
+    }
+
+    private void dispatchQueued() {
+        while (true) {
+            Object data = mQueue.poll();
+            if (data == null) {
+                // Returns at once if data was queued since the poll
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                if (data instanceof RangingData) {
+                    mIntentHandler.handleRangingData(mContext, (RangingData) data);
+                }
+                else {
+                    mIntentHandler.handleMonitoringData(mContext, (MonitoringData) data);
+                }
+            } catch (RuntimeException e) {
+                LogManager.e(e, TAG, "Notifier threw an exception");
+            }
+        }
+    }
+}
@@ -38,48 +38,94 @@ class IntentHandler {
         }
 
         if (rangingData != null) {
-            LogManager.d(TAG, "got ranging data");
-            if (rangingData.getBeacons() == null) {
-                LogManager.w(TAG, "Ranging data has a null beacons collection");
-            }
-            Set<RangeNotifier> notifiers = BeaconManager.getInstanceForApplication(context).getRangingNotifiers();
-            java.util.Collection<Beacon> beacons = rangingData.getBeacons();
-            if (notifiers != null) {
-                for(RangeNotifier notifier : notifiers){
-                    notifier.didRangeBeaconsInRegion(beacons, rangingData.getRegion());
-                }
-            }
-            else {
-                LogManager.d(TAG, "but ranging notifier is null, so we're dropping it.");
-            }
-            RangeNotifier dataNotifier = BeaconManager.getInstanceForApplication(context).getDataRequestNotifier();
-            if (dataNotifier != null) {
-                dataNotifier.didRangeBeaconsInRegion(beacons, rangingData.getRegion());
-            }
+            handleRangingData(context, rangingData);
         }
 
         if (monitoringData != null) {
-            LogManager.d(TAG, "got monitoring data");
-            Set<MonitorNotifier> notifiers = BeaconManager.getInstanceForApplication(context).getMonitoringNotifiers();
-            if (notifiers != null) {
-                for(MonitorNotifier notifier : notifiers) {
-                    LogManager.d(TAG, "Calling monitoring notifier: %s", notifier);
-                    Region region = monitoringData.getRegion();
-                    Integer state = monitoringData.isInside() ? MonitorNotifier.INSIDE :
-                            MonitorNotifier.OUTSIDE;
-                    notifier.didDetermineStateForRegion(state, region);
-                    // In case the beacon scanner is running in a separate process, the monitoring
-                    // status in this process  will not have been updated yet as a result of this
-                    // region state change.  We make a call here to keep it in sync.
-                    MonitoringStatus.getInstanceForApplication(context).updateLocalState(region, state);
-                    if (monitoringData.isInside()) {
-                        notifier.didEnterRegion(monitoringData.getRegion());
-                    } else {
-                        notifier.didExitRegion(monitoringData.getRegion());
+            handleMonitoringData(context, monitoringData);
+        }
+    }
+
+    /**
+     * Calls the range notifiers with the ranging data, each on its executor if it has one
+     */
+    void handleRangingData(Context context, RangingData rangingData) {
+        LogManager.d(TAG, "got ranging data");
+        if (rangingData.getBeacons() == null) {
+            LogManager.w(TAG, "Ranging data has a null beacons collection");
+        }
+        BeaconManager beaconManager = BeaconManager.getInstanceForApplication(context);
+        NotifierExecutors executors = beaconManager.getNotifierExecutors();
+        final Region region = rangingData.getRegion();
+        Set<RangeNotifier> notifiers = beaconManager.getRangingNotifiers();
+        java.util.Collection<Beacon> beacons = rangingData.getBeacons();
+        if (rangingData.isDelta()) {
+            final RangeDeltaAccumulator.Delta delta = beaconManager.getRangeDeltaAccumulator().apply(rangingData);
+            for (final RangeDeltaNotifier deltaNotifier : beaconManager.getRangeDeltaNotifiers()) {
+                executors.execute(deltaNotifier, region, new Runnable() {
+                    @Override
+                    public void run() {
+                        deltaNotifier.didRangeBeaconChangesInRegion(delta.appearedBeacons,
+                                delta.changedBeacons, delta.disappearedBeacons, region);
                     }
-                }
+                });
             }
+            beacons = delta.visibleBeacons;
         }
+        else {
+            beaconManager.getRangeDeltaAccumulator().clear(region);
+        }
+        final java.util.Collection<Beacon> rangedBeacons = beacons;
+        if (notifiers != null) {
+            for(final RangeNotifier notifier : notifiers){
+                executors.execute(notifier, region, new Runnable() {
+                    @Override
+                    public void run() {
+                        notifier.didRangeBeaconsInRegion(rangedBeacons, region);
+                    }
+                });
+            }
+        }
+        else {
+            LogManager.d(TAG, "but ranging notifier is null, so we're dropping it.");
+        }
+        RangeNotifier dataNotifier = beaconManager.getDataRequestNotifier();
+        if (dataNotifier != null) {
+            dataNotifier.didRangeBeaconsInRegion(beacons, region);
+        }
+    }
 
+    /**
+     * Calls the monitor notifiers with the monitoring data, each on its executor if it has one
+     */
+    void handleMonitoringData(Context context, final MonitoringData monitoringData) {
+        LogManager.d(TAG, "got monitoring data");
+        BeaconManager beaconManager = BeaconManager.getInstanceForApplication(context);
+        Set<MonitorNotifier> notifiers = beaconManager.getMonitoringNotifiers();
+        if (notifiers != null) {
+            final Region region = monitoringData.getRegion();
+            final Integer state = monitoringData.isInside() ? MonitorNotifier.INSIDE :
+                    MonitorNotifier.OUTSIDE;
+            // In case the beacon scanner is running in a separate process, the monitoring
+            // status in this process  will not have been updated yet as a result of this
+            // region state change.  We make a call here to keep it in sync.
+            if (!notifiers.isEmpty()) {
+                MonitoringStatus.getInstanceForApplication(context).updateLocalState(region, state);
+            }
+            for(final MonitorNotifier notifier : notifiers) {
+                LogManager.d(TAG, "Calling monitoring notifier: %s", notifier);
+                beaconManager.getNotifierExecutors().execute(notifier, region, new Runnable() {
+                    @Override
+                    public void run() {
+                        notifier.didDetermineStateForRegion(state, region);
+                        if (monitoringData.isInside()) {
+                            notifier.didEnterRegion(region);
+                        } else {
+                            notifier.didExitRegion(region);
+                        }
+                    }
+                });
+            }
+        }
     }
 }
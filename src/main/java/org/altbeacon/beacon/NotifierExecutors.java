@@ -0,0 +1,148 @@
+package org.altbeacon.beacon;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs notifier callbacks on the executor set for each notifier, or on a default executor.
+ *
+ * Callbacks for the same notifier and region run one at a time in the order they were submitted,
+ * even on a thread pool, so a notifier never sees an older ranging or monitoring update after a
+ * newer one.  Callbacks for different notifiers or regions may run concurrently.  Notifiers without
+ * an executor are called on the submitting thread, unless callbacks submitted while they had one
+ * are still queued.  Notifiers are told apart by identity, as the lanes are.
+ *
+ * @hide
+ */
+class NotifierExecutors {
+    private static final String TAG = NotifierExecutors.class.getSimpleName();
+
+    private final Map<Object, Executor> mExecutors = Collections.synchronizedMap(new IdentityHashMap<Object, Executor>());
+    @Nullable
+    private volatile Executor mDefaultExecutor;
+    // Lanes with callbacks queued or running.  Guards the state of every lane.
+    private final Map<LaneKey, Lane> mLanes = new HashMap<>();
+
+    void setDefaultExecutor(@Nullable Executor executor) {
+        mDefaultExecutor = executor;
+    }
+
+    void setExecutor(@NonNull Object notifier, @Nullable Executor executor) {
+        if (executor == null) {
+            mExecutors.remove(notifier);
+        }
+        else {
+            mExecutors.put(notifier, executor);
+        }
+    }
+
+    void removeExecutor(@NonNull Object notifier) {
+        mExecutors.remove(notifier);
+    }
+
+    /**
+     * Runs the callback for the notifier after any earlier callbacks for the same notifier and region.
+     */
+    void execute(@NonNull Object notifier, @Nullable Region region, @NonNull Runnable callback) {
+        Executor executor = mExecutors.get(notifier);
+        if (executor == null) {
+            executor = mDefaultExecutor;
+        }
+        LaneKey key = new LaneKey(notifier, region);
+        Lane lane;
+        synchronized (mLanes) {
+            lane = mLanes.get(key);
+            if (lane == null && executor != null) {
+                lane = new Lane(key);
+                mLanes.put(key, lane);
+            }
+            if (lane != null) {
+                // A lane only exists while it has callbacks queued, so even without an executor
+                // this callback has to wait behind them
+                lane.mCallbacks.add(callback);
+                if (lane.mScheduled) {
+                    return;
+                }
+                lane.mScheduled = true;
+            }
+        }
+        if (lane == null) {
+            callback.run();
+            return;
+        }
+        try {
+            executor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            // The lane stays scheduled while it is drained here, so callbacks queued meanwhile by
+            // other threads are run by this loop rather than left on an orphaned lane
+            LogManager.e(e, TAG, "Notifier executor rejected a callback.  Calling notifier on the submitting thread.");
+            lane.run();
+        }
+    }
+
+    private final class Lane implements Runnable {
+        private final LaneKey mKey;
+        private final ArrayDeque<Runnable> mCallbacks = new ArrayDeque<>();
+        private boolean mScheduled;
+
+        Lane(LaneKey key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable callback;
+                synchronized (mLanes) {
+                    callback = mCallbacks.poll();
+                    if (callback == null) {
+                        mScheduled = false;
+                        mLanes.remove(mKey);
+                        return;
+                    }
+                }
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    LogManager.e(e, TAG, "Notifier threw an exception");
+                }
+            }
+        }
+    }
+
+    private static final class LaneKey {
+        private final Object mNotifier;
+        @Nullable
+        private final Region mRegion;
+
+        LaneKey(Object notifier, @Nullable Region region) {
+            mNotifier = notifier;
+            mRegion = region;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mNotifier) + (mRegion == null ? 0 : mRegion.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof LaneKey)) {
+                return false;
+            }
+            LaneKey thatKey = (LaneKey) that;
+            return mNotifier == thatKey.mNotifier &&
+                    (mRegion == null ? thatKey.mRegion == null : mRegion.equals(thatKey.mRegion));
+        }
+    }
+}
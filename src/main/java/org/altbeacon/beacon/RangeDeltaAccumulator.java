@@ -0,0 +1,82 @@
+package org.altbeacon.beacon;
+
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.service.RangingData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies ranging changes from the scanner to the beacons last reported for each region, so that
+ * range notifiers can still be given every visible beacon and changes can be classified as
+ * appeared or changed.
+ *
+ * Internal library class.  Do not use directly from outside the library
+ *
+ * @hide
+ */
+/* package private*/
+class RangeDeltaAccumulator {
+    private final Map<Region, Map<BeaconIdentityKey, Beacon>> mBeaconsByRegion = new HashMap<>();
+
+    static class Delta {
+        final List<Beacon> appearedBeacons = new ArrayList<>();
+        final List<Beacon> changedBeacons = new ArrayList<>();
+        final List<Beacon> disappearedBeacons = new ArrayList<>();
+        Collection<Beacon> visibleBeacons;
+    }
+
+    /**
+     * @param rangingData changes reported by the scanner
+     * @return the changes classified against the beacons already known for the region
+     */
+    @NonNull
+    synchronized Delta apply(@NonNull RangingData rangingData) {
+        Delta delta = new Delta();
+        Map<BeaconIdentityKey, Beacon> beacons = mBeaconsByRegion.get(rangingData.getRegion());
+        if (beacons == null) {
+            beacons = new HashMap<>();
+            mBeaconsByRegion.put(rangingData.getRegion(), beacons);
+        }
+        // On a reset, beacons known here but not reported again have disappeared
+        Map<BeaconIdentityKey, Beacon> forgottenBeacons = new HashMap<>();
+        if (rangingData.isReset()) {
+            forgottenBeacons.putAll(beacons);
+            beacons.clear();
+        }
+        if (rangingData.getBeacons() != null) {
+            for (Beacon beacon : rangingData.getBeacons()) {
+                BeaconIdentityKey key = beacon.getIdentityKey();
+                boolean wasKnown = forgottenBeacons.remove(key) != null;
+                if (beacons.put(key, beacon) == null && !wasKnown) {
+                    delta.appearedBeacons.add(beacon);
+                }
+                else {
+                    delta.changedBeacons.add(beacon);
+                }
+            }
+        }
+        if (rangingData.getRemovedBeacons() != null) {
+            for (Beacon beacon : rangingData.getRemovedBeacons()) {
+                Beacon removed = beacons.remove(beacon.getIdentityKey());
+                if (removed != null) {
+                    delta.disappearedBeacons.add(removed);
+                }
+            }
+        }
+        delta.disappearedBeacons.addAll(forgottenBeacons.values());
+        delta.visibleBeacons = new ArrayList<>(beacons.values());
+        return delta;
+    }
+
+    /**
+     * Forgets the beacons known for a region, for example when it is no longer ranged
+     */
+    synchronized void clear(@NonNull Region region) {
+        mBeaconsByRegion.remove(region);
+    }
+}
@@ -0,0 +1,28 @@
+package org.altbeacon.beacon;
+
+import java.util.Collection;
+
+/**
+ * This interface is implemented by classes that receive only the changes in ranged beacons,
+ * instead of every visible beacon each ranging cycle.  Changes are only reported while range
+ * delta reporting is enabled.
+ *
+ * @see BeaconManager#addRangeDeltaNotifier(RangeDeltaNotifier)
+ * @see BeaconManager#setRangeDeltaReportingEnabled(boolean)
+ * @see BeaconManager#setRangeDeltaThresholds(double, double)
+ */
+public interface RangeDeltaNotifier {
+    /**
+     * Called after a ranging cycle in which beacons in the region appeared, changed or
+     * disappeared.  Not called for cycles without changes.
+     * @param appearedBeacons beacons that are newly visible
+     * @param changedBeacons beacons whose rssi or distance moved past the configured threshold
+     *                       since they were last reported
+     * @param disappearedBeacons beacons that are no longer visible, as they were last reported
+     * @param region the <code>Region</code> object that defines the criteria for the ranged beacons
+     */
+    public void didRangeBeaconChangesInRegion(Collection<Beacon> appearedBeacons,
+                                              Collection<Beacon> changedBeacons,
+                                              Collection<Beacon> disappearedBeacons,
+                                              Region region);
+}
@@ -161,6 +161,14 @@ public class Region implements Parcelable, Serializable {
         return mIdentifiers.size() > i ? mIdentifiers.get(i) : null;
     }
 
+    /**
+     * Returns a copy of the list of identifiers, where null identifiers are wildcards
+     * @return identifiers
+     */
+    public List<Identifier> getIdentifiers() {
+        return new ArrayList<Identifier>(mIdentifiers);
+    }
+
     /**
      * Returns the identifier used to start or stop ranging/monitoring this region when calling
      * the <code>BeaconManager</code> methods.
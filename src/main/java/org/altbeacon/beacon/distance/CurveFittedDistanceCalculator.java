@@ -3,6 +3,8 @@ package org.altbeacon.beacon.distance;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * This class estimates the distance between the mobile device and a BLE beacon based on the measured
  * RSSI and a txPower calibration value that represents the expected RSSI for an iPhone 5 receiving
@@ -12,14 +14,29 @@ import org.altbeacon.beacon.logging.LogManager;
  * be supplied by the caller and are specific to the Android device being used.  See the
  * <code>ModelSpecificDistanceCalculator</code> for more information on the coefficients.
  *
+ * A calculator may optionally answer from a lookup table instead of evaluating the curve.  The
+ * table holds the distance for each txPower from -1 to -127 dBm and each rssi from -0.1 to -127 dBm in
+ * 0.1 dB steps, and the rssi is rounded to the nearest step.  The result is therefore the exact
+ * distance for an rssi at most 0.05 dB away, a relative error of at most about
+ * <code>coefficient2 * 0.05 / |rssi|</code>, or <code>10 * 0.05 / |rssi|</code> closer than one
+ * meter.  For typical coefficients and rssi values weaker than -30 dBm this is under 2%, far below
+ * the noise in the rssi itself.  Values within 0.05 dB of txPower, where the curve is
+ * discontinuous, and values outside the table are calculated exactly.  Rows of the table are built
+ * the first time each txPower is seen.
+ *
  * Created by dyoung on 8/28/14.
  */
 public class CurveFittedDistanceCalculator implements DistanceCalculator {
 
     public static final String TAG = "CurveFittedDistanceCalculator";
+    private static final int LOOKUP_TABLE_MIN_DBM = -127;
+    private static final int LOOKUP_TABLE_STEPS_PER_DB = 10;
+    private static final int LOOKUP_TABLE_ROW_SIZE = -LOOKUP_TABLE_MIN_DBM * LOOKUP_TABLE_STEPS_PER_DB + 1;
     private double mCoefficient1;
     private double mCoefficient2;
     private double mCoefficient3;
+    // Indexed by -txPower - 1, or null if the lookup table is not used
+    private final AtomicReferenceArray<double[]> mLookupTable;
 
     /**
      * Construct a calculator with coefficients specific for the device's signal vs. distance
@@ -29,9 +46,50 @@ public class CurveFittedDistanceCalculator implements DistanceCalculator {
      * @param coefficient3
      */
     public CurveFittedDistanceCalculator(double coefficient1, double coefficient2, double coefficient3) {
+        this(coefficient1, coefficient2, coefficient3, false);
+    }
+
+    /**
+     * Construct a calculator with coefficients specific for the device's signal vs. distance
+     *
+     * @param coefficient1
+     * @param coefficient2
+     * @param coefficient3
+     * @param lookupTableEnabled true to answer from a quantized lookup table, with the error
+     *                           described above
+     */
+    public CurveFittedDistanceCalculator(double coefficient1, double coefficient2, double coefficient3,
+                                         boolean lookupTableEnabled) {
         mCoefficient1 = coefficient1;
         mCoefficient2 = coefficient2;
         mCoefficient3 = coefficient3;
+        mLookupTable = lookupTableEnabled ? new AtomicReferenceArray<double[]>(-LOOKUP_TABLE_MIN_DBM) : null;
+    }
+
+    /**
+     * @return a calculator with the same coefficients that answers from a lookup table
+     */
+    public CurveFittedDistanceCalculator withLookupTable() {
+        if (mLookupTable != null) {
+            return this;
+        }
+        return new CurveFittedDistanceCalculator(mCoefficient1, mCoefficient2, mCoefficient3, true);
+    }
+
+    public boolean isLookupTableEnabled() {
+        return mLookupTable != null;
+    }
+
+    double getCoefficient1() {
+        return mCoefficient1;
+    }
+
+    double getCoefficient2() {
+        return mCoefficient2;
+    }
+
+    double getCoefficient3() {
+        return mCoefficient3;
     }
 
     /**
@@ -47,19 +105,46 @@ public class CurveFittedDistanceCalculator implements DistanceCalculator {
         if (rssi == 0) {
             return -1.0; // if we cannot determine accuracy, return -1.
         }
+        if (mLookupTable != null && txPower < 0 && txPower >= LOOKUP_TABLE_MIN_DBM
+                && rssi <= -1.0 / LOOKUP_TABLE_STEPS_PER_DB && rssi >= LOOKUP_TABLE_MIN_DBM) {
+            double[] row = mLookupTable.get(-txPower - 1);
+            if (row == null) {
+                row = buildLookupTableRow(txPower);
+                mLookupTable.set(-txPower - 1, row);
+            }
+            int index = (int) (-rssi * LOOKUP_TABLE_STEPS_PER_DB + 0.5);
+            // The curve is discontinuous where the rssi equals txPower, so values rounded onto that
+            // step may belong to the other side of it
+            if (index != -txPower * LOOKUP_TABLE_STEPS_PER_DB || rssi == txPower) {
+                return row[index];
+            }
+        }
 
         LogManager.d(TAG, "calculating distance based on mRssi of %s and txPower of %s", rssi, txPower);
 
 
+        double distance = curveDistance(txPower, rssi);
+        LogManager.d(TAG, "avg mRssi: %s distance: %s", rssi, distance);
+        return distance;
+    }
+
+    private double curveDistance(int txPower, double rssi) {
         double ratio = rssi*1.0/txPower;
-        double distance;
         if (ratio < 1.0) {
-            distance =  Math.pow(ratio,10);
+            return Math.pow(ratio,10);
         }
         else {
-            distance =  (mCoefficient1)*Math.pow(ratio,mCoefficient2) + mCoefficient3;
+            return (mCoefficient1)*Math.pow(ratio,mCoefficient2) + mCoefficient3;
         }
-        LogManager.d(TAG, "avg mRssi: %s distance: %s", rssi, distance);
-        return distance;
+    }
+
+    private double[] buildLookupTableRow(int txPower) {
+        LogManager.d(TAG, "building distance lookup table for txPower of %s", txPower);
+        // Index 0, an rssi of 0, is never looked up
+        double[] row = new double[LOOKUP_TABLE_ROW_SIZE];
+        for (int i = 1; i < LOOKUP_TABLE_ROW_SIZE; i++) {
+            row[i] = curveDistance(txPower, -(double) i / LOOKUP_TABLE_STEPS_PER_DB);
+        }
+        return row;
     }
 }
@@ -6,6 +6,8 @@ import android.content.pm.PackageManager;
 import android.os.AsyncTask;
 import android.os.Build;
 
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.BuildConfig;
 import org.altbeacon.beacon.logging.LogManager;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -38,6 +40,11 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * The configuration table is stored in model-distance-calculations.json
  *
+ * The model chosen and its coefficients are cached in memory and in a file, keyed by the requested
+ * device model, so later instances do not parse the table or score its models again until the
+ * library is upgraded or an updated table is downloaded.  Use <code>createInBackground</code> to
+ * do even that on a background thread.
+ *
  * For information on how to get new Android device models added to this table, please
  * see <a href='http://altbeacon.github.io/android-beacon-library/distance-calculations.html'
  * Optimizing Distance Calculations</a>
@@ -48,8 +55,15 @@ public class ModelSpecificDistanceCalculator implements DistanceCalculator {
     Map<AndroidModel,DistanceCalculator> mModelMap;
     private static final String CONFIG_FILE = "model-distance-calculations.json";
     private static final String TAG = "ModelSpecificDistanceCalculator";
+    private static final String RESOLVED_MODEL_FILE = "model-distance-resolved.dat";
+    private static final String TEMP_RESOLVED_MODEL_FILE = "model-distance-resolved-temp.dat";
+    private static final Map<String, ResolvedModel> sResolvedModels = new HashMap<>();
+    // Coefficients of the model marked as the default in model-distance-calculations.json
+    private static final double DEFAULT_COEFFICIENT1 = 0.42093;
+    private static final double DEFAULT_COEFFICIENT2 = 6.9476;
+    private static final double DEFAULT_COEFFICIENT3 = 0.54992;
     private AndroidModel mDefaultModel;
-    private DistanceCalculator mDistanceCalculator;
+    private volatile DistanceCalculator mDistanceCalculator;
     private AndroidModel mModel;
     private AndroidModel mRequestedModel;
     private String mRemoteUpdateUrlString = null;
@@ -72,8 +86,37 @@ public class ModelSpecificDistanceCalculator implements DistanceCalculator {
         mRequestedModel = model;
         mRemoteUpdateUrlString = remoteUpdateUrlString;
         mContext = context;
-        loadModelMap();
-        mDistanceCalculator = findCalculatorForModelWithLock(model);
+        if (!loadResolvedModel()) {
+            loadModelMap();
+            saveResolvedModel();
+        }
+    }
+
+    /**
+     * Returns a calculator that constructs a <code>ModelSpecificDistanceCalculator</code> for this
+     * device on a background thread, so that creating it never delays the start of scanning or the
+     * first distance calculation.  Until it is constructed, distances are calculated with the
+     * coefficients of the default model.
+     */
+    public static DistanceCalculator createInBackground(final Context context, final String remoteUpdateUrlString) {
+        final BackgroundDistanceCalculator calculator = new BackgroundDistanceCalculator();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                calculator.mCalculator = new ModelSpecificDistanceCalculator(context, remoteUpdateUrlString);
+            }
+        });
+        return calculator;
+    }
+
+    private static class BackgroundDistanceCalculator implements DistanceCalculator {
+        volatile DistanceCalculator mCalculator = withLookupTableIfEnabled(
+                new CurveFittedDistanceCalculator(DEFAULT_COEFFICIENT1, DEFAULT_COEFFICIENT2, DEFAULT_COEFFICIENT3));
+
+        @Override
+        public double calculateDistance(int txPower, double rssi) {
+            return mCalculator.calculateDistance(txPower, rssi);
+        }
     }
 
     /**
@@ -136,7 +179,91 @@ public class ModelSpecificDistanceCalculator implements DistanceCalculator {
             mModel = mDefaultModel;
             LogManager.w(TAG, "Cannot find match for this device.  Using default");
         }
-        return mModelMap.get(mModel);
+        return withLookupTableIfEnabled(mModelMap.get(mModel));
+    }
+
+    private static DistanceCalculator withLookupTableIfEnabled(DistanceCalculator calculator) {
+        if (BeaconManager.isDistanceLookupTableEnabled() && calculator instanceof CurveFittedDistanceCalculator) {
+            return ((CurveFittedDistanceCalculator) calculator).withLookupTable();
+        }
+        return calculator;
+    }
+
+    /**
+     * Uses the model previously resolved for the requested model, if it is still valid.
+     *
+     * @return true if a resolved model was found
+     */
+    private boolean loadResolvedModel() {
+        long modelFileLastModified = modelFileLastModified();
+        if (mRemoteUpdateUrlString != null && modelFileLastModified == 0) {
+            // No update has been downloaded yet, so resolve in full to request one
+            return false;
+        }
+        String key = resolvedModelKey();
+        ResolvedModel resolvedModel;
+        synchronized (sResolvedModels) {
+            resolvedModel = sResolvedModels.get(key);
+        }
+        if (resolvedModel == null && mContext != null) {
+            resolvedModel = ResolvedModel.read(new File(mContext.getFilesDir(), RESOLVED_MODEL_FILE));
+        }
+        if (resolvedModel == null || !resolvedModel.mKey.equals(key) ||
+                resolvedModel.mModelFileLastModified != modelFileLastModified) {
+            return false;
+        }
+        synchronized (sResolvedModels) {
+            sResolvedModels.put(key, resolvedModel);
+        }
+        LogManager.d(TAG, "Using previously resolved distance model %s", resolvedModel.mModel.getModel());
+        mModel = resolvedModel.mModel;
+        mDistanceCalculator = withLookupTableIfEnabled(resolvedModel.newCalculator());
+        return true;
+    }
+
+    /**
+     * Caches the model resolved from the model map for later instances.
+     */
+    private void saveResolvedModel() {
+        DistanceCalculator calculator;
+        AndroidModel model;
+        mLock.lock();
+        try {
+            model = mModel;
+            calculator = mModelMap == null || model == null ? null : mModelMap.get(model);
+        } finally {
+            mLock.unlock();
+        }
+        if (!(calculator instanceof CurveFittedDistanceCalculator)) {
+            return;
+        }
+        CurveFittedDistanceCalculator curveFittedCalculator = (CurveFittedDistanceCalculator) calculator;
+        ResolvedModel resolvedModel = new ResolvedModel(resolvedModelKey(), modelFileLastModified(), model,
+                curveFittedCalculator.getCoefficient1(), curveFittedCalculator.getCoefficient2(),
+                curveFittedCalculator.getCoefficient3());
+        synchronized (sResolvedModels) {
+            sResolvedModels.put(resolvedModel.mKey, resolvedModel);
+        }
+        if (mContext != null) {
+            resolvedModel.write(new File(mContext.getFilesDir(), RESOLVED_MODEL_FILE),
+                    new File(mContext.getFilesDir(), TEMP_RESOLVED_MODEL_FILE));
+        }
+    }
+
+    private String resolvedModelKey() {
+        return BuildConfig.VERSION_NAME + "\n" + mRemoteUpdateUrlString + "\n" +
+                mRequestedModel.getVersion() + "\n" + mRequestedModel.getBuildNumber() + "\n" +
+                mRequestedModel.getModel() + "\n" + mRequestedModel.getManufacturer();
+    }
+
+    /**
+     * @return the modification time of the downloaded model map, or 0 if there is none
+     */
+    private long modelFileLastModified() {
+        if (mRemoteUpdateUrlString == null || mContext == null) {
+            return 0;
+        }
+        return new File(mContext.getFilesDir(), CONFIG_FILE).lastModified();
     }
 
     private void loadModelMap() {
@@ -249,6 +376,7 @@ public class ModelSpecificDistanceCalculator implements DistanceCalculator {
                         if (saveJson(body)) {
                             loadModelMapFromFile();
                             mDistanceCalculator = findCalculatorForModelWithLock(mRequestedModel);
+                            saveResolvedModel();
                             LogManager.i(TAG, "Successfully updated distance model with latest from online database");
                         }
                     } catch (JSONException e) {
@@ -0,0 +1,137 @@
+package org.altbeacon.beacon.distance;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The distance model chosen for a device, saved so later runs can skip parsing the model map and
+ * scoring every model.
+ *
+ * The key identifies everything the choice depends on: the library version (which determines the
+ * bundled model map), the remote update url and the requested device model.  The modification time
+ * of the downloaded model map is saved too, so a newly downloaded map invalidates the choice.
+ *
+ * @hide
+ */
+class ResolvedModel {
+    private static final String TAG = ResolvedModel.class.getSimpleName();
+    // Writers in several threads share the temp file
+    private static final Object WRITE_LOCK = new Object();
+    private static final int MAGIC = 0x414d444c;
+    private static final int VERSION = 1;
+
+    final String mKey;
+    final long mModelFileLastModified;
+    final AndroidModel mModel;
+    final double mCoefficient1;
+    final double mCoefficient2;
+    final double mCoefficient3;
+
+    ResolvedModel(@NonNull String key, long modelFileLastModified, @NonNull AndroidModel model,
+                  double coefficient1, double coefficient2, double coefficient3) {
+        mKey = key;
+        mModelFileLastModified = modelFileLastModified;
+        mModel = model;
+        mCoefficient1 = coefficient1;
+        mCoefficient2 = coefficient2;
+        mCoefficient3 = coefficient3;
+    }
+
+    CurveFittedDistanceCalculator newCalculator() {
+        return new CurveFittedDistanceCalculator(mCoefficient1, mCoefficient2, mCoefficient3);
+    }
+
+    /**
+     * @return the model saved in the file, or null if there is none or it cannot be read
+     */
+    @Nullable
+    static ResolvedModel read(@NonNull File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                LogManager.w(TAG, "Ignoring resolved distance model file in an unknown format");
+                return null;
+            }
+            String key = in.readUTF();
+            long modelFileLastModified = in.readLong();
+            AndroidModel model = new AndroidModel(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+            return new ResolvedModel(key, modelFileLastModified, model, in.readDouble(), in.readDouble(),
+                    in.readDouble());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogManager.w(TAG, "Cannot read resolved distance model, message: %s", e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the model to a temporary file and renames it over the file, so a reader never sees a
+     * partly written file.
+     */
+    void write(@NonNull File file, @NonNull File tempFile) {
+        synchronized (WRITE_LOCK) {
+            writeLocked(file, tempFile);
+        }
+    }
+
+    private void writeLocked(File file, File tempFile) {
+        FileOutputStream outputStream = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(mKey);
+            out.writeLong(mModelFileLastModified);
+            out.writeUTF(nonNull(mModel.getVersion()));
+            out.writeUTF(nonNull(mModel.getBuildNumber()));
+            out.writeUTF(nonNull(mModel.getModel()));
+            out.writeUTF(nonNull(mModel.getManufacturer()));
+            out.writeDouble(mCoefficient1);
+            out.writeDouble(mCoefficient2);
+            out.writeDouble(mCoefficient3);
+            out.flush();
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(bytes.toByteArray());
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file)) {
+                LogManager.w(TAG, "Cannot save resolved distance model: Cannot rename temp file.");
+            }
+        } catch (IOException e) {
+            LogManager.w(e, TAG, "Cannot save resolved distance model");
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static String nonNull(String string) {
+        return string == null ? "" : string;
+    }
+}
@@ -29,6 +29,33 @@ public class ArmaRssiFilter implements RssiFilter {
         this.armaSpeed = DEFAULT_ARMA_SPEED;
     }
 
+    /**
+     * @param armaSpeed the coefficient c described above, overriding the default
+     */
+    public ArmaRssiFilter(double armaSpeed) {
+        this.armaSpeed = armaSpeed;
+    }
+
+    /**
+     * Returns a factory for filters with the given coefficient
+     * @param armaSpeed the coefficient c described above
+     * @return factory
+     */
+    public static RssiFilter.Factory factory(final double armaSpeed) {
+        return new RecyclingRssiFilterFactory<ArmaRssiFilter>(ArmaRssiFilter.class) {
+            @Override
+            ArmaRssiFilter newFilter() {
+                return new ArmaRssiFilter(armaSpeed);
+            }
+
+            @Override
+            void resetFilter(ArmaRssiFilter filter) {
+                filter.isInitialized = false;
+                filter.armaMeasurement = 0;
+            }
+        };
+    }
+
     public void addMeasurement(Integer rssi) {
         LogManager.d(TAG, "adding rssi: %s", rssi);
         //use first measurement as initialization
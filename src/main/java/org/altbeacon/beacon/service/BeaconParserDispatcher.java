@@ -0,0 +1,272 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.AltBeaconParser;
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconParser;
+import org.altbeacon.beacon.logging.LogManager;
+import org.altbeacon.bluetooth.PduCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Picks the <code>BeaconParser</code> that can decode a scan record without trying every
+ * registered parser in turn.
+ *
+ * Parsers built from a beacon layout are indexed by the bytes they match on: the optional service
+ * UUID and the beacon type code.  For each scan record the dispatcher locates the PDU the parsers
+ * would look at once, reads the bytes at each distinct set of match offsets, and only hands the
+ * record to the parsers registered under that key.  Parsers that cannot be indexed (for example
+ * subclasses that override <code>fromScanData</code> with their own matching logic) are tried
+ * after the indexed candidates, just like before.
+ *
+ * Instances are immutable and may be shared between scan processing threads.
+ *
+ * @hide
+ */
+class BeaconParserDispatcher {
+    private static final String TAG = BeaconParserDispatcher.class.getSimpleName();
+    private static final BeaconParser[] NO_PARSERS = new BeaconParser[0];
+
+    private final MatchGroup[] mMatchGroups;
+    private final BeaconParser[] mUnindexedParsers;
+
+    /**
+     * @param beaconParsers the registered parsers.  Extra data parsers attached to these parsers are
+     *                      included automatically.
+     */
+    BeaconParserDispatcher(@NonNull Collection<BeaconParser> beaconParsers) {
+        Set<BeaconParser> allParsers = new LinkedHashSet<>();
+        for (BeaconParser beaconParser : beaconParsers) {
+            allParsers.add(beaconParser);
+            allParsers.addAll(beaconParser.getExtraDataParsers());
+        }
+
+        // Group parsers by the offsets of the bytes they match on.  Parsers in the same group can
+        // be looked up with a single read of the scan record.
+        TreeMap<String, List<BeaconParser>> parsersBySignature = new TreeMap<>();
+        List<BeaconParser> unindexedParsers = new ArrayList<>();
+        for (BeaconParser beaconParser : allParsers) {
+            MatchSignature signature = MatchSignature.of(beaconParser);
+            if (signature == null) {
+                unindexedParsers.add(beaconParser);
+                continue;
+            }
+            List<BeaconParser> parsers = parsersBySignature.get(signature.toString());
+            if (parsers == null) {
+                parsers = new ArrayList<>();
+                parsersBySignature.put(signature.toString(), parsers);
+            }
+            parsers.add(beaconParser);
+        }
+        mMatchGroups = new MatchGroup[parsersBySignature.size()];
+        int groupIndex = 0;
+        for (List<BeaconParser> parsers : parsersBySignature.values()) {
+            mMatchGroups[groupIndex++] = new MatchGroup(parsers);
+        }
+        mUnindexedParsers = unindexedParsers.toArray(new BeaconParser[unindexedParsers.size()]);
+        LogManager.d(TAG, "Indexed beacon parsers into %d groups with %d unindexed parsers",
+                mMatchGroups.length, mUnindexedParsers.length);
+    }
+
+    /**
+     * Decodes a scan record with the first candidate parser that accepts it.
+     *
+     * @return the beacon, or null if no registered parser matches the scan record
+     */
+    @Nullable
+    Beacon fromScanData(@NonNull byte[] scanRecord, int rssi, @Nullable BluetoothDevice device) {
+        return fromScanData(new PduCursor(scanRecord), rssi, device);
+    }
+
+    /**
+     * Decodes the advertisement under the cursor with the first candidate parser that accepts it.
+     * The beacon PDU is located once and the same cursor is handed to every candidate parser.
+     *
+     * @return the beacon, or null if no registered parser matches the scan record
+     */
+    @Nullable
+    Beacon fromScanData(@NonNull PduCursor advertisement, int rssi, @Nullable BluetoothDevice device) {
+        byte[] scanRecord = advertisement.getBytes();
+        if (advertisement.moveToBeaconPdu()) {
+            int pduStartIndex = advertisement.getStartIndex();
+            for (MatchGroup matchGroup : mMatchGroups) {
+                for (BeaconParser beaconParser : matchGroup.candidatesFor(scanRecord, pduStartIndex)) {
+                    Beacon beacon = beaconParser.fromScanData(advertisement, rssi, device);
+                    if (beacon != null) {
+                        return beacon;
+                    }
+                }
+            }
+        }
+        for (BeaconParser beaconParser : mUnindexedParsers) {
+            Beacon beacon = beaconParser.fromScanData(scanRecord, rssi, device);
+            if (beacon != null) {
+                return beacon;
+            }
+        }
+        return null;
+    }
+
+    private static boolean canRead(byte[] bytes, int offset, int length) {
+        return bytes.length - offset >= length;
+    }
+
+    /**
+     * Reads up to eight bytes as a big endian unsigned value
+     */
+    private static long readLong(byte[] bytes, int offset, int length) {
+        long value = 0l;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Offsets and expected bytes that a layout based parser matches on.
+     */
+    private static final class MatchSignature {
+        final int typeCodeOffset;
+        final byte[] typeCodeBytes;
+        final int serviceUuidOffset;
+        final byte[] serviceUuidBytes;
+
+        private MatchSignature(int typeCodeOffset, byte[] typeCodeBytes, int serviceUuidOffset, byte[] serviceUuidBytes) {
+            this.typeCodeOffset = typeCodeOffset;
+            this.typeCodeBytes = typeCodeBytes;
+            this.serviceUuidOffset = serviceUuidOffset;
+            this.serviceUuidBytes = serviceUuidBytes;
+        }
+
+        /**
+         * @return the signature, or null if the parser cannot be indexed
+         */
+        @Nullable
+        static MatchSignature of(BeaconParser beaconParser) {
+            if (beaconParser.getLayout() == null || beaconParser.getMatchingBeaconTypeCode() == null ||
+                    !usesLayoutMatching(beaconParser)) {
+                return null;
+            }
+            int typeCodeOffset = beaconParser.getMatchingBeaconTypeCodeStartOffset();
+            int typeCodeLength = beaconParser.getMatchingBeaconTypeCodeEndOffset() - typeCodeOffset + 1;
+            byte[] typeCodeBytes = BeaconParser.longToByteArray(beaconParser.getMatchingBeaconTypeCode(), typeCodeLength);
+            int serviceUuidOffset = 0;
+            byte[] serviceUuidBytes = new byte[0];
+            if (beaconParser.getServiceUuid() != null) {
+                serviceUuidOffset = beaconParser.getMServiceUuidStartOffset();
+                int serviceUuidLength = beaconParser.getServiceUuidEndOffset() - serviceUuidOffset + 1;
+                serviceUuidBytes = BeaconParser.longToByteArray(beaconParser.getServiceUuid(), serviceUuidLength, false);
+            }
+            if (typeCodeBytes.length + serviceUuidBytes.length > 8) {
+                // The combined key must fit in a long
+                return null;
+            }
+            return new MatchSignature(typeCodeOffset, typeCodeBytes, serviceUuidOffset, serviceUuidBytes);
+        }
+
+        long key() {
+            return (readLong(serviceUuidBytes, 0, serviceUuidBytes.length) << (8 * typeCodeBytes.length))
+                    | readLong(typeCodeBytes, 0, typeCodeBytes.length);
+        }
+
+        @Override
+        public String toString() {
+            return typeCodeOffset + ":" + typeCodeBytes.length + "/" + serviceUuidOffset + ":" + serviceUuidBytes.length;
+        }
+
+        /**
+         * Subclasses that override any <code>fromScanData</code> method, including the protected
+         * ones taking the beacon to fill in, may match packets in ways the layout does not
+         * describe, so they are always tried.
+         */
+        private static boolean usesLayoutMatching(BeaconParser beaconParser) {
+            for (Class<?> parserClass = beaconParser.getClass(); parserClass != BeaconParser.class;
+                 parserClass = parserClass.getSuperclass()) {
+                if (parserClass != AltBeaconParser.class && overridesFromScanData(parserClass)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean overridesFromScanData(Class<?> parserClass) {
+            return declaresMethod(parserClass, byte[].class, int.class, BluetoothDevice.class) ||
+                    declaresMethod(parserClass, PduCursor.class, int.class, BluetoothDevice.class) ||
+                    declaresMethod(parserClass, byte[].class, int.class, BluetoothDevice.class, Beacon.class) ||
+                    declaresMethod(parserClass, PduCursor.class, int.class, BluetoothDevice.class, Beacon.class);
+        }
+
+        private static boolean declaresMethod(Class<?> parserClass, Class<?>... parameterTypes) {
+            try {
+                parserClass.getDeclaredMethod("fromScanData", parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parsers sharing the same match offsets, stored as a sorted key table for allocation free
+     * binary search lookups.
+     */
+    private static final class MatchGroup {
+        private final int mTypeCodeOffset;
+        private final int mTypeCodeLength;
+        private final int mServiceUuidOffset;
+        private final int mServiceUuidLength;
+        private final long[] mKeys;
+        private final BeaconParser[][] mCandidates;
+
+        MatchGroup(List<BeaconParser> beaconParsers) {
+            MatchSignature first = MatchSignature.of(beaconParsers.get(0));
+            mTypeCodeOffset = first.typeCodeOffset;
+            mTypeCodeLength = first.typeCodeBytes.length;
+            mServiceUuidOffset = first.serviceUuidOffset;
+            mServiceUuidLength = first.serviceUuidBytes.length;
+
+            TreeMap<Long, List<BeaconParser>> parsersByKey = new TreeMap<>();
+            for (BeaconParser beaconParser : beaconParsers) {
+                long key = MatchSignature.of(beaconParser).key();
+                List<BeaconParser> parsers = parsersByKey.get(key);
+                if (parsers == null) {
+                    parsers = new ArrayList<>();
+                    parsersByKey.put(key, parsers);
+                }
+                parsers.add(beaconParser);
+            }
+            mKeys = new long[parsersByKey.size()];
+            mCandidates = new BeaconParser[parsersByKey.size()][];
+            int index = 0;
+            for (Long key : parsersByKey.keySet()) {
+                List<BeaconParser> parsers = parsersByKey.get(key);
+                mKeys[index] = key;
+                mCandidates[index] = parsers.toArray(new BeaconParser[parsers.size()]);
+                index++;
+            }
+        }
+
+        BeaconParser[] candidatesFor(byte[] scanRecord, int pduStartIndex) {
+            int typeCodeIndex = pduStartIndex + mTypeCodeOffset;
+            int serviceUuidIndex = pduStartIndex + mServiceUuidOffset;
+            if (!canRead(scanRecord, typeCodeIndex, mTypeCodeLength) ||
+                    !canRead(scanRecord, serviceUuidIndex, mServiceUuidLength)) {
+                return NO_PARSERS;
+            }
+            long key = (readLong(scanRecord, serviceUuidIndex, mServiceUuidLength) << (8 * mTypeCodeLength))
+                    | readLong(scanRecord, typeCodeIndex, mTypeCodeLength);
+            int index = Arrays.binarySearch(mKeys, key);
+            return index >= 0 ? mCandidates[index] : NO_PARSERS;
+        }
+    }
+}
@@ -52,6 +52,7 @@ import org.altbeacon.beacon.distance.DistanceCalculator;
 import org.altbeacon.beacon.distance.ModelSpecificDistanceCalculator;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.service.scanner.CycledLeScanCallback;
+import org.altbeacon.beacon.service.scanner.CycledLeScanner;
 import org.altbeacon.beacon.startup.StartupBroadcastReceiver;
 import org.altbeacon.beacon.utils.ProcessUtils;
 import org.altbeacon.bluetooth.BluetoothCrashResolver;
@@ -74,6 +75,8 @@ public class BeaconService extends Service {
     private final Handler handler = new Handler();
     private BluetoothCrashResolver bluetoothCrashResolver;
     private ScanHelper mScanHelper;
+    // Used to share scan state with the app process when this service runs in a separate process
+    private SharedScanState mSharedScanState;
     /*
      * The scan period is how long we wait between restarting the BLE advertisement scans
      * Each time we restart we only see the unique advertisements once (e.g. unique beacons)
@@ -214,6 +217,8 @@ public class BeaconService extends Service {
             LogManager.i(TAG, "beaconService version %s is starting up on a separate process", BuildConfig.VERSION_NAME);
             ProcessUtils processUtils = new ProcessUtils(this);
             LogManager.i(TAG, "beaconService PID is "+processUtils.getPid()+" with process name "+processUtils.getProcessName());
+            mSharedScanState = SharedScanState.getInstance(this);
+            MonitoringStatus.getInstanceForApplication(this).setSharedScanState(mSharedScanState);
         }
 
         try {
@@ -227,7 +232,7 @@ public class BeaconService extends Service {
 
         mScanHelper.reloadParsers();
 
-        DistanceCalculator defaultDistanceCalculator =  new ModelSpecificDistanceCalculator(this, BeaconManager.getDistanceModelUpdateUrl());
+        DistanceCalculator defaultDistanceCalculator = ModelSpecificDistanceCalculator.createInBackground(this, BeaconManager.getDistanceModelUpdateUrl());
         Beacon.setDistanceCalculator(defaultDistanceCalculator);
 
         // Look for simulated scan data
@@ -280,9 +285,19 @@ public class BeaconService extends Service {
         bluetoothCrashResolver.stop();
         LogManager.i(TAG, "onDestroy called.  stopping scanning");
         handler.removeCallbacksAndMessages(null);
-        mScanHelper.getCycledScanner().stop();
-        mScanHelper.getCycledScanner().destroy();
+        final CycledLeScanner scanner = mScanHelper.getCycledScanner();
+        // Waits for the final scan cycle to end before status preservation stops
+        scanner.runOnCycleThreadAndWait(new Runnable() {
+            @Override
+            public void run() {
+                scanner.stop();
+                scanner.destroy();
+            }
+        });
         mScanHelper.getMonitoringStatus().stopStatusPreservation();
+        if (mSharedScanState != null) {
+            mSharedScanState.publishStopped();
+        }
     }
 
     @Override
@@ -313,7 +328,8 @@ public class BeaconService extends Service {
                 LogManager.i(TAG, "Already ranging that region -- will replace existing region.");
                 mScanHelper.getRangedRegionState().remove(region); // need to remove it, otherwise the old object will be retained because they are .equal //FIXME That is not true
             }
-            mScanHelper.getRangedRegionState().put(region, new RangeState(callback));
+            mScanHelper.getRangedRegionState().put(region, new RangeState(callback, region));
+            mScanHelper.rangedRegionsChanged();
             LogManager.d(TAG, "Currently ranging %s regions.", mScanHelper.getRangedRegionState().size());
         }
         mScanHelper.getCycledScanner().start();
@@ -324,6 +340,7 @@ public class BeaconService extends Service {
         int rangedRegionCount;
         synchronized (mScanHelper.getRangedRegionState()) {
             mScanHelper.getRangedRegionState().remove(region);
+            mScanHelper.rangedRegionsChanged();
             rangedRegionCount = mScanHelper.getRangedRegionState().size();
             LogManager.d(TAG, "Currently ranging %s regions.", mScanHelper.getRangedRegionState().size());
         }
@@ -354,6 +371,9 @@ public class BeaconService extends Service {
     @MainThread
     public void setScanPeriods(long scanPeriod, long betweenScanPeriod, boolean backgroundFlag) {
         mScanHelper.getCycledScanner().setScanPeriods(scanPeriod, betweenScanPeriod, backgroundFlag);
+        if (mSharedScanState != null) {
+            mSharedScanState.publishScanPeriods(scanPeriod, betweenScanPeriod);
+        }
     }
 
     public void reloadParsers() {
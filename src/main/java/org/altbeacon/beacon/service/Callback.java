@@ -29,12 +29,16 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
 
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconBatchCodec;
 import org.altbeacon.beacon.BeaconLocalBroadcastProcessor;
 import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.DirectCallbackDispatcher;
 import org.altbeacon.beacon.logging.LogManager;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.List;
 
 public class Callback implements Serializable {
     private static final String TAG = "Callback";
@@ -43,6 +47,44 @@ public class Callback implements Serializable {
     public Callback(String intentPackageName) {
     }
 
+    /**
+     * Delivers ranging data to the range notifiers, directly if they are in this process and
+     * direct delivery is enabled, otherwise via intent
+     *
+     * @return false if the callback cannot be made
+     */
+    public boolean call(Context context, RangingData rangingData) {
+        if (DirectCallbackDispatcher.canDispatch(context)
+                && BeaconBatchCodec.canEncode(rangingData.getBeacons())
+                && (rangingData.getRemovedBeacons() == null || BeaconBatchCodec.canEncode(rangingData.getRemovedBeacons()))) {
+            LogManager.d(TAG, "attempting callback via direct dispatch");
+            // The scanner keeps updating its beacons, so the notifiers get copies
+            List<Beacon> beacons = BeaconBatchCodec.copyBeacons(rangingData.getBeacons());
+            RangingData copy = rangingData.isDelta() ?
+                    new RangingData(beacons, BeaconBatchCodec.copyBeacons(rangingData.getRemovedBeacons()),
+                            rangingData.isReset(), rangingData.getRegion()) :
+                    new RangingData(beacons, rangingData.getRegion());
+            DirectCallbackDispatcher.getInstance(context).dispatch(copy);
+            return true;
+        }
+        return call(context, "rangingData", rangingData.toBundle());
+    }
+
+    /**
+     * Delivers monitoring data to the monitor notifiers, directly if they are in this process and
+     * direct delivery is enabled, otherwise via intent
+     *
+     * @return false if the callback cannot be made
+     */
+    public boolean call(Context context, MonitoringData monitoringData) {
+        if (DirectCallbackDispatcher.canDispatch(context)) {
+            LogManager.d(TAG, "attempting callback via direct dispatch");
+            DirectCallbackDispatcher.getInstance(context).dispatch(monitoringData);
+            return true;
+        }
+        return call(context, "monitoringData", monitoringData.toBundle());
+    }
+
     /**
      * Tries making the callback, first via messenger, then via intent
      *
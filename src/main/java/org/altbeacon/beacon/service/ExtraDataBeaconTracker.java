@@ -1,21 +1,53 @@
 package org.altbeacon.beacon.service;
 
+import android.os.SystemClock;
+
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconBatchCodec;
+import org.altbeacon.beacon.BeaconIdentityKey;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Keeps track of beacons that have ever been seen and
+ * Keeps track of recently seen beacons and
  * merges them together depending on configured beacon parsers
+ *
+ * Beacons are grouped by device, keyed by the bluetooth address (and service uuid) packed into a
+ * long.  The number of devices is bounded: when the limit is reached the least recently seen device
+ * is dropped, and devices not seen within the time to live are dropped as well, so rotating random
+ * addresses cannot make the tracker grow without limit.
  * Created by dyoung on 5/5/15.
  */
 public class ExtraDataBeaconTracker implements Serializable {
     private static final String TAG = "BeaconTracker";
-    // This is a lookup table to find tracked beacons by the calculated beacon key
-    private HashMap<String,HashMap<Integer,Beacon>> mBeaconsByKey = new HashMap<String,HashMap<Integer,Beacon>>();
+    public static final int DEFAULT_MAX_TRACKED_DEVICES = 1000;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000L;
+    private static volatile int sMaxTrackedDevices = DEFAULT_MAX_TRACKED_DEVICES;
+    private static volatile long sTimeToLiveMillis = DEFAULT_TIME_TO_LIVE_MILLIS;
+
+    // This is a lookup table to find tracked beacons by the calculated beacon key, in order of
+    // when each device was last seen, least recently seen first
+    private LinkedHashMap<Long,TrackedDevice> mDevicesByKey = new LinkedHashMap<Long,TrackedDevice>(16, 0.75f, true);
 
     private boolean matchBeaconsByServiceUUID = true;
+
+    // Only set on trackers split into shards: the number of shards sharing the device limit, and
+    // the devices changed or evicted since the changes were last taken
+    private transient int mShardCount = 1;
+    private transient HashMap<Long,TrackedDevice> mChangedDevices;
+    private transient HashSet<Long> mEvictedKeys;
+
     public ExtraDataBeaconTracker() {
     }
 
@@ -23,6 +55,26 @@ public class ExtraDataBeaconTracker implements Serializable {
         this.matchBeaconsByServiceUUID = matchBeaconsByServiceUUID;
     }
 
+    /**
+     * Sets how many devices the tracker remembers extra data frames for, and for how long after a
+     * device was last seen.
+     *
+     * @param maxTrackedDevices
+     * @param timeToLiveMillis
+     */
+    public static void setLimits(int maxTrackedDevices, long timeToLiveMillis) {
+        sMaxTrackedDevices = Math.max(1, maxTrackedDevices);
+        sTimeToLiveMillis = timeToLiveMillis;
+    }
+
+    public static int getMaxTrackedDevices() {
+        return sMaxTrackedDevices;
+    }
+
+    public static long getTimeToLiveMillis() {
+        return sTimeToLiveMillis;
+    }
+
     /**
      * Tracks a beacon. For Gatt-based beacons, returns a merged copy of fields from multiple
      * frames.  Returns null when passed a Gatt-based beacon that has is only extra beacon data.
@@ -30,10 +82,14 @@ public class ExtraDataBeaconTracker implements Serializable {
      * @param beacon
      * @return
      */
-    public synchronized Beacon track(Beacon beacon) {
+    public Beacon track(Beacon beacon) {
+        return track(beacon, SystemClock.elapsedRealtime());
+    }
+
+    synchronized Beacon track(Beacon beacon, long now) {
         Beacon trackedBeacon = null;
         if (beacon.isMultiFrameBeacon() || beacon.getServiceUuid() != -1) {
-            trackedBeacon = trackGattBeacon(beacon);
+            trackedBeacon = trackGattBeacon(beacon, now);
         }
         else {
             trackedBeacon = beacon;
@@ -41,12 +97,157 @@ public class ExtraDataBeaconTracker implements Serializable {
         return trackedBeacon;
     }
 
+    /**
+     * @return the number of devices currently tracked
+     */
+    synchronized int size() {
+        return mDevicesByKey.size();
+    }
+
+    /**
+     * Returns the index of the shard that owns beacons with this bluetooth address.  All frames
+     * merged by this tracker share a bluetooth address, so they always belong to the same shard.
+     *
+     * @param bluetoothAddress may be null for simulated beacons
+     * @param shardCount
+     * @return
+     */
+    static int shardIndexOf(String bluetoothAddress, int shardCount) {
+        if (bluetoothAddress == null) {
+            return 0;
+        }
+        return (bluetoothAddress.hashCode() & 0x7fffffff) % shardCount;
+    }
+
+    /**
+     * Copies the tracked beacons into one new tracker per shard, partitioned by bluetooth address,
+     * so that each shard can be tracked by a single thread without locking.  Each shard may hold
+     * its share of the device limit, and records the devices it changes or evicts so that only
+     * those are merged back by <code>mergeChanges</code>.
+     *
+     * @param shardCount
+     * @return the shard trackers
+     */
+    synchronized ExtraDataBeaconTracker[] split(int shardCount) {
+        ExtraDataBeaconTracker[] shards = new ExtraDataBeaconTracker[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ExtraDataBeaconTracker(matchBeaconsByServiceUUID);
+            shards[i].mShardCount = shardCount;
+            shards[i].mChangedDevices = new HashMap<Long,TrackedDevice>();
+            shards[i].mEvictedKeys = new HashSet<Long>();
+        }
+        for (Map.Entry<Long,TrackedDevice> entry : mDevicesByKey.entrySet()) {
+            shards[shardIndexOf(entry.getValue().getBluetoothAddress(), shardCount)].mDevicesByKey
+                    .put(entry.getKey(), new TrackedDevice(entry.getValue()));
+        }
+        return shards;
+    }
+
+    /**
+     * Returns copies of the devices this shard tracker changed, and the keys of the devices it
+     * evicted, since the last call.
+     */
+    synchronized Changes takeChanges() {
+        Changes changes = new Changes();
+        if (mChangedDevices != null) {
+            for (Map.Entry<Long,TrackedDevice> entry : mChangedDevices.entrySet()) {
+                changes.mChangedDevices.put(entry.getKey(), new TrackedDevice(entry.getValue()));
+            }
+            changes.mEvictedKeys.addAll(mEvictedKeys);
+            mChangedDevices.clear();
+            mEvictedKeys.clear();
+        }
+        return changes;
+    }
+
+    /**
+     * Applies the changes taken from the shard trackers split from this tracker.
+     */
+    void mergeChanges(List<Changes> changes) {
+        mergeChanges(changes, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void mergeChanges(List<Changes> changes, long now) {
+        List<Map.Entry<Long,TrackedDevice>> changedDevices = new ArrayList<Map.Entry<Long,TrackedDevice>>();
+        for (Changes shardChanges : changes) {
+            for (Long key : shardChanges.mEvictedKeys) {
+                mDevicesByKey.remove(key);
+            }
+            changedDevices.addAll(shardChanges.mChangedDevices.entrySet());
+        }
+        // Devices changed in any shard were seen more recently than the unchanged ones, so adding
+        // them in the order they were last seen keeps the least recently seen device at the head
+        Collections.sort(changedDevices, new Comparator<Map.Entry<Long,TrackedDevice>>() {
+            @Override
+            public int compare(Map.Entry<Long,TrackedDevice> a, Map.Entry<Long,TrackedDevice> b) {
+                return a.getValue().mLastSeen < b.getValue().mLastSeen ? -1 :
+                        (a.getValue().mLastSeen == b.getValue().mLastSeen ? 0 : 1);
+            }
+        });
+        for (Map.Entry<Long,TrackedDevice> entry : changedDevices) {
+            mDevicesByKey.remove(entry.getKey());
+            mDevicesByKey.put(entry.getKey(), entry.getValue());
+        }
+        evictExpired(now);
+        evictLeastRecentlySeen();
+    }
+
+    /**
+     * @return true if the tracked beacons can be written by <code>writeTo</code>
+     */
+    synchronized boolean canEncode() {
+        for (TrackedDevice device : mDevicesByKey.values()) {
+            if (!BeaconBatchCodec.canEncode(device.mBeacons.values())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the tracked devices, least recently seen first, for saving the scan state
+     */
+    synchronized void writeTo(BeaconBatchCodec.Writer writer) throws IOException {
+        writer.writeBoolean(matchBeaconsByServiceUUID);
+        writer.writeInt(mDevicesByKey.size());
+        for (Map.Entry<Long,TrackedDevice> entry : mDevicesByKey.entrySet()) {
+            writer.writeLong(entry.getKey());
+            writer.writeLong(entry.getValue().mLastSeen);
+            writer.writeBeacons(entry.getValue().mBeacons.values());
+        }
+    }
+
+    /**
+     * Reads a tracker written by <code>writeTo</code>
+     */
+    static ExtraDataBeaconTracker readFrom(BeaconBatchCodec.Reader reader) throws IOException {
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker(reader.readBoolean());
+        int count = reader.readInt();
+        for (int i = 0; i < count; i++) {
+            long key = reader.readLong();
+            TrackedDevice device = new TrackedDevice(reader.readLong());
+            List<Beacon> beacons = reader.readBeacons();
+            if (beacons == null) {
+                throw new IOException("Missing tracked beacons");
+            }
+            for (Beacon beacon : beacons) {
+                device.mBeacons.put(beacon.getIdentityKey(), beacon);
+            }
+            tracker.mDevicesByKey.put(key, device);
+        }
+        return tracker;
+    }
+
     // The following code is for dealing with merging data fields in beacons
-    private Beacon trackGattBeacon(Beacon beacon) {
+    private Beacon trackGattBeacon(Beacon beacon, long now) {
+        evictExpired(now);
         Beacon trackedBeacon = null;
-        HashMap<Integer,Beacon> matchingTrackedBeacons = mBeaconsByKey.get(getBeaconKey(beacon));
-        if (matchingTrackedBeacons != null) {
-            for (Beacon matchingTrackedBeacon: matchingTrackedBeacons.values()) {
+        long key = getBeaconKey(beacon);
+        TrackedDevice device = mDevicesByKey.get(key);
+        if (device != null) {
+            device.mLastSeen = now;
+            recordChange(key, device);
+            for (Beacon matchingTrackedBeacon: device.mBeacons.values()) {
                 if (beacon.isExtraBeaconData()) {
                     matchingTrackedBeacon.setRssi(beacon.getRssi());
                     matchingTrackedBeacon.setExtraDataFields(beacon.getDataFields());
@@ -59,7 +260,7 @@ public class ExtraDataBeaconTracker implements Serializable {
             }
         }
         if (!beacon.isExtraBeaconData()) {
-            updateTrackingHashes(beacon, matchingTrackedBeacons);
+            updateTrackingHashes(beacon, key, device, now);
         }
 
         if (trackedBeacon == null && !beacon.isExtraBeaconData()) {
@@ -68,19 +269,139 @@ public class ExtraDataBeaconTracker implements Serializable {
         return trackedBeacon;
     }
 
-    private void updateTrackingHashes(Beacon trackedBeacon, HashMap<Integer,Beacon> matchingTrackedBeacons) {
-        if (matchingTrackedBeacons == null) {
-            matchingTrackedBeacons = new HashMap<Integer,Beacon>();
+    private void updateTrackingHashes(Beacon trackedBeacon, long key, TrackedDevice device, long now) {
+        if (device == null) {
+            device = new TrackedDevice(now);
+            mDevicesByKey.put(key, device);
+            evictLeastRecentlySeen();
         }
-        matchingTrackedBeacons.put(trackedBeacon.hashCode(), trackedBeacon);
-        mBeaconsByKey.put(getBeaconKey(trackedBeacon), matchingTrackedBeacons);
+        device.mBeacons.put(trackedBeacon.getIdentityKey(), trackedBeacon);
+        recordChange(key, device);
     }
 
-    private String getBeaconKey(Beacon beacon) {
+    // Devices are ordered by when they were last seen, so only the head of the map needs checking
+    private void evictExpired(long now) {
+        Iterator<Map.Entry<Long,TrackedDevice>> iterator = mDevicesByKey.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long,TrackedDevice> entry = iterator.next();
+            long lastSeen = entry.getValue().mLastSeen;
+            // A last seen time in the future was saved before the device rebooted
+            if (now - lastSeen <= sTimeToLiveMillis && lastSeen <= now) {
+                break;
+            }
+            iterator.remove();
+            recordEviction(entry.getKey());
+        }
+    }
+
+    private void evictLeastRecentlySeen() {
+        // Shards share the limit, so that together they hold about as many devices as allowed
+        int shardCount = Math.max(1, mShardCount);
+        int maxTrackedDevices = (sMaxTrackedDevices + shardCount - 1) / shardCount;
+        Iterator<Map.Entry<Long,TrackedDevice>> iterator = mDevicesByKey.entrySet().iterator();
+        while (mDevicesByKey.size() > maxTrackedDevices && iterator.hasNext()) {
+            Long key = iterator.next().getKey();
+            iterator.remove();
+            recordEviction(key);
+        }
+    }
+
+    private void recordChange(long key, TrackedDevice device) {
+        if (mChangedDevices != null) {
+            mChangedDevices.put(key, device);
+            mEvictedKeys.remove(key);
+        }
+    }
+
+    private void recordEviction(long key) {
+        if (mChangedDevices != null) {
+            mChangedDevices.remove(key);
+            mEvictedKeys.add(key);
+        }
+    }
+
+    /**
+     * Packs the 48 bit bluetooth address into the low bits of the key and, when matching by
+     * service uuid, the 16 bit service uuid into the high bits.  Addresses that are not in the
+     * standard colon separated form (such as the null address of simulated beacons) fall back to
+     * their hash code.
+     */
+    private long getBeaconKey(Beacon beacon) {
+        long address = parseBluetoothAddress(beacon.getBluetoothAddress());
         if (matchBeaconsByServiceUUID) {
-            return beacon.getBluetoothAddress() + beacon.getServiceUuid();
+            return address | ((long) (beacon.getServiceUuid() & 0xffff) << 48);
         } else {
-            return beacon.getBluetoothAddress();
+            return address;
+        }
+    }
+
+    static long parseBluetoothAddress(String bluetoothAddress) {
+        if (bluetoothAddress == null) {
+            return 0;
+        }
+        if (bluetoothAddress.length() == 17) {
+            long address = 0;
+            for (int i = 0; i < 17; i++) {
+                char c = bluetoothAddress.charAt(i);
+                if (i % 3 == 2) {
+                    if (c != ':') {
+                        address = -1;
+                        break;
+                    }
+                    continue;
+                }
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    address = -1;
+                    break;
+                }
+                address = (address << 4) | digit;
+            }
+            if (address >= 0) {
+                return address;
+            }
+        }
+        return bluetoothAddress.hashCode() & 0xffffffffL;
+    }
+
+    /**
+     * The devices a shard tracker changed or evicted, to be merged into the tracker it was split
+     * from.
+     */
+    static final class Changes {
+        private final Map<Long,TrackedDevice> mChangedDevices = new HashMap<Long,TrackedDevice>();
+        private final Set<Long> mEvictedKeys = new HashSet<Long>();
+
+        /**
+         * @return the number of devices changed or evicted
+         */
+        int size() {
+            return mChangedDevices.size() + mEvictedKeys.size();
+        }
+    }
+
+    /**
+     * The beacons tracked for one device, with the time the device was last seen.
+     */
+    private static class TrackedDevice implements Serializable {
+        private final HashMap<BeaconIdentityKey,Beacon> mBeacons;
+        private long mLastSeen;
+
+        TrackedDevice(long lastSeen) {
+            mBeacons = new HashMap<BeaconIdentityKey,Beacon>();
+            mLastSeen = lastSeen;
+        }
+
+        TrackedDevice(TrackedDevice device) {
+            mBeacons = new HashMap<BeaconIdentityKey,Beacon>(device.mBeacons);
+            mLastSeen = device.mLastSeen;
+        }
+
+        String getBluetoothAddress() {
+            for (Beacon beacon : mBeacons.values()) {
+                return beacon.getBluetoothAddress();
+            }
+            return null;
         }
     }
 }
@@ -0,0 +1,127 @@
+package org.altbeacon.beacon.service;
+
+import android.os.SystemClock;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+/**
+ * This filter estimates the rssi with a one dimensional Kalman filter, assuming the true rssi
+ * stays constant apart from random drift.  It keeps only the current estimate and its variance, so
+ * it needs constant memory and time per measurement, and it settles within a few measurements.
+ *
+ * The process noise is the variance the true rssi is expected to drift by per second, and the
+ * measurement noise is the variance of a single measurement around the true rssi.  Because the
+ * drift is scaled by the time since the last measurement, a measurement arriving after a gap (for
+ * example when a beacon was missed for several scan cycles) moves the estimate further than one
+ * arriving shortly after the last.
+ *
+ * Note: a larger process noise or a smaller measurement noise follows changes faster but smooths
+ *       less
+ */
+public class KalmanRssiFilter implements RssiFilter {
+
+    private static final String TAG = "KalmanRssiFilter";
+    public static final double DEFAULT_PROCESS_NOISE = 0.5;      // dBm^2 per second
+    public static final double DEFAULT_MEASUREMENT_NOISE = 16.0; // dBm^2, a 4 dBm standard deviation
+    // Estimates older than this are treated as having no measurements, like RunningAverageRssiFilter
+    public static final long DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS = 20000; /* 20 seconds */
+
+    private final double mProcessNoise;
+    private final double mMeasurementNoise;
+    private final long mSampleExpirationMilliseconds;
+    private boolean mInitialized = false;
+    private double mEstimate;
+    private double mVariance;
+    private long mLastMeasurementTime;
+
+    public KalmanRssiFilter() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * @param processNoise     expected variance of the true rssi per second, in dBm^2
+     * @param measurementNoise variance of each measurement, in dBm^2
+     */
+    public KalmanRssiFilter(double processNoise, double measurementNoise) {
+        this(processNoise, measurementNoise, DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS);
+    }
+
+    /**
+     * @param processNoise                 expected variance of the true rssi per second, in dBm^2
+     * @param measurementNoise             variance of each measurement, in dBm^2
+     * @param sampleExpirationMilliseconds time without measurements after which there are no
+     *                                     measurements available
+     */
+    public KalmanRssiFilter(double processNoise, double measurementNoise, long sampleExpirationMilliseconds) {
+        if (processNoise < 0 || measurementNoise <= 0) {
+            throw new IllegalArgumentException("Process noise must not be negative and measurement noise must be positive");
+        }
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+        mSampleExpirationMilliseconds = sampleExpirationMilliseconds;
+    }
+
+    /**
+     * Returns a factory for filters with the given noise parameters
+     * @param processNoise     expected variance of the true rssi per second, in dBm^2
+     * @param measurementNoise variance of each measurement, in dBm^2
+     * @return factory
+     */
+    public static RssiFilter.Factory factory(final double processNoise, final double measurementNoise) {
+        return new RecyclingRssiFilterFactory<KalmanRssiFilter>(KalmanRssiFilter.class) {
+            @Override
+            KalmanRssiFilter newFilter() {
+                return new KalmanRssiFilter(processNoise, measurementNoise);
+            }
+
+            @Override
+            void resetFilter(KalmanRssiFilter filter) {
+                filter.reset();
+            }
+        };
+    }
+
+    @Override
+    public void addMeasurement(Integer rssi) {
+        addMeasurement(rssi, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void addMeasurement(int rssi, long timestamp) {
+        if (!mInitialized) {
+            mEstimate = rssi;
+            mVariance = mMeasurementNoise;
+            mInitialized = true;
+        }
+        else {
+            // Predict: the true rssi may have drifted since the last measurement
+            double elapsedSeconds = Math.max(0, timestamp - mLastMeasurementTime) / 1000.0;
+            mVariance += mProcessNoise * elapsedSeconds;
+            // Update: weigh the measurement against the prediction by their variances
+            double gain = mVariance / (mVariance + mMeasurementNoise);
+            mEstimate += gain * (rssi - mEstimate);
+            mVariance = (1 - gain) * mVariance;
+        }
+        mLastMeasurementTime = timestamp;
+        if (LogManager.isVerboseLoggingEnabled()) {
+            LogManager.d(TAG, "Kalman estimate after rssi %s: %s", rssi, mEstimate);
+        }
+    }
+
+    @Override
+    public synchronized boolean noMeasurementsAvailable() {
+        return !mInitialized ||
+                SystemClock.elapsedRealtime() - mLastMeasurementTime >= mSampleExpirationMilliseconds;
+    }
+
+    @Override
+    public synchronized double calculateRssi() {
+        return mEstimate;
+    }
+
+    synchronized void reset() {
+        mInitialized = false;
+        mEstimate = 0;
+        mVariance = 0;
+        mLastMeasurementTime = 0;
+    }
+}
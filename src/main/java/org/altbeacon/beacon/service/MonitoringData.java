@@ -23,17 +23,22 @@
  */
 package org.altbeacon.beacon.service;
 
+import org.altbeacon.beacon.BeaconBatchCodec;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.logging.LogManager;
 
 import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
 
 public class MonitoringData {
-    @SuppressWarnings("unused")
     private static final String TAG = "MonitoringData";
     private final boolean mInside;
     private final Region mRegion;
     private static final String REGION_KEY = "region";
     private static final String INSIDE_KEY = "inside";
+    private static final String REGION_BYTES_KEY = "regionBytes";
 
     public MonitoringData (boolean inside, Region region) {
         this.mInside = inside;
@@ -48,15 +53,41 @@ public class MonitoringData {
 
     public Bundle toBundle() {
         Bundle bundle = new Bundle();
-        bundle.putSerializable(REGION_KEY, mRegion);
+        byte[] regionBytes = null;
+        if (BeaconBatchCodec.canEncode(mRegion)) {
+            try {
+                regionBytes = BeaconBatchCodec.encodeRegion(mRegion);
+            } catch (IOException e) {
+                LogManager.e(TAG, "Cannot encode region", e);
+            }
+        }
+        if (regionBytes != null) {
+            bundle.putByteArray(REGION_BYTES_KEY, regionBytes);
+        }
+        else {
+            bundle.putSerializable(REGION_KEY, mRegion);
+        }
         bundle.putBoolean(INSIDE_KEY, mInside);
 
         return bundle;
     }
+    /**
+     * @return the monitoring data in the bundle, or null if its region cannot be decoded
+     */
+    @Nullable
     public static MonitoringData fromBundle(Bundle bundle) {
         bundle.setClassLoader(Region.class.getClassLoader());
         Region region = null;
-        if (bundle.get(REGION_KEY) != null) {
+        byte[] regionBytes = bundle.getByteArray(REGION_BYTES_KEY);
+        if (regionBytes != null) {
+            try {
+                region = BeaconBatchCodec.decodeRegion(regionBytes);
+            } catch (IOException e) {
+                LogManager.e(TAG, "Cannot decode region.  Dropping monitoring data.", e);
+                return null;
+            }
+        }
+        else if (bundle.get(REGION_KEY) != null) {
             region = (Region) bundle.getSerializable(REGION_KEY);
         }
         Boolean inside = bundle.getBoolean(INSIDE_KEY);
@@ -7,35 +7,38 @@ import org.altbeacon.beacon.MonitorNotifier;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
-import static android.content.Context.MODE_PRIVATE;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MonitoringStatus {
     private static volatile MonitoringStatus sInstance;
-    private static final int MAX_REGIONS_FOR_STATUS_PRESERVATION = 50;
     private static final int MAX_STATUS_PRESERVATION_FILE_AGE_TO_RESTORE_SECS = 60 * 15;
+    // Monitoring activity times are written to the preservation file at most this often
+    private static final long MONITORING_STATUS_TIME_FLUSH_INTERVAL_MILLIS = 60 * 1000l;
     private static final String TAG = MonitoringStatus.class.getSimpleName();
     public static final String STATUS_PRESERVATION_FILE_NAME =
             "org.altbeacon.beacon.service.monitoring_status_state";
     private Map<Region, RegionMonitoringState> mRegionsStatesMap;
+    private RegionIndex mRegionIndex;
+    private int mRegionIndexModificationCount;
+    // Incremented whenever regions are added or removed so the region index can be rebuilt.  Some
+    // changes are made without holding the lock, so the count is atomic.
+    private final AtomicInteger mRegionsModificationCount = new AtomicInteger();
 
     private Context mContext;
+    private MonitoringStatusFile mStatusFile;
 
     private boolean mStatePreservationIsOn = true;
+    // Last monitoring activity time, and the last of these written to the preservation file
+    private long mLastMonitoringStatusTime;
+    private long mFlushedMonitoringStatusTime;
+    // Set when the scanner runs in a separate process, to share region states with the app process
+    private volatile SharedScanState mSharedScanState;
 
     /**
      * Private lock object for singleton initialization protecting against denial-of-service attack.
@@ -70,6 +73,7 @@ public class MonitoringStatus {
 
     public MonitoringStatus(Context context) {
         this.mContext = context;
+        this.mStatusFile = MonitoringStatusFile.forFile(context.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME));
     }
 
     public synchronized void addRegion(Region region, Callback callback) {
@@ -103,7 +107,7 @@ public class MonitoringStatus {
             if (state.markOutsideIfExpired()) {
                 needsMonitoringStateSaving = true;
                 LogManager.d(TAG, "found a monitor that expired: %s", region);
-                state.getCallback().call(mContext, "monitoringData", new MonitoringData(state.getInside(), region).toBundle());
+                state.getCallback().call(mContext, new MonitoringData(state.getInside(), region));
             }
         }
         if (needsMonitoringStateSaving) {
@@ -112,6 +116,10 @@ public class MonitoringStatus {
         else {
             updateMonitoringStatusTime(System.currentTimeMillis());
         }
+        SharedScanState sharedScanState = mSharedScanState;
+        if (sharedScanState != null) {
+            sharedScanState.publishHeartbeat();
+        }
     }
 
     public synchronized void updateNewlyInsideInRegionsContaining(Beacon beacon) {
@@ -121,8 +129,7 @@ public class MonitoringStatus {
             RegionMonitoringState state = getRegionsStateMap().get(region);
             if (state != null && state.markInside()) {
                 needsMonitoringStateSaving = true;
-                state.getCallback().call(mContext, "monitoringData",
-                        new MonitoringData(state.getInside(), region).toBundle());
+                state.getCallback().call(mContext, new MonitoringData(state.getInside(), region));
             }
         }
         if (needsMonitoringStateSaving) {
@@ -143,6 +150,7 @@ public class MonitoringStatus {
     private void restoreOrInitializeMonitoringStatus() {
         long millisSinceLastMonitor = System.currentTimeMillis() - getLastMonitoringStatusUpdateTime();
         mRegionsStatesMap = new ConcurrentHashMap<Region, RegionMonitoringState>();
+        regionsChanged();
         if (!mStatePreservationIsOn) {
             LogManager.d(TAG, "Not restoring monitoring state because persistence is disabled");
         }
@@ -156,118 +164,92 @@ public class MonitoringStatus {
     }
 
     private List<Region> regionsMatchingTo(Beacon beacon) {
-        List<Region> matched = new ArrayList<Region>();
-        for (Region region : regions()) {
-            if (region.matchesBeacon(beacon)) {
-                matched.add(region);
-            } else {
-                LogManager.d(TAG, "This region (%s) does not match beacon: %s", region, beacon);
-            }
+        int modificationCount = mRegionsModificationCount.get();
+        if (mRegionIndex == null || mRegionIndexModificationCount != modificationCount) {
+            mRegionIndex = new RegionIndex(regions());
+            mRegionIndexModificationCount = modificationCount;
         }
-        return matched;
+        return mRegionIndex.matchingRegions(beacon);
+    }
+
+    private void regionsChanged() {
+        mRegionsModificationCount.incrementAndGet();
     }
 
+    /**
+     * Saves the state of all monitored regions.  The file is written on a background thread.
+     */
     protected void saveMonitoringStatusIfOn() {
+        publishSharedScanState();
         if(!mStatePreservationIsOn) return;
         LogManager.d(TAG, "saveMonitoringStatusIfOn()");
-        if (getRegionsStateMap().size() > MAX_REGIONS_FOR_STATUS_PRESERVATION) {
-            LogManager.w(TAG, "Too many regions being monitored.  Will not persist region state");
-            mContext.deleteFile(STATUS_PRESERVATION_FILE_NAME);
+        mStatusFile.save(getRegionsStateMap());
+        // Writing the file brings its modification time up to date
+        synchronized (this) {
+            mLastMonitoringStatusTime = mFlushedMonitoringStatusTime = System.currentTimeMillis();
         }
-        else {
-            FileOutputStream outputStream = null;
-            ObjectOutputStream objectOutputStream = null;
-            try {
-                outputStream = mContext.openFileOutput(STATUS_PRESERVATION_FILE_NAME, MODE_PRIVATE);
-                objectOutputStream = new ObjectOutputStream(outputStream);
-                Map<Region,RegionMonitoringState> map = getRegionsStateMap();
-                // Must convert ConcurrentHashMap to HashMap becasue attempting to serialize
-                // ConcurrentHashMap throws a java.io.NotSerializableException
-                HashMap<Region,RegionMonitoringState> serializableMap = new HashMap<Region,RegionMonitoringState>();
-                for (Region region : map.keySet()) {
-                    serializableMap.put(region, map.get(region));
-                }
-                objectOutputStream.writeObject(serializableMap);
-            } catch (IOException e) {
-                LogManager.e(TAG, "Error while saving monitored region states to file ", e);
-                e.printStackTrace(System.err);
-            } finally {
-                if (null != outputStream) {
-                    try {
-                        outputStream.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-                if (objectOutputStream != null) {
-                    try {
-                        objectOutputStream.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-            }
+    }
+
+    /**
+     * Blocks until any saved state waiting to be written in the background is on disk, along with
+     * the last monitoring activity time.
+     */
+    synchronized void flushMonitoringStatus() {
+        mStatusFile.flush();
+        if (mLastMonitoringStatusTime != mFlushedMonitoringStatusTime) {
+            mStatusFile.setLastModified(mLastMonitoringStatusTime);
+            mFlushedMonitoringStatusTime = mLastMonitoringStatusTime;
         }
     }
 
-    protected void updateMonitoringStatusTime(long time) {
-        File file = mContext.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME);
-        file.setLastModified(time);
+    /**
+     * Records monitoring activity at the given time.  This is called for every detection, so the
+     * time is kept in memory and only written to the preservation file's modification time once
+     * it is more than a minute newer than what was last written, or if it moves backwards.
+     */
+    protected synchronized void updateMonitoringStatusTime(long time) {
+        mLastMonitoringStatusTime = time;
+        if (time < mFlushedMonitoringStatusTime ||
+                time - mFlushedMonitoringStatusTime >= MONITORING_STATUS_TIME_FLUSH_INTERVAL_MILLIS) {
+            mStatusFile.setLastModified(time);
+            mFlushedMonitoringStatusTime = time;
+        }
     }
 
     protected long getLastMonitoringStatusUpdateTime() {
-        File file = mContext.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME);
-        return file.lastModified();
+        return mStatusFile.lastModified();
     }
 
     protected void restoreMonitoringStatus() {
-        FileInputStream inputStream = null;
-        ObjectInputStream objectInputStream = null;
-        try {
-            inputStream = mContext.openFileInput(STATUS_PRESERVATION_FILE_NAME);
-            objectInputStream = new ObjectInputStream(inputStream);
-            Map<Region, RegionMonitoringState> obj = (Map<Region, RegionMonitoringState>) objectInputStream.readObject();
-            LogManager.d(TAG, "Restored region monitoring state for "+obj.size()+" regions.");
-            for (Region region : obj.keySet()) {
-                LogManager.d(TAG, "Region  "+region+" uniqueId: "+region.getUniqueId()+" state: "+obj.get(region));
-            }
+        Map<Region, RegionMonitoringState> obj = mStatusFile.read();
+        if (obj == null) {
+            return;
+        }
+        LogManager.d(TAG, "Restored region monitoring state for "+obj.size()+" regions.");
+        for (Region region : obj.keySet()) {
+            LogManager.d(TAG, "Region  "+region+" uniqueId: "+region.getUniqueId()+" state: "+obj.get(region));
+        }
 
-            // RegionMonitoringState objects only get serialized to the status preservation file when they are first inside,
-            // therefore, their {@link RegionMonitoringState#lastSeenTime will be when they were first "inside".
-            // Mark all beacons that were inside again so they don't trigger as a new exit - enter.
-            for (RegionMonitoringState regionMonitoringState : obj.values())
+        // RegionMonitoringState objects only get saved to the status preservation file when they are first inside,
+        // therefore, their {@link RegionMonitoringState#lastSeenTime will be when they were first "inside".
+        // Mark all beacons that were inside again so they don't trigger as a new exit - enter.
+        for (RegionMonitoringState regionMonitoringState : obj.values())
+        {
+            if (regionMonitoringState.getInside())
             {
-                if (regionMonitoringState.getInside())
-                {
-                    regionMonitoringState.markInside();
-                }
-            }
-
-            mRegionsStatesMap.putAll(obj);
-
-        } catch (IOException | ClassNotFoundException | ClassCastException e) {
-            if (e instanceof InvalidClassException) {
-                LogManager.d(TAG, "Serialized Monitoring State has wrong class. Just ignoring saved state..." );
-            } else LogManager.e(TAG, "Deserialization exception, message: %s", e.getMessage());
-        } finally {
-            if (null != inputStream) {
-                try {
-                    inputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
-            if (objectInputStream != null) {
-                try {
-                    objectInputStream.close();
-                } catch (IOException ignored) {
-                }
+                regionMonitoringState.markInside();
             }
         }
+
+        mRegionsStatesMap.putAll(obj);
+        regionsChanged();
     }
 
     /**
      * Client applications should not call directly.  Call BeaconManager#setRegionStatePeristenceEnabled
      */
     public synchronized void stopStatusPreservation() {
-        mContext.deleteFile(STATUS_PRESERVATION_FILE_NAME);
+        mStatusFile.delete();
         this.mStatePreservationIsOn = false;
     }
 
@@ -286,8 +268,35 @@ public class MonitoringStatus {
     }
 
     public synchronized void clear() {
-        mContext.deleteFile(STATUS_PRESERVATION_FILE_NAME);
+        mStatusFile.delete();
         getRegionsStateMap().clear();
+        regionsChanged();
+        publishSharedScanState();
+    }
+
+    /**
+     * Publishes the region states to other processes through the shared scan state whenever they
+     * change.  Called by the scanner when it runs in a separate process.
+     *
+     * @param sharedScanState
+     */
+    public void setSharedScanState(SharedScanState sharedScanState) {
+        mSharedScanState = sharedScanState;
+        publishSharedScanState();
+    }
+
+    private void publishSharedScanState() {
+        SharedScanState sharedScanState = mSharedScanState;
+        if (sharedScanState == null) {
+            return;
+        }
+        Map<Region, Boolean> insideByRegion = new HashMap<Region, Boolean>();
+        synchronized (this) {
+            for (Map.Entry<Region, RegionMonitoringState> entry : getRegionsStateMap().entrySet()) {
+                insideByRegion.put(entry.getKey(), entry.getValue().getInside());
+            }
+        }
+        sharedScanState.publishRegionStates(insideByRegion);
     }
 
     public void updateLocalState(Region region, Integer state) {
@@ -308,6 +317,7 @@ public class MonitoringStatus {
 
     public void removeLocalRegion(Region region) {
         getRegionsStateMap().remove(region);
+        regionsChanged();
     }
     public RegionMonitoringState addLocalRegion(Region region){
         Callback dummyCallback = new Callback(null);
@@ -336,6 +346,7 @@ public class MonitoringStatus {
         }
         RegionMonitoringState monitoringState = new RegionMonitoringState(callback);
         getRegionsStateMap().put(region, monitoringState);
+        regionsChanged();
         return monitoringState;
     }
 }
@@ -0,0 +1,285 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores the monitoring state of each region in a compact, versioned binary file.
+ *
+ * Each record holds a region's unique id, bluetooth address, identifier bytes, inside flag and last
+ * seen time.  Unlike Java serialization, the format does not depend on the classes of the objects
+ * being saved, so it survives library upgrades and scales to thousands of regions.
+ *
+ * Saves are encoded on the calling thread and written on a background thread.  If several saves
+ * are requested before the write happens, only the latest is written.  Each write goes to a temp
+ * file that is renamed over the old one, so a crash mid-write never leaves a truncated file.
+ *
+ * @hide
+ */
+class MonitoringStatusFile {
+    private static final String TAG = MonitoringStatusFile.class.getSimpleName();
+    private static final int MAGIC = 0x414d5354;
+    static final int VERSION = 1;
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final Map<String, MonitoringStatusFile> sFiles = new HashMap<>();
+    private static ExecutorService sExecutor;
+
+    private final File mFile;
+    private final File mTempFile;
+    // Held for the whole of each write so writes never overtake each other
+    private final Object mWriteLock = new Object();
+    // Guards the fields below.  Never held while waiting for mWriteLock.
+    private final Object mStateLock = new Object();
+    @Nullable
+    private byte[] mPendingBytes;
+    private boolean mWriteInProgress;
+    private long mPendingLastModified;
+
+    /**
+     * @return the instance for this file, shared so that reads see saves made by any
+     * <code>MonitoringStatus</code> in this process
+     */
+    static MonitoringStatusFile forFile(@NonNull File file) {
+        synchronized (sFiles) {
+            MonitoringStatusFile statusFile = sFiles.get(file.getAbsolutePath());
+            if (statusFile == null) {
+                statusFile = new MonitoringStatusFile(file);
+                sFiles.put(file.getAbsolutePath(), statusFile);
+            }
+            return statusFile;
+        }
+    }
+
+    private MonitoringStatusFile(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Encodes the region states and schedules them to be written in the background.
+     */
+    void save(@NonNull Map<Region, RegionMonitoringState> regionStates) {
+        byte[] bytes;
+        try {
+            bytes = encode(regionStates);
+        } catch (IOException e) {
+            LogManager.e(TAG, "Cannot encode monitored region states", e);
+            return;
+        }
+        boolean scheduleWrite;
+        synchronized (mStateLock) {
+            scheduleWrite = mPendingBytes == null;
+            mPendingBytes = bytes;
+        }
+        if (scheduleWrite) {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes any pending save on the calling thread.
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            byte[] bytes;
+            synchronized (mStateLock) {
+                bytes = mPendingBytes;
+                mPendingBytes = null;
+                mWriteInProgress = bytes != null;
+            }
+            if (bytes == null) {
+                return;
+            }
+            write(bytes);
+            synchronized (mStateLock) {
+                mWriteInProgress = false;
+                if (mPendingLastModified != 0) {
+                    mFile.setLastModified(mPendingLastModified);
+                    mPendingLastModified = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the region states last saved, or null if there are none or they cannot be read
+     */
+    @Nullable
+    Map<Region, RegionMonitoringState> read() {
+        flush();
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(new FileInputStream(mFile));
+            return decode(inputStream);
+        } catch (FileNotFoundException e) {
+            LogManager.d(TAG, "No saved monitoring state");
+        } catch (IOException | IllegalArgumentException e) {
+            LogManager.e(TAG, "Cannot read saved monitoring state, message: %s", e.getMessage());
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards any pending save and deletes the file.
+     */
+    void delete() {
+        synchronized (mStateLock) {
+            mPendingBytes = null;
+            mPendingLastModified = 0;
+        }
+        synchronized (mWriteLock) {
+            mFile.delete();
+        }
+    }
+
+    long lastModified() {
+        flush();
+        return mFile.lastModified();
+    }
+
+    /**
+     * Sets the modification time of the file, or of the pending save once it is written.
+     */
+    void setLastModified(long time) {
+        synchronized (mStateLock) {
+            if (mPendingBytes != null || mWriteInProgress) {
+                mPendingLastModified = time;
+                return;
+            }
+            mFile.setLastModified(time);
+        }
+    }
+
+    private void write(byte[] bytes) {
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(mTempFile);
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+            outputStream.close();
+            outputStream = null;
+            if (!mTempFile.renameTo(mFile)) {
+                LogManager.e(TAG, "Error while saving monitored region states to file: Cannot rename temp file.");
+            }
+        } catch (IOException e) {
+            LogManager.e(TAG, "Error while saving monitored region states to file ", e);
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    static byte[] encode(@NonNull Map<Region, RegionMonitoringState> regionStates) throws IOException {
+        List<Map.Entry<Region, RegionMonitoringState>> entries = new ArrayList<>(regionStates.entrySet());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + entries.size() * 48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<Region, RegionMonitoringState> entry : entries) {
+            Region region = entry.getKey();
+            RegionMonitoringState state = entry.getValue();
+            out.writeUTF(region.getUniqueId());
+            String bluetoothAddress = region.getBluetoothAddress();
+            out.writeBoolean(bluetoothAddress != null);
+            if (bluetoothAddress != null) {
+                out.writeUTF(bluetoothAddress);
+            }
+            List<Identifier> identifiers = region.getIdentifiers();
+            out.writeShort(identifiers.size());
+            for (Identifier identifier : identifiers) {
+                if (identifier == null) {
+                    out.writeShort(-1);
+                }
+                else {
+                    byte[] identifierBytes = identifier.toByteArray();
+                    out.writeShort(identifierBytes.length);
+                    out.write(identifierBytes);
+                }
+            }
+            out.writeBoolean(state.getInside());
+            out.writeLong(state.getLastSeenTime());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Map<Region, RegionMonitoringState> decode(@NonNull InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a monitoring status file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported monitoring status file version " + version);
+        }
+        int regionCount = in.readInt();
+        Map<Region, RegionMonitoringState> regionStates = new HashMap<>();
+        for (int i = 0; i < regionCount; i++) {
+            String uniqueId = in.readUTF();
+            String bluetoothAddress = in.readBoolean() ? in.readUTF() : null;
+            int identifierCount = in.readUnsignedShort();
+            List<Identifier> identifiers = new ArrayList<>(identifierCount);
+            for (int j = 0; j < identifierCount; j++) {
+                int length = in.readShort();
+                if (length < 0) {
+                    identifiers.add(null);
+                }
+                else {
+                    byte[] identifierBytes = new byte[length];
+                    in.readFully(identifierBytes);
+                    identifiers.add(Identifier.fromBytes(identifierBytes, 0, length, false));
+                }
+            }
+            boolean inside = in.readBoolean();
+            long lastSeenTime = in.readLong();
+            regionStates.put(new Region(uniqueId, identifiers, bluetoothAddress),
+                    new RegionMonitoringState(new Callback(null), inside, lastSeenTime));
+        }
+        return regionStates;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sExecutor;
+    }
+}
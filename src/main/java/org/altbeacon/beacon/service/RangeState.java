@@ -24,57 +24,303 @@
 package org.altbeacon.beacon.service;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconBatchCodec;
+import org.altbeacon.beacon.BeaconIdentityKey;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 public class RangeState implements Serializable {
     private static final String TAG = "RangeState";
     private Callback mCallback;
-    private Map<Beacon,RangedBeacon> mRangedBeacons = new HashMap<Beacon,RangedBeacon>();
+    private Region mRegion;
+    // Ranged beacons are split into partitions, each updated by a single owner such as a scan
+    // processing shard, so owners never wait on each other.  A partition's monitor is only
+    // contended by its owner and by finalizing the beacons at the end of a cycle.
+    // Owners are not serialized, so the partitions are written as one list of ranged beacons
+    private transient Map<Object,Partition> mPartitionsByOwner = new IdentityHashMap<Object,Partition>();
+    // Holds the beacons added through addBeacon and those restored from a saved scan state
+    private transient Partition mDefaultPartition;
     private static boolean sUseTrackingCache = false;
+    public static final double DEFAULT_DELTA_RSSI_THRESHOLD = 5.0;
+    public static final double DEFAULT_DELTA_DISTANCE_THRESHOLD = 1.0;
+    private static boolean sDeltaReportingEnabled = false;
+    private static double sDeltaRssiThreshold = DEFAULT_DELTA_RSSI_THRESHOLD;
+    private static double sDeltaDistanceThreshold = DEFAULT_DELTA_DISTANCE_THRESHOLD;
+    // Values last sent to the client for each beacon when reporting changes only
+    private Map<BeaconIdentityKey,ReportedBeacon> mReportedBeaconsByKey = new HashMap<BeaconIdentityKey,ReportedBeacon>();
 
     public RangeState(Callback c) {
+        this(c, null);
+    }
+
+    /**
+     * @param c
+     * @param region the ranged region, used to choose the rssi filter for its beacons
+     */
+    public RangeState(Callback c, Region region) {
         mCallback = c;
+        mRegion = region;
+        mDefaultPartition = partitionFor(this);
     }
 
     public Callback getCallback() {
         return mCallback;
     }
 
+    /**
+     * Adds a measurement of the beacon.  May be called from several threads at once.
+     */
     public void addBeacon(Beacon beacon) {
-        if (mRangedBeacons.containsKey(beacon)) {
-            RangedBeacon rangedBeacon = mRangedBeacons.get(beacon);
-            if (LogManager.isVerboseLoggingEnabled()) {
-                LogManager.d(TAG, "adding %s to existing range for: %s", beacon, rangedBeacon);
-            }
-            rangedBeacon.updateBeacon(beacon);
-        }
-        else {
-            if (LogManager.isVerboseLoggingEnabled()) {
-                LogManager.d(TAG, "adding %s to new rangedBeacon", beacon);
-            }
-            mRangedBeacons.put(beacon, new RangedBeacon(beacon));
+        mDefaultPartition.addBeacon(beacon);
+    }
+
+    /**
+     * Returns the partition updated only by the given owner, creating it on first use.  Owners
+     * adding beacons through their own partitions do not contend with each other.
+     *
+     * @param owner compared by identity
+     */
+    synchronized Partition partitionFor(Object owner) {
+        Partition partition = mPartitionsByOwner.get(owner);
+        if (partition == null) {
+            partition = new Partition();
+            mPartitionsByOwner.put(owner, partition);
         }
+        return partition;
     }
 
     // returns a list of beacons that are tracked, and then removes any from the list that should not
     // be there for the next cycle
     public synchronized Collection<Beacon> finalizeBeacons() {
-        Map<Beacon,RangedBeacon> newRangedBeacons = new HashMap<Beacon,RangedBeacon>();
-        ArrayList<Beacon> finalizedBeacons = new ArrayList<Beacon>();
+        Map<BeaconIdentityKey,FinalizedBeacon> finalizedBeacons = new HashMap<BeaconIdentityKey,FinalizedBeacon>();
+        for (Partition partition : mPartitionsByOwner.values()) {
+            partition.finalizeBeacons(finalizedBeacons);
+        }
+        ArrayList<Beacon> beacons = new ArrayList<Beacon>(finalizedBeacons.size());
+        for (FinalizedBeacon finalizedBeacon : finalizedBeacons.values()) {
+            beacons.add(finalizedBeacon.mBeacon);
+        }
+        return beacons;
+    }
+
+    /**
+     * Finalizes the beacons as in <code>finalizeBeacons</code>, but returns only the beacons that
+     * are newly visible, that have moved past the rssi or distance threshold since they were last
+     * returned, or that are no longer visible.
+     *
+     * @param region the ranged region
+     * @return the changes, or null if nothing changed
+     */
+    public synchronized RangingData finalizeBeaconChanges(Region region) {
+        Collection<Beacon> beacons = finalizeBeacons();
+        // Let the client discard anything it still holds if this is the first report
+        boolean reset = mReportedBeaconsByKey.isEmpty();
+        List<Beacon> updatedBeacons = new ArrayList<Beacon>();
+        Map<BeaconIdentityKey,Beacon> visibleBeacons = new HashMap<BeaconIdentityKey,Beacon>();
+        for (Beacon beacon : beacons) {
+            BeaconIdentityKey key = beacon.getIdentityKey();
+            visibleBeacons.put(key, beacon);
+            ReportedBeacon reportedBeacon = mReportedBeaconsByKey.get(key);
+            if (reportedBeacon == null || reportedBeacon.hasChanged(beacon)) {
+                updatedBeacons.add(beacon);
+                mReportedBeaconsByKey.put(key, new ReportedBeacon(beacon));
+            }
+        }
+        List<Beacon> removedBeacons = new ArrayList<Beacon>();
+        Iterator<Map.Entry<BeaconIdentityKey,ReportedBeacon>> iterator = mReportedBeaconsByKey.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<BeaconIdentityKey,ReportedBeacon> entry = iterator.next();
+            if (!visibleBeacons.containsKey(entry.getKey())) {
+                removedBeacons.add(entry.getValue().mBeacon);
+                iterator.remove();
+            }
+        }
+        if (updatedBeacons.isEmpty() && removedBeacons.isEmpty()) {
+            return null;
+        }
+        return new RangingData(updatedBeacons, removedBeacons, reset, region);
+    }
 
-        synchronized (mRangedBeacons) {
-            for (Beacon beacon : mRangedBeacons.keySet()) {
-                RangedBeacon rangedBeacon = mRangedBeacons.get(beacon);
+    /**
+     * Forgets what was returned by <code>finalizeBeaconChanges</code>, so the next call reports
+     * all visible beacons as new.
+     */
+    public synchronized void clearReportedBeacons() {
+        mReportedBeaconsByKey.clear();
+    }
+
+    /**
+     * @return true if the ranged and reported beacons can be written by <code>writeTo</code>
+     */
+    synchronized boolean canEncode() {
+        if (!BeaconBatchCodec.canEncode(mRegion)) {
+            return false;
+        }
+        for (RangedBeacon rangedBeacon : rangedBeacons()) {
+            if (!BeaconBatchCodec.canEncode(Collections.singletonList(rangedBeacon.getBeacon()))) {
+                return false;
+            }
+        }
+        for (ReportedBeacon reportedBeacon : mReportedBeaconsByKey.values()) {
+            if (!BeaconBatchCodec.canEncode(Collections.singletonList(reportedBeacon.mBeacon))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the ranged and reported beacons for saving the scan state.  Rssi filter measurements
+     * are not saved.
+     */
+    synchronized void writeTo(BeaconBatchCodec.Writer writer) throws IOException {
+        writer.writeRegion(mRegion);
+        List<RangedBeacon> rangedBeacons = rangedBeacons();
+        List<Beacon> beacons = new ArrayList<Beacon>(rangedBeacons.size());
+        for (RangedBeacon rangedBeacon : rangedBeacons) {
+            beacons.add(rangedBeacon.getBeacon());
+        }
+        writer.writeBeacons(beacons);
+        for (RangedBeacon rangedBeacon : rangedBeacons) {
+            writer.writeBoolean(rangedBeacon.isTracked());
+            writer.writeLong(rangedBeacon.getLastTrackedTimeMillis());
+        }
+        beacons = new ArrayList<Beacon>(mReportedBeaconsByKey.size());
+        for (ReportedBeacon reportedBeacon : mReportedBeaconsByKey.values()) {
+            beacons.add(reportedBeacon.mBeacon);
+        }
+        writer.writeBeacons(beacons);
+        for (ReportedBeacon reportedBeacon : mReportedBeaconsByKey.values()) {
+            writer.writeDouble(reportedBeacon.mRssi);
+            writer.writeDouble(reportedBeacon.mDistance);
+        }
+    }
+
+    /**
+     * Reads a range state written by <code>writeTo</code>
+     */
+    static RangeState readFrom(BeaconBatchCodec.Reader reader, Callback callback) throws IOException {
+        RangeState rangeState = new RangeState(callback, reader.readRegion());
+        List<Beacon> beacons = reader.readBeacons();
+        if (beacons == null) {
+            throw new IOException("Missing ranged beacons");
+        }
+        RssiFilter.Factory filterFactory = BeaconManager.getRssiFilterFactory(rangeState.mRegion);
+        for (Beacon beacon : beacons) {
+            rangeState.mDefaultPartition.mRangedBeaconsByKey.put(beacon.getIdentityKey(),
+                    new RangedBeacon(beacon, filterFactory, reader.readBoolean(), reader.readLong()));
+        }
+        beacons = reader.readBeacons();
+        if (beacons == null) {
+            throw new IOException("Missing reported beacons");
+        }
+        for (Beacon beacon : beacons) {
+            rangeState.mReportedBeaconsByKey.put(beacon.getIdentityKey(),
+                    new ReportedBeacon(beacon, reader.readDouble(), reader.readDouble()));
+        }
+        return rangeState;
+    }
+
+    /**
+     * @return the ranged beacons of all partitions
+     */
+    private List<RangedBeacon> rangedBeacons() {
+        List<RangedBeacon> rangedBeacons = new ArrayList<RangedBeacon>();
+        for (Partition partition : mPartitionsByOwner.values()) {
+            synchronized (partition) {
+                rangedBeacons.addAll(partition.mRangedBeaconsByKey.values());
+            }
+        }
+        return rangedBeacons;
+    }
+
+    public static void setUseTrackingCache(boolean useTrackingCache) {
+        RangeState.sUseTrackingCache = useTrackingCache;
+    }
+
+    public static boolean getUseTrackingCache() {
+        return sUseTrackingCache;
+    }
+
+    public static void setDeltaReportingEnabled(boolean deltaReportingEnabled) {
+        RangeState.sDeltaReportingEnabled = deltaReportingEnabled;
+    }
+
+    public static boolean getDeltaReportingEnabled() {
+        return sDeltaReportingEnabled;
+    }
+
+    public static void setDeltaThresholds(double rssiThreshold, double distanceThreshold) {
+        RangeState.sDeltaRssiThreshold = rssiThreshold;
+        RangeState.sDeltaDistanceThreshold = distanceThreshold;
+    }
+
+    public static double getDeltaRssiThreshold() {
+        return sDeltaRssiThreshold;
+    }
+
+    public static double getDeltaDistanceThreshold() {
+        return sDeltaDistanceThreshold;
+    }
+
+    /**
+     * The ranged beacons added by one owner, guarded by the partition monitor.
+     * <p>
+     * A beacon seen from devices handled by different owners is ranged in each of their
+     * partitions.  When finalizing, the one tracked most recently is returned.
+     */
+    final class Partition {
+        final Map<BeaconIdentityKey,RangedBeacon> mRangedBeaconsByKey = new HashMap<BeaconIdentityKey,RangedBeacon>();
+
+        private Partition() {
+        }
+
+        /**
+         * Adds a measurement of the beacon.
+         */
+        synchronized void addBeacon(Beacon beacon) {
+            BeaconIdentityKey key = beacon.getIdentityKey();
+            RangedBeacon rangedBeacon = mRangedBeaconsByKey.get(key);
+            if (rangedBeacon != null) {
+                if (LogManager.isVerboseLoggingEnabled()) {
+                    LogManager.d(TAG, "adding %s to existing range for: %s", beacon, rangedBeacon);
+                }
+                rangedBeacon.updateBeacon(beacon);
+            }
+            else {
+                if (LogManager.isVerboseLoggingEnabled()) {
+                    LogManager.d(TAG, "adding %s to new rangedBeacon", beacon);
+                }
+                mRangedBeaconsByKey.put(key, new RangedBeacon(beacon, BeaconManager.getRssiFilterFactory(mRegion)));
+            }
+        }
+
+        private synchronized void finalizeBeacons(Map<BeaconIdentityKey,FinalizedBeacon> finalizedBeacons) {
+            Iterator<Map.Entry<BeaconIdentityKey,RangedBeacon>> iterator = mRangedBeaconsByKey.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<BeaconIdentityKey,RangedBeacon> entry = iterator.next();
+                RangedBeacon rangedBeacon = entry.getValue();
                 if (rangedBeacon.isTracked()) {
                     rangedBeacon.commitMeasurements(); // calculates accuracy
                     if (!rangedBeacon.noMeasurementsAvailable()) {
-                        finalizedBeacons.add(rangedBeacon.getBeacon());
+                        FinalizedBeacon other = finalizedBeacons.get(entry.getKey());
+                        if (other == null || other.mLastTrackedTimeMillis < rangedBeacon.getLastTrackedTimeMillis()) {
+                            finalizedBeacons.put(entry.getKey(), new FinalizedBeacon(rangedBeacon));
+                        }
                     }
                 }
                 // If we still have useful measurements, keep it around but mark it as not
@@ -84,24 +330,67 @@ public class RangeState implements Serializable {
                     //measurements for a certain amount of time
                     if (!sUseTrackingCache || rangedBeacon.isExpired())
                         rangedBeacon.setTracked(false);
-                    newRangedBeacons.put(beacon, rangedBeacon);
                 }
                 else {
                     LogManager.d(TAG, "Dumping beacon from RangeState because it has no recent measurements.");
+                    rangedBeacon.recycleFilter();
+                    iterator.remove();
                 }
             }
-            mRangedBeacons = newRangedBeacons;
         }
+    }
 
-        return finalizedBeacons;
+    /**
+     * A beacon returned by finalizing, copied while its partition is locked
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(new ArrayList<RangedBeacon>(rangedBeacons()));
     }
 
-    public static void setUseTrackingCache(boolean useTrackingCache) {
-        RangeState.sUseTrackingCache = useTrackingCache;
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        mPartitionsByOwner = new IdentityHashMap<Object,Partition>();
+        mDefaultPartition = partitionFor(this);
+        for (RangedBeacon rangedBeacon : (List<RangedBeacon>) in.readObject()) {
+            mDefaultPartition.mRangedBeaconsByKey.put(rangedBeacon.getBeacon().getIdentityKey(), rangedBeacon);
+        }
     }
 
-    public static boolean getUseTrackingCache() {
-        return sUseTrackingCache;
+    private static class FinalizedBeacon {
+        final Beacon mBeacon;
+        final long mLastTrackedTimeMillis;
+
+        FinalizedBeacon(RangedBeacon rangedBeacon) {
+            mBeacon = rangedBeacon.getBeacon();
+            mLastTrackedTimeMillis = rangedBeacon.getLastTrackedTimeMillis();
+        }
+    }
+
+    /**
+     * The values of a beacon when it was last reported.  The beacon itself may be updated in
+     * place by later cycles, so the values are copied.
+     */
+    private static class ReportedBeacon implements Serializable {
+        final Beacon mBeacon;
+        final double mRssi;
+        final double mDistance;
+
+        ReportedBeacon(Beacon beacon) {
+            this(beacon, beacon.getRunningAverageRssi(), beacon.getDistance());
+        }
+
+        ReportedBeacon(Beacon beacon, double rssi, double distance) {
+            mBeacon = beacon;
+            mRssi = rssi;
+            mDistance = distance;
+        }
+
+        boolean hasChanged(Beacon beacon) {
+            return Math.abs(beacon.getRunningAverageRssi() - mRssi) >= sDeltaRssiThreshold ||
+                    Math.abs(beacon.getDistance() - mDistance) >= sDeltaDistanceThreshold;
+        }
     }
 
 }
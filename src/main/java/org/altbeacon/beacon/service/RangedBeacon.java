@@ -7,7 +7,6 @@ import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.logging.LogManager;
 
 import java.io.Serializable;
-import java.lang.reflect.Constructor;
 
 public class RangedBeacon implements Serializable {
 
@@ -21,11 +20,35 @@ public class RangedBeacon implements Serializable {
     protected long lastTrackedTimeMillis = 0;
     Beacon mBeacon;
     protected transient RssiFilter mFilter = null;
+    private transient RssiFilter.Factory mFilterFactory;
 
     public RangedBeacon(Beacon beacon) {
+        this(beacon, null);
+    }
+
+    /**
+     * @param beacon
+     * @param filterFactory creates the rssi filter for this beacon, or null to use the default
+     */
+    public RangedBeacon(Beacon beacon, RssiFilter.Factory filterFactory) {
+        mFilterFactory = filterFactory;
         updateBeacon(beacon);
     }
 
+    /**
+     * Restores a ranged beacon from a saved scan state, without adding a measurement
+     */
+    RangedBeacon(Beacon beacon, RssiFilter.Factory filterFactory, boolean tracked, long lastTrackedTimeMillis) {
+        mBeacon = beacon;
+        mFilterFactory = filterFactory;
+        mTracked = tracked;
+        this.lastTrackedTimeMillis = lastTrackedTimeMillis;
+    }
+
+    long getLastTrackedTimeMillis() {
+        return lastTrackedTimeMillis;
+    }
+
     public void updateBeacon(Beacon beacon) {
         mBeacon = beacon;
         addMeasurement(mBeacon.getRssi());
@@ -88,15 +111,23 @@ public class RangedBeacon implements Serializable {
         return getTrackingAge() > maxTrackingAge;
     }
 
+    /**
+     * Returns the rssi filter to its factory for reuse.  Called when this beacon is no longer
+     * ranged.
+     */
+    public void recycleFilter() {
+        if (mFilter != null) {
+            mFilterFactory.recycleFilter(mFilter);
+            mFilter = null;
+        }
+    }
+
     private RssiFilter getFilter() {
         if (mFilter == null) {
-            //set RSSI filter
-            try {
-            Constructor cons = BeaconManager.getRssiFilterImplClass().getConstructors()[0];
-                mFilter = (RssiFilter)cons.newInstance();
-            } catch (Exception e) {
-                LogManager.e(TAG, "Could not construct RssiFilterImplClass %s", BeaconManager.getRssiFilterImplClass().getName());
+            if (mFilterFactory == null) {
+                mFilterFactory = BeaconManager.getRssiFilterFactory();
             }
+            mFilter = mFilterFactory.createFilter();
         }
         return mFilter;
     }
@@ -23,14 +23,18 @@
  */
 package org.altbeacon.beacon.service;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconBatchCodec;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.logging.LogManager;
 
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 
 /**
  * Internal class used to transfer ranging data between the BeaconService and the client
@@ -40,16 +44,41 @@ public class RangingData {
     private static final String TAG = "RangingData";
     private final Collection<Beacon> mBeacons;
     private final Region mRegion;
+    // Only set when reporting changes: beacons no longer visible, and whether this is the first report
+    private final Collection<Beacon> mRemovedBeacons;
+    private final boolean mReset;
     private static final String REGION_KEY = "region";
     private static final String BEACONS_KEY = "beacons";
+    private static final String REMOVED_BEACONS_KEY = "removedBeacons";
+    private static final String RESET_KEY = "reset";
+    private static final String BATCH_KEY = "batch";
 
     public RangingData (Collection<Beacon> beacons, Region region) {
         synchronized (beacons) {
             this.mBeacons =  beacons;
         }
         this.mRegion = region;
+        this.mRemovedBeacons = null;
+        this.mReset = false;
     }
 
+    /**
+     * Ranging data holding only the changes since the last report
+     * @param updatedBeacons beacons that are newly visible or have changed
+     * @param removedBeacons beacons that are no longer visible
+     * @param reset true if the receiver should forget beacons from earlier reports
+     * @param region
+     */
+    public RangingData (Collection<Beacon> updatedBeacons, Collection<Beacon> removedBeacons, boolean reset, Region region) {
+        this.mBeacons = updatedBeacons;
+        this.mRemovedBeacons = removedBeacons;
+        this.mReset = reset;
+        this.mRegion = region;
+    }
+
+    /**
+     * @return the visible beacons, or if this holds changes, the newly visible and changed beacons
+     */
     public Collection<Beacon> getBeacons() {
         return mBeacons;
     }
@@ -57,19 +86,57 @@ public class RangingData {
         return mRegion;
     }
 
+    /**
+     * @return true if this holds only the changes since the last report
+     */
+    public boolean isDelta() {
+        return mRemovedBeacons != null;
+    }
+
+    /**
+     * @return the beacons no longer visible, or null if this does not hold changes
+     */
+    public Collection<Beacon> getRemovedBeacons() {
+        return mRemovedBeacons;
+    }
+
+    /**
+     * @return true if beacons from earlier reports should be forgotten before applying the changes
+     */
+    public boolean isReset() {
+        return mReset;
+    }
+
     public Bundle toBundle() {
         Bundle bundle = new Bundle();
+        byte[] batch = toBatch();
+        if (batch != null) {
+            bundle.putByteArray(BATCH_KEY, batch);
+            return bundle;
+        }
         bundle.putSerializable(REGION_KEY, mRegion);
         ArrayList<Serializable> serializableBeacons = new ArrayList<Serializable>();
         for (Beacon beacon : mBeacons) {
             serializableBeacons.add(beacon);
         }
         bundle.putSerializable(BEACONS_KEY, serializableBeacons);
+        if (mRemovedBeacons != null) {
+            bundle.putSerializable(REMOVED_BEACONS_KEY, new ArrayList<Beacon>(mRemovedBeacons));
+            bundle.putBoolean(RESET_KEY, mReset);
+        }
 
         return bundle;
     }
+    /**
+     * @return the ranging data in the bundle, or null if it cannot be decoded
+     */
+    @Nullable
     public static RangingData fromBundle(Bundle bundle) {
         bundle.setClassLoader(Region.class.getClassLoader());
+        byte[] batch = bundle.getByteArray(BATCH_KEY);
+        if (batch != null) {
+            return fromBatch(batch);
+        }
         Region region = null;
         Collection<Beacon> beacons = null;
         if (bundle.get(BEACONS_KEY) != null) {
@@ -78,8 +145,52 @@ public class RangingData {
         if (bundle.get(REGION_KEY) != null) {
             region = (Region) bundle.getSerializable(REGION_KEY);
         }
+        if (bundle.get(REMOVED_BEACONS_KEY) != null) {
+            Collection<Beacon> removedBeacons = (Collection<Beacon>) bundle.getSerializable(REMOVED_BEACONS_KEY);
+            return new RangingData(beacons, removedBeacons, bundle.getBoolean(RESET_KEY), region);
+        }
 
         return new RangingData(beacons, region);
     }
 
+    /**
+     * @return the compact encoding of this data, or null if it holds beacon or region subclasses
+     * that must be serialized instead
+     */
+    private byte[] toBatch() {
+        if (!BeaconBatchCodec.canEncode(mRegion) || !BeaconBatchCodec.canEncode(mBeacons) ||
+                (mRemovedBeacons != null && !BeaconBatchCodec.canEncode(mRemovedBeacons))) {
+            return null;
+        }
+        try {
+            BeaconBatchCodec.Writer writer = new BeaconBatchCodec.Writer();
+            writer.writeRegion(mRegion);
+            writer.writeBeacons(mBeacons);
+            writer.writeBeacons(mRemovedBeacons);
+            writer.writeBoolean(mReset);
+            return writer.toByteArray();
+        } catch (IOException e) {
+            LogManager.e(TAG, "Cannot encode ranging data", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static RangingData fromBatch(byte[] batch) {
+        try {
+            BeaconBatchCodec.Reader reader = new BeaconBatchCodec.Reader(batch);
+            Region region = reader.readRegion();
+            Collection<Beacon> beacons = reader.readBeacons();
+            Collection<Beacon> removedBeacons = reader.readBeacons();
+            boolean reset = reader.readBoolean();
+            if (removedBeacons != null) {
+                return new RangingData(beacons, removedBeacons, reset, region);
+            }
+            return new RangingData(beacons, region);
+        } catch (IOException e) {
+            LogManager.e(TAG, "Cannot decode ranging data.  Dropping it.", e);
+            return null;
+        }
+    }
+
 }
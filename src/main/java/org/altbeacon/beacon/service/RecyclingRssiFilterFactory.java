@@ -0,0 +1,55 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * Base for the built-in filter factories, which keep a bounded pool of recycled filters so that
+ * beacons coming and going do not allocate a new filter each time.
+ *
+ * @hide
+ */
+abstract class RecyclingRssiFilterFactory<T extends RssiFilter> implements RssiFilter.Factory {
+    private static final int MAX_POOLED_FILTERS = 64;
+    private final Class<T> mFilterClass;
+    private final ArrayDeque<T> mPool = new ArrayDeque<>();
+
+    RecyclingRssiFilterFactory(Class<T> filterClass) {
+        mFilterClass = filterClass;
+    }
+
+    /**
+     * @return a new filter with no measurements
+     */
+    abstract T newFilter();
+
+    /**
+     * Clears all measurements from a filter so it can be reused.
+     */
+    abstract void resetFilter(T filter);
+
+    @NonNull
+    @Override
+    public RssiFilter createFilter() {
+        T filter;
+        synchronized (mPool) {
+            filter = mPool.poll();
+        }
+        return filter != null ? filter : newFilter();
+    }
+
+    @Override
+    public void recycleFilter(@NonNull RssiFilter filter) {
+        if (!mFilterClass.isInstance(filter)) {
+            return;
+        }
+        T recycled = mFilterClass.cast(filter);
+        resetFilter(recycled);
+        synchronized (mPool) {
+            if (mPool.size() < MAX_POOLED_FILTERS) {
+                mPool.push(recycled);
+            }
+        }
+    }
+}
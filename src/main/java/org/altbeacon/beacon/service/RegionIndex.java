@@ -0,0 +1,209 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Finds the regions matching a beacon without calling <code>Region#matchesBeacon</code> on every
+ * region.
+ *
+ * Regions are grouped by which of their identifiers are set (wildcard identifiers are null) and
+ * whether they are restricted to a bluetooth address.  Within a group, regions are looked up by a
+ * hash of the identifiers and address they require, so a lookup costs one hash computation and
+ * binary search per group rather than a comparison per region.  Candidates are still confirmed with
+ * <code>Region#matchesBeacon</code>, so hash collisions cannot produce false matches.  Regions that
+ * do not restrict anything match every beacon and are kept in a separate list.
+ *
+ * Instances are immutable and may be shared between threads.  An index must be rebuilt when the
+ * regions it was built from change.
+ *
+ * @hide
+ */
+class RegionIndex {
+    // Identifier positions beyond this are not part of the index key
+    private static final int MAX_INDEXED_IDENTIFIERS = 64;
+
+    private final Set<Region> mRegions;
+    private final MaskGroup[] mMaskGroups;
+    private final Region[] mUnindexedRegions;
+
+    RegionIndex(@NonNull Collection<Region> regions) {
+        mRegions = Collections.newSetFromMap(new IdentityHashMap<Region, Boolean>());
+        mRegions.addAll(regions);
+
+        TreeMap<String, List<Region>> regionsByMask = new TreeMap<>();
+        List<Region> unindexedRegions = new ArrayList<>();
+        for (Region region : mRegions) {
+            long identifierMask = identifierMask(region);
+            boolean usesBluetoothAddress = region.getBluetoothAddress() != null;
+            if (identifierMask == 0 && !usesBluetoothAddress) {
+                unindexedRegions.add(region);
+                continue;
+            }
+            String maskKey = identifierMask + "/" + usesBluetoothAddress;
+            List<Region> maskRegions = regionsByMask.get(maskKey);
+            if (maskRegions == null) {
+                maskRegions = new ArrayList<>();
+                regionsByMask.put(maskKey, maskRegions);
+            }
+            maskRegions.add(region);
+        }
+        mMaskGroups = new MaskGroup[regionsByMask.size()];
+        int groupIndex = 0;
+        for (List<Region> maskRegions : regionsByMask.values()) {
+            mMaskGroups[groupIndex++] = new MaskGroup(maskRegions);
+        }
+        mUnindexedRegions = unindexedRegions.toArray(new Region[unindexedRegions.size()]);
+    }
+
+    /**
+     * @return true if this index was built from exactly these region instances
+     */
+    boolean isIndexOf(@NonNull Collection<Region> regions) {
+        if (regions.size() != mRegions.size()) {
+            return false;
+        }
+        for (Region region : regions) {
+            if (!mRegions.contains(region)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the indexed regions that match the beacon
+     */
+    @NonNull
+    List<Region> matchingRegions(@NonNull Beacon beacon) {
+        List<Region> matched = new ArrayList<>();
+        List<Identifier> identifiers = beacon.getIdentifiers();
+        for (MaskGroup maskGroup : mMaskGroups) {
+            maskGroup.addMatchingRegions(beacon, identifiers, matched);
+        }
+        for (Region region : mUnindexedRegions) {
+            if (region.matchesBeacon(beacon)) {
+                matched.add(region);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @return a bit for each of the first 64 identifiers the region requires.  Candidates are
+     * always confirmed with <code>Region#matchesBeacon</code>, so identifiers beyond these may be
+     * left out of the key.
+     */
+    private static long identifierMask(Region region) {
+        long mask = 0;
+        for (int i = 0; i < MAX_INDEXED_IDENTIFIERS; i++) {
+            if (region.getIdentifier(i) != null) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Case insensitive hash of a bluetooth address, matching <code>String#equalsIgnoreCase</code>
+     * as used by <code>Region#matchesBeacon</code>
+     */
+    private static int bluetoothAddressHash(String bluetoothAddress) {
+        int hash = 0;
+        for (int i = 0; i < bluetoothAddress.length(); i++) {
+            hash = 31 * hash + Character.toUpperCase(bluetoothAddress.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Regions that require the same identifier positions and bluetooth address presence, stored as
+     * a sorted hash table for allocation free binary search lookups.
+     */
+    private static final class MaskGroup {
+        private final long mIdentifierMask;
+        private final int mHighestIdentifier;
+        private final boolean mUsesBluetoothAddress;
+        private final int[] mHashes;
+        private final Region[][] mRegions;
+
+        MaskGroup(List<Region> regions) {
+            Region first = regions.get(0);
+            mIdentifierMask = identifierMask(first);
+            mHighestIdentifier = 63 - Long.numberOfLeadingZeros(mIdentifierMask);
+            mUsesBluetoothAddress = first.getBluetoothAddress() != null;
+
+            TreeMap<Integer, List<Region>> regionsByHash = new TreeMap<>();
+            for (Region region : regions) {
+                int hash = 1;
+                for (int i = 0; i <= mHighestIdentifier; i++) {
+                    if ((mIdentifierMask & (1L << i)) != 0) {
+                        hash = 31 * hash + region.getIdentifier(i).hashCode();
+                    }
+                }
+                if (mUsesBluetoothAddress) {
+                    hash = 31 * hash + bluetoothAddressHash(region.getBluetoothAddress());
+                }
+                List<Region> hashRegions = regionsByHash.get(hash);
+                if (hashRegions == null) {
+                    hashRegions = new ArrayList<>();
+                    regionsByHash.put(hash, hashRegions);
+                }
+                hashRegions.add(region);
+            }
+            mHashes = new int[regionsByHash.size()];
+            mRegions = new Region[regionsByHash.size()][];
+            int index = 0;
+            for (Integer hash : regionsByHash.keySet()) {
+                List<Region> hashRegions = regionsByHash.get(hash);
+                mHashes[index] = hash;
+                mRegions[index] = hashRegions.toArray(new Region[hashRegions.size()]);
+                index++;
+            }
+        }
+
+        void addMatchingRegions(Beacon beacon, List<Identifier> identifiers, List<Region> matched) {
+            if (mHighestIdentifier >= identifiers.size()) {
+                return;
+            }
+            int hash = 1;
+            for (int i = 0; i <= mHighestIdentifier; i++) {
+                if ((mIdentifierMask & (1L << i)) != 0) {
+                    Identifier identifier = identifiers.get(i);
+                    if (identifier == null) {
+                        return;
+                    }
+                    hash = 31 * hash + identifier.hashCode();
+                }
+            }
+            if (mUsesBluetoothAddress) {
+                String bluetoothAddress = beacon.getBluetoothAddress();
+                if (bluetoothAddress == null) {
+                    return;
+                }
+                hash = 31 * hash + bluetoothAddressHash(bluetoothAddress);
+            }
+            int index = Arrays.binarySearch(mHashes, hash);
+            if (index < 0) {
+                return;
+            }
+            for (Region region : mRegions[index]) {
+                if (region.matchesBeacon(beacon)) {
+                    matched.add(region);
+                }
+            }
+        }
+    }
+}
@@ -40,6 +40,12 @@ public class RegionMonitoringState implements Serializable {
         callback = c;
     }
 
+    RegionMonitoringState(Callback c, boolean inside, long lastSeenTime) {
+        callback = c;
+        this.inside = inside;
+        this.lastSeenTime = lastSeenTime;
+    }
+
     public Callback getCallback() {
         return callback;
     }
@@ -76,4 +82,12 @@ public class RegionMonitoringState implements Serializable {
     public boolean getInside() {
         return inside;
     }
+
+    /**
+     * @return the <code>SystemClock#elapsedRealtime</code> when a beacon was last seen in the
+     * region, or 0 if outside
+     */
+    public long getLastSeenTime() {
+        return lastSeenTime;
+    }
 }
@@ -1,5 +1,7 @@
 package org.altbeacon.beacon.service;
 
+import android.support.annotation.NonNull;
+
 /**
  * Interface that can be implemented to overwrite measurement and filtering
  * of RSSI values
@@ -10,4 +12,25 @@ public interface RssiFilter {
     public boolean noMeasurementsAvailable();
     public double calculateRssi();
 
+    /**
+     * Creates the filter used for each ranged beacon, so that filters can be configured per
+     * instance rather than through static fields, and can be reused once a beacon is no longer
+     * ranged.
+     *
+     * @see org.altbeacon.beacon.BeaconManager#setRssiFilterFactory(Factory)
+     * @see org.altbeacon.beacon.BeaconManager#setRssiFilterFactory(org.altbeacon.beacon.Region, Factory)
+     */
+    public interface Factory {
+        /**
+         * @return a filter with no measurements
+         */
+        @NonNull
+        public RssiFilter createFilter();
+
+        /**
+         * Called with a filter created by this factory once it is no longer in use.  Factories
+         * that do not reuse filters may ignore it.
+         */
+        public void recycleFilter(@NonNull RssiFilter filter);
+    }
 }
@@ -6,39 +6,98 @@ import android.support.annotation.RestrictTo.Scope;
 
 import org.altbeacon.beacon.logging.LogManager;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * Calculate a RSSI value on base of an arbitrary list of measured RSSI values
  * The list is clipped by a certain length at start and end and the average
  * is calculate by simple arithmetic average
+ *
+ * Measurements are kept in a ring buffer in the order they arrive, so expired measurements are
+ * always removed from its head.  A histogram of the RSSI values gives the sorted order needed to
+ * clip the list without sorting, and a running sum gives the average without revisiting the
+ * measurements that are kept.
  */
 public class RunningAverageRssiFilter implements RssiFilter {
 
     private static final String TAG = "RunningAverageRssiFilter";
     public static final long DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS = 20000; /* 20 seconds */
     private static long sampleExpirationMilliseconds = DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS;
-    private ArrayList<Measurement> mMeasurements = new ArrayList<Measurement>();
+    private static final int INITIAL_CAPACITY = 32;
+    // Histogram covers every RSSI a bluetooth controller can report
+    private static final int MIN_HISTOGRAM_RSSI = -128;
+    private static final int MAX_HISTOGRAM_RSSI = 127;
+
+    private int[] mRssis = new int[INITIAL_CAPACITY];
+    private long[] mTimestamps = new long[INITIAL_CAPACITY];
+    private int mHead = 0;
+    private int mSize = 0;
+    private final int[] mHistogram = new int[MAX_HISTOGRAM_RSSI - MIN_HISTOGRAM_RSSI + 1];
+    private long mSum = 0;
+    // Measurements outside the histogram range, which fall back to sorting
+    private int mOutOfRangeCount = 0;
+    // Negative to use the static sample expiration
+    private final long mSampleExpirationMilliseconds;
+
+    public RunningAverageRssiFilter() {
+        this(-1);
+    }
+
+    /**
+     * @param sampleExpirationMilliseconds how long each measurement is included in the average,
+     *                                     overriding <code>setSampleExpirationMilliseconds</code>
+     */
+    public RunningAverageRssiFilter(long sampleExpirationMilliseconds) {
+        mSampleExpirationMilliseconds = sampleExpirationMilliseconds;
+    }
+
+    /**
+     * Returns a factory for filters that average measurements over the given time
+     * @param sampleExpirationMilliseconds how long each measurement is included in the average
+     * @return factory
+     */
+    public static RssiFilter.Factory factory(final long sampleExpirationMilliseconds) {
+        return new RecyclingRssiFilterFactory<RunningAverageRssiFilter>(RunningAverageRssiFilter.class) {
+            @Override
+            RunningAverageRssiFilter newFilter() {
+                return new RunningAverageRssiFilter(sampleExpirationMilliseconds);
+            }
+
+            @Override
+            void resetFilter(RunningAverageRssiFilter filter) {
+                filter.reset();
+            }
+        };
+    }
 
     @Override
-    public void addMeasurement(Integer rssi) {
-        Measurement measurement = new Measurement();
-        measurement.rssi = rssi;
-        measurement.timestamp = SystemClock.elapsedRealtime();
-        mMeasurements.add(measurement);
+    public synchronized void addMeasurement(Integer rssi) {
+        if (mSize == mRssis.length) {
+            grow();
+        }
+        int tail = (mHead + mSize) % mRssis.length;
+        int value = rssi;
+        mRssis[tail] = value;
+        mTimestamps[tail] = SystemClock.elapsedRealtime();
+        mSize++;
+        mSum += value;
+        if (value >= MIN_HISTOGRAM_RSSI && value <= MAX_HISTOGRAM_RSSI) {
+            mHistogram[value - MIN_HISTOGRAM_RSSI]++;
+        }
+        else {
+            mOutOfRangeCount++;
+        }
     }
 
     @Override
-    public boolean noMeasurementsAvailable() {
-        return mMeasurements.size() == 0;
+    public synchronized boolean noMeasurementsAvailable() {
+        return mSize == 0;
     }
 
     @Override
-    public double calculateRssi() {
+    public synchronized double calculateRssi() {
         refreshMeasurements();
-        int size = mMeasurements.size();
+        int size = mSize;
         int startIndex = 0;
         int endIndex = size -1;
         if (size > 2) {
@@ -46,9 +105,12 @@ public class RunningAverageRssiFilter implements RssiFilter {
             endIndex = size-size/10-2;
         }
 
-        double sum = 0;
-        for (int i = startIndex; i <= endIndex; i++) {
-            sum += mMeasurements.get(i).rssi;
+        double sum;
+        if (mOutOfRangeCount > 0) {
+            sum = sortedSum(startIndex, endIndex);
+        }
+        else {
+            sum = mSum - lowestSum(startIndex) - highestSum(size - 1 - endIndex);
         }
         double runningAverage = sum/(endIndex-startIndex+1);
 
@@ -57,26 +119,81 @@ public class RunningAverageRssiFilter implements RssiFilter {
         return runningAverage;
     }
 
-    private synchronized void refreshMeasurements() {
-        ArrayList<Measurement> newMeasurements = new ArrayList<Measurement>();
-        Iterator<Measurement> iterator = mMeasurements.iterator();
-        while (iterator.hasNext()) {
-            Measurement measurement = iterator.next();
-            if (SystemClock.elapsedRealtime() - measurement.timestamp < sampleExpirationMilliseconds ) {
-                newMeasurements.add(measurement);
+    synchronized void reset() {
+        mHead = 0;
+        mSize = 0;
+        mSum = 0;
+        mOutOfRangeCount = 0;
+        Arrays.fill(mHistogram, 0);
+    }
+
+    private void refreshMeasurements() {
+        long now = SystemClock.elapsedRealtime();
+        long expirationMilliseconds = mSampleExpirationMilliseconds >= 0 ?
+                mSampleExpirationMilliseconds : sampleExpirationMilliseconds;
+        while (mSize > 0 && now - mTimestamps[mHead] >= expirationMilliseconds) {
+            int value = mRssis[mHead];
+            mSum -= value;
+            if (value >= MIN_HISTOGRAM_RSSI && value <= MAX_HISTOGRAM_RSSI) {
+                mHistogram[value - MIN_HISTOGRAM_RSSI]--;
             }
+            else {
+                mOutOfRangeCount--;
+            }
+            mHead = (mHead + 1) % mRssis.length;
+            mSize--;
+        }
+    }
+
+    /**
+     * @return the sum of the <code>count</code> lowest measurements
+     */
+    private long lowestSum(int count) {
+        long sum = 0;
+        for (int bin = 0; count > 0; bin++) {
+            int taken = Math.min(count, mHistogram[bin]);
+            sum += (long) taken * (bin + MIN_HISTOGRAM_RSSI);
+            count -= taken;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the sum of the <code>count</code> highest measurements
+     */
+    private long highestSum(int count) {
+        long sum = 0;
+        for (int bin = mHistogram.length - 1; count > 0; bin--) {
+            int taken = Math.min(count, mHistogram[bin]);
+            sum += (long) taken * (bin + MIN_HISTOGRAM_RSSI);
+            count -= taken;
+        }
+        return sum;
+    }
+
+    private double sortedSum(int startIndex, int endIndex) {
+        int[] sorted = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            sorted[i] = mRssis[(mHead + i) % mRssis.length];
+        }
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (int i = startIndex; i <= endIndex; i++) {
+            sum += sorted[i];
         }
-        mMeasurements = newMeasurements;
-        Collections.sort(mMeasurements);
+        return sum;
     }
 
-    private class Measurement implements Comparable<Measurement> {
-        Integer rssi;
-        long timestamp;
-        @Override
-        public int compareTo(Measurement arg0) {
-            return rssi.compareTo(arg0.rssi);
+    private void grow() {
+        int[] rssis = new int[mRssis.length * 2];
+        long[] timestamps = new long[mTimestamps.length * 2];
+        for (int i = 0; i < mSize; i++) {
+            rssis[i] = mRssis[(mHead + i) % mRssis.length];
+            timestamps[i] = mTimestamps[(mHead + i) % mTimestamps.length];
         }
+        mRssis = rssis;
+        mTimestamps = timestamps;
+        mHead = 0;
     }
 
     public static void setSampleExpirationMilliseconds(long newSampleExpirationMilliseconds) {
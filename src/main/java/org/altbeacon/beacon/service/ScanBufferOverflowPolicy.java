@@ -0,0 +1,25 @@
+package org.altbeacon.beacon.service;
+
+/**
+ * Decides which scan result is lost when scan results arrive faster than they can be parsed and
+ * the scan buffer is full.
+ *
+ * @see org.altbeacon.beacon.BeaconManager#setScanBufferOverflowPolicy(ScanBufferOverflowPolicy)
+ */
+public enum ScanBufferOverflowPolicy {
+    /**
+     * Drops the oldest waiting scan result to make room for the new one.  This is the default, as
+     * it keeps the freshest signal strength readings.
+     */
+    DROP_OLDEST,
+    /**
+     * Drops the scan result that just arrived, keeping everything already waiting.
+     */
+    DROP_NEWEST,
+    /**
+     * Replaces the newest waiting scan result from the same device with the one that just arrived.
+     * If nothing from that device is waiting, the oldest waiting scan result is dropped.  Note that
+     * beacons transmitting several frame types from one device may lose some frames.
+     */
+    COALESCE_PER_DEVICE
+}
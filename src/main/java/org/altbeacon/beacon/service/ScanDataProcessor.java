@@ -165,7 +165,7 @@ public class ScanDataProcessor {
                 RangeState rangeState = mRangedRegionState.get(region);
                 LogManager.d(TAG, "Calling ranging callback");
                 Callback callback = new Callback(mService.getPackageName());
-                callback.call(mService, "rangingData", new RangingData(rangeState.finalizeBeacons(), region).toBundle());
+                callback.call(mService, new RangingData(rangeState.finalizeBeacons(), region));
             }
         }
     }
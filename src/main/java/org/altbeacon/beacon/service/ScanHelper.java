@@ -1,7 +1,6 @@
 package org.altbeacon.beacon.service;
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -12,16 +11,16 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
-import android.os.AsyncTask;
 import android.os.Build;
-import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.support.annotation.WorkerThread;
 import android.support.annotation.RestrictTo;
 import android.support.annotation.RestrictTo.Scope;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconIdentityKey;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BeaconParser;
 import org.altbeacon.beacon.Region;
@@ -33,18 +32,19 @@ import org.altbeacon.beacon.service.scanner.NonBeaconLeScanCallback;
 import org.altbeacon.beacon.service.scanner.ScanFilterUtils;
 import org.altbeacon.beacon.startup.StartupBroadcastReceiver;
 import org.altbeacon.bluetooth.BluetoothCrashResolver;
+import org.altbeacon.bluetooth.PduCursor;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by dyoung on 6/16/17.
@@ -60,20 +60,33 @@ import java.util.concurrent.RejectedExecutionException;
 class ScanHelper {
     private static final String TAG = ScanHelper.class.getSimpleName();
     private ExecutorService mExecutor;
+    private final ScanShard[] mShards;
     private BeaconManager mBeaconManager;
     private CycledLeScanner mCycledScanner;
     private MonitoringStatus mMonitoringStatus;
     private final Map<Region, RangeState> mRangedRegionState = new HashMap<>();
     private DistinctPacketDetector mDistinctPacketDetector = new DistinctPacketDetector();
     private ExtraDataBeaconTracker mExtraDataBeaconTracker;
-    private Set<BeaconParser> mBeaconParsers  = new HashSet<>();
+    // Read by the scan processing threads to range beacons as they are detected
+    private volatile RangedRegions mRangedRegions;
+    // Only used while merging shard detections at the end of a cycle
+    private final Map<BeaconIdentityKey, Beacon> mMergedDistinctBeacons = new HashMap<>();
+    private final List<ExtraDataBeaconTracker.Changes> mMergedTrackerChanges = new ArrayList<>();
+    private volatile BeaconParserDispatcher mBeaconParserDispatcher = new BeaconParserDispatcher(new HashSet<BeaconParser>());
     private List<Beacon> mSimulatedScanData = null;
     private Context mContext;
 
     ScanHelper(Context context) {
         mContext = context;
         mBeaconManager = BeaconManager.getInstanceForApplication(context);
-        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
+        int threadCount = BeaconManager.getScanProcessingThreadCount();
+        mExecutor = Executors.newFixedThreadPool(threadCount);
+        int shardCapacity = Math.max(1, BeaconManager.getScanBufferCapacity() / threadCount);
+        mShards = new ScanShard[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mShards[i] = new ScanShard(i, shardCapacity, BeaconManager.getScanBufferOverflowPolicy());
+        }
+        mRangedRegions = new RangedRegions(new HashMap<Region, RangeState>(), mShards);
     }
 
     CycledLeScanner getCycledScanner() {
@@ -96,15 +109,30 @@ class ScanHelper {
         synchronized (mRangedRegionState) {
             mRangedRegionState.clear();
             mRangedRegionState.putAll(rangedRegionState);
+            rangedRegionsChanged();
+        }
+    }
+
+    /**
+     * Must be called after ranged regions are added to or removed from the map returned by
+     * {@link #getRangedRegionState()}, so the scan processing threads range beacons in them.
+     */
+    void rangedRegionsChanged() {
+        synchronized (mRangedRegionState) {
+            mRangedRegions = new RangedRegions(mRangedRegionState, mShards);
         }
     }
 
     void setExtraDataBeaconTracker(ExtraDataBeaconTracker extraDataBeaconTracker) {
         mExtraDataBeaconTracker = extraDataBeaconTracker;
+        ExtraDataBeaconTracker[] shardTrackers = extraDataBeaconTracker.split(mShards.length);
+        for (int i = 0; i < mShards.length; i++) {
+            mShards[i].setExtraDataBeaconTracker(shardTrackers[i]);
+        }
     }
 
     void setBeaconParsers(Set<BeaconParser> beaconParsers) {
-        mBeaconParsers = beaconParsers;
+        mBeaconParserDispatcher = new BeaconParserDispatcher(beaconParsers);
     }
 
     void setSimulatedScanData(List<Beacon> simulatedScanData) {
@@ -118,21 +146,82 @@ class ScanHelper {
                 mCycledLeScanCallback, crashResolver);
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     void processScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        NonBeaconLeScanCallback nonBeaconLeScanCallback = mBeaconManager.getNonBeaconLeScanCallback();
-
-        try {
-            new ScanHelper.ScanProcessor(nonBeaconLeScanCallback).executeOnExecutor(mExecutor,
-                    new ScanHelper.ScanData(device, rssi, scanRecord));
-        } catch (RejectedExecutionException e) {
+        shardFor(device == null ? null : device.getAddress()).offer(device, rssi, scanRecord);
+    }
 
-            LogManager.w(TAG, "Ignoring scan result because we cannot keep up.");
+    /**
+     * Processes scan results delivered together by the Bluetooth controller.  Each shard processes
+     * its part of the batch as one task instead of through its scan record buffer, so a batch
+     * larger than the buffer is not dropped, and it is known when the whole batch is done.
+     *
+     * @param onProcessed if not null, run once every scan result has been processed
+     */
+    void processScanResultBatch(@NonNull final BluetoothDevice[] devices, @NonNull final int[] rssis,
+                                @NonNull final byte[][] scanRecords, @Nullable final Runnable onProcessed) {
+        int[] shardIndexes = new int[devices.length];
+        int[] shardSizes = new int[mShards.length];
+        for (int i = 0; i < devices.length; i++) {
+            shardIndexes[i] = ExtraDataBeaconTracker.shardIndexOf(
+                    devices[i] == null ? null : devices[i].getAddress(), mShards.length);
+            shardSizes[shardIndexes[i]]++;
+        }
+        int[][] indexesByShard = new int[mShards.length][];
+        int shardsWithResults = 0;
+        for (int shard = 0; shard < mShards.length; shard++) {
+            indexesByShard[shard] = new int[shardSizes[shard]];
+            if (shardSizes[shard] > 0) {
+                shardsWithResults++;
+            }
+            shardSizes[shard] = 0;
+        }
+        for (int i = 0; i < devices.length; i++) {
+            int shard = shardIndexes[i];
+            indexesByShard[shard][shardSizes[shard]++] = i;
+        }
+        if (shardsWithResults == 0) {
+            if (onProcessed != null) {
+                onProcessed.run();
+            }
+            return;
+        }
+        final AtomicInteger remainingShards = new AtomicInteger(shardsWithResults);
+        for (int shard = 0; shard < mShards.length; shard++) {
+            if (indexesByShard[shard].length == 0) {
+                continue;
+            }
+            final ScanShard scanShard = mShards[shard];
+            final int[] indexes = indexesByShard[shard];
+            Runnable batchTask = new Runnable() {
+                @WorkerThread
+                @Override
+                public void run() {
+                    try {
+                        scanShard.processBatch(devices, rssis, scanRecords, indexes);
+                    } finally {
+                        if (remainingShards.decrementAndGet() == 0 && onProcessed != null) {
+                            onProcessed.run();
+                        }
+                    }
+                }
+            };
+            try {
+                mExecutor.execute(batchTask);
+            } catch (RejectedExecutionException e) {
+                LogManager.w(TAG, "Cannot process batched scan results.  Dropping %d of them.", indexes.length);
+                if (remainingShards.decrementAndGet() == 0 && onProcessed != null) {
+                    onProcessed.run();
+                }
+            }
         }
     }
 
+    private ScanShard shardFor(String bluetoothAddress) {
+        return mShards[ExtraDataBeaconTracker.shardIndexOf(bluetoothAddress, mShards.length)];
+    }
+
     void reloadParsers() {
-        HashSet<BeaconParser> newBeaconParsers = new HashSet<>();
+        Set<BeaconParser> newBeaconParsers = new LinkedHashSet<>();
         //flatMap all beacon parsers
         boolean matchBeaconsByServiceUUID = true;
         newBeaconParsers.addAll(mBeaconManager.getBeaconParsers());
@@ -142,9 +231,9 @@ class ScanHelper {
                 newBeaconParsers.addAll(beaconParser.getExtraDataParsers());
             }
         }
-        mBeaconParsers = newBeaconParsers;
+        mBeaconParserDispatcher = new BeaconParserDispatcher(newBeaconParsers);
         //initialize the extra data beacon tracker
-        mExtraDataBeaconTracker = new ExtraDataBeaconTracker(matchBeaconsByServiceUUID);
+        setExtraDataBeaconTracker(new ExtraDataBeaconTracker(matchBeaconsByServiceUUID));
     }
 
     @RequiresApi(api = Build.VERSION_CODES.O)
@@ -204,18 +293,29 @@ class ScanHelper {
     }
 
     private final CycledLeScanCallback mCycledLeScanCallback = new CycledLeScanCallback() {
-        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
         @Override
-        @MainThread
         public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
             processScanResult(device, rssi, scanRecord);
         }
 
         @Override
-        @MainThread
+        public void onLeScanBatch(@NonNull BluetoothDevice[] devices, @NonNull int[] rssis,
+                                  @NonNull byte[][] scanRecords, @Nullable Runnable onProcessed) {
+            processScanResultBatch(devices, rssis, scanRecords, onProcessed);
+        }
+
+        @Override
         @SuppressLint("WrongThread")
         public void onCycleEnd() {
+            int droppedCount = 0;
+            for (ScanShard shard : mShards) {
+                droppedCount += shard.takeDroppedCount();
+            }
+            if (droppedCount > 0) {
+                LogManager.w(TAG, "Dropped %d scan results this cycle because we cannot keep up.", droppedCount);
+            }
             mDistinctPacketDetector.clearDetections();
+            mergeShardDetections();
             mMonitoringStatus.updateNewlyOutside();
             processRangeData();
             // If we want to use simulated scanning data, do it here.  This is used for testing in an emulator
@@ -229,7 +329,7 @@ class ScanHelper {
                         // This is an expensive call and we do not want to block the main thread.
                         // But here we are in debug/test mode so we allow it on the main thread.
                         //noinspection WrongThread
-                        processBeaconFromScan(beacon);
+                        shardFor(beacon.getBluetoothAddress()).processBeaconFromScan(beacon);
                     }
                 } else {
                     LogManager.w(TAG, "Simulated scan data provided, but ignored because we are not running in debug mode.  Please remove simulated scan data for production.");
@@ -244,7 +344,7 @@ class ScanHelper {
                             // This is an expensive call and we do not want to block the main thread.
                             // But here we are in debug/test mode so we allow it on the main thread.
                             //noinspection WrongThread
-                            processBeaconFromScan(beacon);
+                            shardFor(beacon.getBluetoothAddress()).processBeaconFromScan(beacon);
                         }
                     } else {
                         LogManager.w(TAG, "Beacon simulations provided, but ignored because we are not running in debug mode.  Please remove beacon simulations for production.");
@@ -263,147 +363,231 @@ class ScanHelper {
 
     private void processRangeData() {
         synchronized (mRangedRegionState) {
+            boolean deltaReportingEnabled = RangeState.getDeltaReportingEnabled();
             for (Region region : mRangedRegionState.keySet()) {
                 RangeState rangeState = mRangedRegionState.get(region);
-                LogManager.d(TAG, "Calling ranging callback");
-                rangeState.getCallback().call(mContext, "rangingData", new RangingData(rangeState.finalizeBeacons(), region).toBundle());
+                if (deltaReportingEnabled) {
+                    RangingData rangingData = rangeState.finalizeBeaconChanges(region);
+                    if (rangingData != null) {
+                        LogManager.d(TAG, "Calling ranging callback with changes");
+                        rangeState.getCallback().call(mContext, rangingData);
+                    }
+                }
+                else {
+                    rangeState.clearReportedBeacons();
+                    LogManager.d(TAG, "Calling ranging callback");
+                    rangeState.getCallback().call(mContext, new RangingData(rangeState.finalizeBeacons(), region));
+                }
             }
         }
     }
 
     /**
-     * Helper for processing BLE beacons. This has been extracted from {@link ScanHelper.ScanProcessor} to
-     * support simulated scan data for test and debug environments.
-     * <p>
-     * Processing beacons is a frequent and expensive operation. It should not be run on the main
-     * thread to avoid UI contention.
+     * Collects the distinct beacons and tracker changes of each shard during the cycle and applies
+     * them to the shared monitoring state and tracker.  Beacons are ranged by the shards as they are
+     * detected, so the work here grows with the number of distinct beacons rather than packets.
+     * Monitored regions are entered here rather than by the shards, so the shards never take the
+     * monitoring status lock.
      */
-    @WorkerThread
-    private void processBeaconFromScan(@NonNull Beacon beacon) {
-        if (Stats.getInstance().isEnabled()) {
-            Stats.getInstance().log(beacon);
+    private void mergeShardDetections() {
+        for (ScanShard shard : mShards) {
+            shard.drainDetections(mMergedDistinctBeacons, mMergedTrackerChanges);
+        }
+        // Copy the devices the shards tracked this cycle back to the tracker they were split
+        // from, so it can be persisted
+        if (mExtraDataBeaconTracker != null) {
+            mExtraDataBeaconTracker.mergeChanges(mMergedTrackerChanges);
         }
-        if (LogManager.isVerboseLoggingEnabled()) {
-            LogManager.d(TAG,
-                    "beacon detected : %s", beacon.toString());
+        mMergedTrackerChanges.clear();
+        // Enter monitored regions and refresh their last seen time for beacons seen during the cycle
+        for (Beacon beacon : mMergedDistinctBeacons.values()) {
+            mMonitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
         }
+        mMergedDistinctBeacons.clear();
+        synchronized (mRangedRegionState) {
+            // In case the map was changed without calling rangedRegionsChanged()
+            if (!mRangedRegions.isOf(mRangedRegionState)) {
+                LogManager.d(TAG, "Ranged regions changed without notice.  Refreshing them.");
+                mRangedRegions = new RangedRegions(mRangedRegionState, mShards);
+            }
+        }
+    }
 
-        beacon = mExtraDataBeaconTracker.track(beacon);
-        // If this is a Gatt beacon that should be ignored, it will be set to null as a result of
-        // the above
-        if (beacon == null) {
-            if (LogManager.isVerboseLoggingEnabled()) {
-                LogManager.d(TAG,
-                        "not processing detections for GATT extra data beacon");
+    /**
+     * An immutable copy of the ranged regions and their state, indexed for matching beacons, with
+     * the partition of each range state owned by each shard.
+     */
+    private static final class RangedRegions {
+        private final Map<Region, RangeState> mRangeStates;
+        private final Map<Region, RangeState.Partition[]> mPartitions = new HashMap<>();
+        private final RegionIndex mRegionIndex;
+
+        RangedRegions(Map<Region, RangeState> rangeStates, ScanShard[] shards) {
+            mRangeStates = new HashMap<>(rangeStates);
+            mRegionIndex = new RegionIndex(mRangeStates.keySet());
+            for (Map.Entry<Region, RangeState> entry : mRangeStates.entrySet()) {
+                RangeState.Partition[] partitions = new RangeState.Partition[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                    partitions[i] = entry.getValue().partitionFor(shards[i]);
+                }
+                mPartitions.put(entry.getKey(), partitions);
             }
-        } else {
+        }
 
-            mMonitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+        /**
+         * Ranges the beacon in the partitions of the given shard, which only that shard updates
+         */
+        void addBeacon(Beacon beacon, int shardIndex) {
+            for (Region region : mRegionIndex.matchingRegions(beacon)) {
+                mPartitions.get(region)[shardIndex].addBeacon(beacon);
+            }
+        }
 
-            List<Region> matchedRegions;
-            Iterator<Region> matchedRegionIterator;
-            LogManager.d(TAG, "looking for ranging region matches for this beacon");
-            synchronized (mRangedRegionState) {
-                matchedRegions = matchingRegions(beacon, mRangedRegionState.keySet());
-                matchedRegionIterator = matchedRegions.iterator();
-                while (matchedRegionIterator.hasNext()) {
-                    Region region = matchedRegionIterator.next();
-                    LogManager.d(TAG, "matches ranging region: %s", region);
-                    RangeState rangeState = mRangedRegionState.get(region);
-                    if (rangeState != null) {
-                        rangeState.addBeacon(beacon);
-                    }
+        /**
+         * @return true if this is a copy of exactly these region and range state instances
+         */
+        boolean isOf(Map<Region, RangeState> rangeStates) {
+            if (!mRegionIndex.isIndexOf(rangeStates.keySet())) {
+                return false;
+            }
+            for (Map.Entry<Region, RangeState> entry : rangeStates.entrySet()) {
+                if (mRangeStates.get(entry.getKey()) != entry.getValue()) {
+                    return false;
                 }
             }
+            return true;
         }
     }
 
     /**
-     * <strong>This class is not thread safe.</strong>
+     * Processes the scan results of the devices whose bluetooth address hashes to this shard.
+     * A shard has its own scan record buffer drained by a single consumer, and owns the slice of
+     * the extra data beacon tracker for its devices and a partition of each range state.  Beacons
+     * are ranged in the shard's partitions as they are detected; the distinct beacons and tracker
+     * changes are staged in the shard and merged when the cycle ends.
+     * <p>
+     * The shard monitor guards the tracker slice and staged detections, and each partition its
+     * own beacons.  These are only contended by the cycle end and by simulated beacons, never by
+     * other shards.
      */
-    private class ScanData {
-        ScanData(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord) {
-            this.device = device;
-            this.rssi = rssi;
-            this.scanRecord = scanRecord;
-        }
-
-        final int rssi;
+    private class ScanShard implements ScanRecordBuffer.Processor {
+        final DetectionTracker mDetectionTracker = DetectionTracker.getInstance();
 
-        @NonNull
-        BluetoothDevice device;
+        private final int mIndex;
+        private final ScanRecordBuffer mScanRecordBuffer;
+        private final PduCursor mPduCursor = new PduCursor();
+        private ExtraDataBeaconTracker mExtraDataBeaconTracker = new ExtraDataBeaconTracker();
+        private final Map<BeaconIdentityKey, Beacon> mBeaconsSeenThisCycle = new HashMap<>();
 
-        @NonNull
-        byte[] scanRecord;
-    }
+        ScanShard(int index, int capacity, ScanBufferOverflowPolicy overflowPolicy) {
+            mIndex = index;
+            mScanRecordBuffer = new ScanRecordBuffer(capacity, overflowPolicy,
+                    new ScanRecordBuffer.Processor[] { this }, mExecutor);
+        }
 
-    private class ScanProcessor extends AsyncTask<ScanHelper.ScanData, Void, Void> {
-        final DetectionTracker mDetectionTracker = DetectionTracker.getInstance();
+        void offer(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mScanRecordBuffer.offer(device, rssi, scanRecord);
+        }
 
-        private final NonBeaconLeScanCallback mNonBeaconLeScanCallback;
+        int takeDroppedCount() {
+            return mScanRecordBuffer.takeDroppedCount();
+        }
 
-        ScanProcessor(NonBeaconLeScanCallback nonBeaconLeScanCallback) {
-            mNonBeaconLeScanCallback = nonBeaconLeScanCallback;
+        synchronized void setExtraDataBeaconTracker(ExtraDataBeaconTracker shardTracker) {
+            mExtraDataBeaconTracker = shardTracker;
         }
 
         @WorkerThread
         @Override
-        protected Void doInBackground(ScanHelper.ScanData... params) {
-            ScanHelper.ScanData scanData = params[0];
-            Beacon beacon = null;
-
-            for (BeaconParser parser : ScanHelper.this.mBeaconParsers) {
-                beacon = parser.fromScanData(scanData.scanRecord,
-                        scanData.rssi, scanData.device);
+        public void process(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord) {
+            process(device, rssi, scanRecord, mPduCursor);
+        }
 
-                if (beacon != null) {
-                    break;
+        /**
+         * Processes the scan results at the given indexes of a batch.  This may run at the same time
+         * as the consumer of the shard's buffer, so it uses its own cursor.
+         */
+        @WorkerThread
+        void processBatch(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords, int[] indexes) {
+            PduCursor pduCursor = new PduCursor();
+            for (int i : indexes) {
+                try {
+                    process(devices[i], rssis[i], scanRecords[i], pduCursor);
+                } catch (RuntimeException e) {
+                    LogManager.e(e, TAG, "Failed to process batched scan result");
                 }
             }
+        }
+
+        @WorkerThread
+        private void process(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord,
+                             PduCursor pduCursor) {
+            Beacon beacon = mBeaconParserDispatcher.fromScanData(pduCursor.reset(scanRecord),
+                    rssi, device);
             if (beacon != null) {
                 if (LogManager.isVerboseLoggingEnabled()) {
                     LogManager.d(TAG, "Beacon packet detected for: "+beacon+" with rssi "+beacon.getRssi());
                 }
                 mDetectionTracker.recordDetection();
                 if (mCycledScanner != null && !mCycledScanner.getDistinctPacketsDetectedPerScan()) {
-                    if (!mDistinctPacketDetector.isPacketDistinct(scanData.device.getAddress(),
-                            scanData.scanRecord)) {
+                    if (!mDistinctPacketDetector.isPacketDistinct(device.getAddress(),
+                            scanRecord)) {
                         LogManager.i(TAG, "Non-distinct packets detected in a single scan.  Restarting scans unecessary.");
                         mCycledScanner.setDistinctPacketsDetectedPerScan(true);
                     }
                 }
                 processBeaconFromScan(beacon);
             } else {
-                if (mNonBeaconLeScanCallback != null) {
-                    mNonBeaconLeScanCallback.onNonBeaconLeScan(scanData.device, scanData.rssi, scanData.scanRecord);
+                NonBeaconLeScanCallback nonBeaconLeScanCallback = mBeaconManager.getNonBeaconLeScanCallback();
+                if (nonBeaconLeScanCallback != null) {
+                    nonBeaconLeScanCallback.onNonBeaconLeScan(device, rssi, scanRecord);
                 }
             }
-            return null;
         }
 
-        @Override
-        protected void onPostExecute(Void result) {
-        }
-
-        @Override
-        protected void onPreExecute() {
-        }
+        /**
+         * Helper for processing BLE beacons. This has been extracted from {@link #process} to
+         * support simulated scan data for test and debug environments.
+         * <p>
+         * Processing beacons is a frequent and expensive operation. It should not be run on the main
+         * thread to avoid UI contention.
+         */
+        @WorkerThread
+        void processBeaconFromScan(@NonNull Beacon beacon) {
+            if (Stats.getInstance().isEnabled()) {
+                Stats.getInstance().log(beacon);
+            }
+            if (LogManager.isVerboseLoggingEnabled()) {
+                LogManager.d(TAG,
+                        "beacon detected : %s", beacon.toString());
+            }
 
-        @Override
-        protected void onProgressUpdate(Void... values) {
+            synchronized (this) {
+                beacon = mExtraDataBeaconTracker.track(beacon);
+                // If this is a Gatt beacon that should be ignored, it will be set to null as a result of
+                // the above
+                if (beacon == null) {
+                    if (LogManager.isVerboseLoggingEnabled()) {
+                        LogManager.d(TAG,
+                                "not processing detections for GATT extra data beacon");
+                    }
+                    return;
+                }
+                mBeaconsSeenThisCycle.put(beacon.getIdentityKey(), beacon);
+            }
+            mRangedRegions.addBeacon(beacon, mIndex);
         }
-    }
 
-    private List<Region> matchingRegions(Beacon beacon, Collection<Region> regions) {
-        List<Region> matched = new ArrayList<>();
-        for (Region region : regions) {
-            if (region.matchesBeacon(beacon)) {
-                matched.add(region);
-            } else {
-                LogManager.d(TAG, "This region (%s) does not match beacon: %s", region, beacon);
-            }
+        /**
+         * Moves the distinct beacons detected since the last call into the given map, along with
+         * the devices the tracker slice changed.
+         */
+        synchronized void drainDetections(Map<BeaconIdentityKey, Beacon> distinctBeacons,
+                                          List<ExtraDataBeaconTracker.Changes> trackerChanges) {
+            distinctBeacons.putAll(mBeaconsSeenThisCycle);
+            mBeaconsSeenThisCycle.clear();
+            trackerChanges.add(mExtraDataBeaconTracker.takeChanges());
         }
-        return matched;
     }
 
 }
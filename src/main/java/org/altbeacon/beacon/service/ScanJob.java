@@ -3,7 +3,7 @@ package org.altbeacon.beacon.service;
 import android.annotation.TargetApi;
 import android.app.job.JobParameters;
 import android.app.job.JobService;
-import android.bluetooth.le.ScanRecord;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanResult;
 import android.os.Build;
 import android.os.Handler;
@@ -12,8 +12,10 @@ import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BuildConfig;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.distance.DistanceCalculator;
 import org.altbeacon.beacon.distance.ModelSpecificDistanceCalculator;
 import org.altbeacon.beacon.logging.LogManager;
+import org.altbeacon.beacon.service.scanner.CycledLeScanner;
 import org.altbeacon.beacon.utils.ProcessUtils;
 
 import java.util.ArrayList;
@@ -47,10 +49,15 @@ public class ScanJob extends JobService {
     private Handler mStopHandler = new Handler();
     private ScanHelper mScanHelper;
     private boolean mInitialized = false;
+    // Used to share scan state with the app process when this job runs in a separate process
+    private SharedScanState mSharedScanState;
 
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
-        mScanHelper = new ScanHelper(this);
+        if (mScanHelper == null || !mInitialized) {
+            // A scanner still running from an earlier start is reset in restartScanning
+            mScanHelper = new ScanHelper(this);
+        }
         if (jobParameters.getJobId() == IMMEDIATE_SCAN_JOB_ID) {
             LogManager.i(TAG, "Running immediate scan job: instance is "+this);
         }
@@ -60,12 +67,23 @@ public class ScanJob extends JobService {
 
         List<ScanResult> queuedScanResults = ScanJobScheduler.getInstance().dumpBackgroundScanResultQueue();
         LogManager.d(TAG, "Processing %d queued scan resuilts", queuedScanResults.size());
+        // Processed as a batch, as the queue may hold more results than the scan buffer
+        List<ScanResult> queuedScanResultsWithRecords = new ArrayList<>(queuedScanResults.size());
         for (ScanResult result : queuedScanResults) {
-            ScanRecord scanRecord = result.getScanRecord();
-            if (scanRecord != null) {
-                mScanHelper.processScanResult(result.getDevice(), result.getRssi(), scanRecord.getBytes());
+            if (result.getScanRecord() != null) {
+                queuedScanResultsWithRecords.add(result);
             }
         }
+        BluetoothDevice[] devices = new BluetoothDevice[queuedScanResultsWithRecords.size()];
+        int[] rssis = new int[devices.length];
+        byte[][] scanRecords = new byte[devices.length][];
+        for (int i = 0; i < devices.length; i++) {
+            ScanResult result = queuedScanResultsWithRecords.get(i);
+            devices[i] = result.getDevice();
+            rssis[i] = result.getRssi();
+            scanRecords[i] = result.getScanRecord().getBytes();
+        }
+        mScanHelper.processScanResultBatch(devices, rssis, scanRecords, null);
         LogManager.d(TAG, "Done processing queued scan resuilts");
 
         boolean startedScan;
@@ -159,8 +177,15 @@ public class ScanJob extends JobService {
 
     private void stopScanning() {
         mInitialized = false;
-        mScanHelper.getCycledScanner().stop();
-        mScanHelper.getCycledScanner().destroy();
+        final CycledLeScanner scanner = mScanHelper.getCycledScanner();
+        // Waits for the final scan cycle to end, so the scan state saved afterwards includes it
+        scanner.runOnCycleThreadAndWait(new Runnable() {
+            @Override
+            public void run() {
+                scanner.stop();
+                scanner.destroy();
+            }
+        });
         LogManager.d(TAG, "Scanning stopped");
     }
 
@@ -168,13 +193,24 @@ public class ScanJob extends JobService {
     private boolean restartScanning() {
         mScanState = ScanState.restore(ScanJob.this);
         mScanState.setLastScanStartTimeMillis(System.currentTimeMillis());
-        mScanHelper.setMonitoringStatus(mScanState.getMonitoringStatus());
-        mScanHelper.setRangedRegionState(mScanState.getRangedRegionState());
-        mScanHelper.setBeaconParsers(mScanState.getBeaconParsers());
-        mScanHelper.setExtraDataBeaconTracker(mScanState.getExtraBeaconDataTracker());
+        final ScanState scanState = mScanState;
+        Runnable applyScanState = new Runnable() {
+            @Override
+            public void run() {
+                mScanHelper.setMonitoringStatus(scanState.getMonitoringStatus());
+                mScanHelper.setRangedRegionState(scanState.getRangedRegionState());
+                mScanHelper.setBeaconParsers(scanState.getBeaconParsers());
+                mScanHelper.setExtraDataBeaconTracker(scanState.getExtraBeaconDataTracker());
+            }
+        };
         if (mScanHelper.getCycledScanner() == null) {
+            applyScanState.run();
             mScanHelper.createCycledLeScanner(mScanState.getBackgroundMode(), null);
         }
+        else {
+            // Scanning is still running, so replace the state between scan cycles
+            mScanHelper.getCycledScanner().runOnCycleThreadAndWait(applyScanState);
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             mScanHelper.stopAndroidOBackgroundScan();
         }
@@ -184,6 +220,9 @@ public class ScanJob extends JobService {
         mScanHelper.getCycledScanner().setScanPeriods(scanPeriod,
                                                       betweenScanPeriod,
                                                       mScanState.getBackgroundMode());
+        if (mSharedScanState != null) {
+            mSharedScanState.publishScanPeriods(scanPeriod, betweenScanPeriod);
+        }
         mInitialized = true;
         if (scanPeriod <= 0) {
             LogManager.w(TAG, "Starting scan with scan period of zero.  Exiting ScanJob.");
@@ -212,8 +251,10 @@ public class ScanJob extends JobService {
             LogManager.i(TAG, "beaconScanJob library version %s is starting up on a separate process", BuildConfig.VERSION_NAME);
             ProcessUtils processUtils = new ProcessUtils(ScanJob.this);
             LogManager.i(TAG, "beaconScanJob PID is "+processUtils.getPid()+" with process name "+processUtils.getProcessName());
+            mSharedScanState = SharedScanState.getInstance(getApplicationContext());
+            MonitoringStatus.getInstanceForApplication(getApplicationContext()).setSharedScanState(mSharedScanState);
         }
-        ModelSpecificDistanceCalculator defaultDistanceCalculator =  new ModelSpecificDistanceCalculator(ScanJob.this, BeaconManager.getDistanceModelUpdateUrl());
+        DistanceCalculator defaultDistanceCalculator = ModelSpecificDistanceCalculator.createInBackground(getApplicationContext(), BeaconManager.getDistanceModelUpdateUrl());
         Beacon.setDistanceCalculator(defaultDistanceCalculator);
         return restartScanning();
     }
@@ -0,0 +1,229 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A bounded ring buffer of raw scan results waiting to be parsed.
+ *
+ * Scan callbacks arrive on a single thread, which offers each result to the buffer.  All slots
+ * are allocated up front, so offering a scan result does not allocate.  A fixed set of consumers,
+ * one per <code>Processor</code>, drain the buffer on the supplied executor.  A consumer is only
+ * scheduled when there is work for it and it returns to the idle pool as soon as the buffer is
+ * empty, so no threads are parked while scanning is stopped.
+ *
+ * When the buffer is full the configured <code>ScanBufferOverflowPolicy</code> decides which
+ * scan result is lost.  The number of lost scan results is counted rather than logged one by one,
+ * because logging is expensive exactly when the buffer cannot keep up.
+ *
+ * @hide
+ */
+class ScanRecordBuffer {
+    private static final String TAG = ScanRecordBuffer.class.getSimpleName();
+
+    /**
+     * Processes scan results taken from the buffer.  Each consumer owns one processor, so a
+     * processor is never called from two threads at the same time.
+     */
+    interface Processor {
+        @WorkerThread
+        void process(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord);
+    }
+
+    private final Slot[] mSlots;
+    private final ScanBufferOverflowPolicy mOverflowPolicy;
+    private final Executor mExecutor;
+    private final Consumer[] mIdleConsumers;
+    private int mIdleConsumerCount;
+    private int mHead;
+    private int mCount;
+    private int mDroppedCount;
+
+    /**
+     * @param capacity the number of scan results that may wait to be processed
+     * @param overflowPolicy what to do with a scan result that arrives while the buffer is full
+     * @param processors one processor per consumer
+     * @param executor runs the consumers.  It should have at least as many threads as there are
+     *                 processors.
+     */
+    ScanRecordBuffer(int capacity, @NonNull ScanBufferOverflowPolicy overflowPolicy,
+                     @NonNull Processor[] processors, @NonNull Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (processors.length < 1) {
+            throw new IllegalArgumentException("at least one processor is required");
+        }
+        mSlots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new Slot();
+        }
+        mOverflowPolicy = overflowPolicy;
+        mExecutor = executor;
+        mIdleConsumers = new Consumer[processors.length];
+        for (int i = 0; i < processors.length; i++) {
+            mIdleConsumers[i] = new Consumer(processors[i]);
+        }
+        mIdleConsumerCount = processors.length;
+    }
+
+    /**
+     * Adds a scan result to the buffer and schedules an idle consumer if there is one.
+     *
+     * @return false if the scan result was dropped because the buffer is full
+     */
+    boolean offer(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord) {
+        Consumer consumerToStart = null;
+        boolean accepted = true;
+        synchronized (this) {
+            if (mCount == mSlots.length) {
+                accepted = handleOverflow(device, rssi, scanRecord);
+            }
+            else {
+                mSlots[(mHead + mCount) % mSlots.length].set(device, rssi, scanRecord);
+                mCount++;
+            }
+            int activeConsumerCount = mIdleConsumers.length - mIdleConsumerCount;
+            if (mIdleConsumerCount > 0 && mCount > activeConsumerCount) {
+                mIdleConsumerCount--;
+                consumerToStart = mIdleConsumers[mIdleConsumerCount];
+                mIdleConsumers[mIdleConsumerCount] = null;
+            }
+        }
+        if (consumerToStart != null) {
+            start(consumerToStart);
+        }
+        return accepted;
+    }
+
+    /**
+     * @return the number of scan results dropped since the last call, resetting the count
+     */
+    synchronized int takeDroppedCount() {
+        int droppedCount = mDroppedCount;
+        mDroppedCount = 0;
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of scan results waiting to be processed
+     */
+    synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Discards all scan results waiting to be processed
+     */
+    synchronized void clear() {
+        while (mCount > 0) {
+            mSlots[mHead].clear();
+            mHead = (mHead + 1) % mSlots.length;
+            mCount--;
+        }
+    }
+
+    int getCapacity() {
+        return mSlots.length;
+    }
+
+    private boolean handleOverflow(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        mDroppedCount++;
+        switch (mOverflowPolicy) {
+            case DROP_NEWEST:
+                return false;
+            case COALESCE_PER_DEVICE:
+                // Replace the newest pending scan result from the same device so the buffer keeps
+                // the freshest reading for each device
+                for (int i = mCount - 1; i >= 0; i--) {
+                    Slot slot = mSlots[(mHead + i) % mSlots.length];
+                    if (device != null && device.equals(slot.device)) {
+                        slot.set(device, rssi, scanRecord);
+                        return true;
+                    }
+                }
+                // No pending scan result from this device.  Fall through and drop the oldest.
+            case DROP_OLDEST:
+            default:
+                mSlots[mHead].set(device, rssi, scanRecord);
+                mHead = (mHead + 1) % mSlots.length;
+                return true;
+        }
+    }
+
+    /**
+     * Copies the oldest scan result into the consumer's slot, or returns the consumer to the idle
+     * pool if there is nothing left to process.
+     *
+     * @return false if the buffer is empty and the consumer must stop
+     */
+    private synchronized boolean take(Consumer consumer) {
+        if (mCount == 0) {
+            mIdleConsumers[mIdleConsumerCount++] = consumer;
+            return false;
+        }
+        Slot slot = mSlots[mHead];
+        consumer.mSlot.set(slot.device, slot.rssi, slot.scanRecord);
+        slot.clear();
+        mHead = (mHead + 1) % mSlots.length;
+        mCount--;
+        return true;
+    }
+
+    private void start(Consumer consumer) {
+        try {
+            mExecutor.execute(consumer);
+        } catch (RejectedExecutionException e) {
+            LogManager.w(TAG, "Cannot start scan processing consumer.  Scan results will wait for another consumer.");
+            synchronized (this) {
+                mIdleConsumers[mIdleConsumerCount++] = consumer;
+            }
+        }
+    }
+
+    private static final class Slot {
+        BluetoothDevice device;
+        int rssi;
+        byte[] scanRecord;
+
+        void set(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            this.device = device;
+            this.rssi = rssi;
+            this.scanRecord = scanRecord;
+        }
+
+        void clear() {
+            device = null;
+            scanRecord = null;
+        }
+    }
+
+    private final class Consumer implements Runnable {
+        private final Processor mProcessor;
+        private final Slot mSlot = new Slot();
+
+        Consumer(Processor processor) {
+            mProcessor = processor;
+        }
+
+        @WorkerThread
+        @Override
+        public void run() {
+            while (take(this)) {
+                try {
+                    mProcessor.process(mSlot.device, mSlot.rssi, mSlot.scanRecord);
+                } catch (RuntimeException e) {
+                    LogManager.e(e, TAG, "Failed to process scan result");
+                } finally {
+                    mSlot.clear();
+                }
+            }
+        }
+    }
+}
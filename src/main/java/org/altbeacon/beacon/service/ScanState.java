@@ -1,42 +1,59 @@
 package org.altbeacon.beacon.service;
 
 import android.content.Context;
-import android.util.Log;
 
+import org.altbeacon.beacon.BeaconBatchCodec;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BeaconParser;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InvalidClassException;
-import java.io.FileNotFoundException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import static android.content.Context.MODE_PRIVATE;
+import static org.altbeacon.beacon.service.ScanStateCheckpoint.SECTION_COUNT;
+import static org.altbeacon.beacon.service.ScanStateCheckpoint.SECTION_PARSERS;
+import static org.altbeacon.beacon.service.ScanStateCheckpoint.SECTION_RANGING;
+import static org.altbeacon.beacon.service.ScanStateCheckpoint.SECTION_SETTINGS;
+import static org.altbeacon.beacon.service.ScanStateCheckpoint.SECTION_TRACKER;
 
 /**
  * Stores the full state of scanning for the libary, including all settings so it can be ressurrected easily
  * for running from a scheduled job
  *
+ * The state is saved in a compact binary file with separately versioned sections for the settings,
+ * beacon parsers, ranging state and extra data tracker.  Sections other than the settings are only
+ * decoded when first used, and the file is only rewritten when a section has changed.
+ *
  * Created by dyoung on 3/26/17.
  * @hide
  */
 
 public class ScanState implements Serializable {
     private static final String TAG = ScanState.class.getSimpleName();
-    private static final String STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-state";
-    private static final String TEMP_STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-state-temp";
+    private static final String STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-checkpoint";
+    private static final String TEMP_STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-checkpoint-temp";
+    // Written with Java serialization by earlier versions of the library
+    private static final String LEGACY_STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-state";
+    // Bump the version of a section when its encoding changes.  Saved sections with another
+    // version are ignored, leaving the defaults for that section only.
+    private static final int[] SECTION_VERSIONS = { 1, 1, 1, 1 };
+    private static final int ENCODING_BINARY = 0;
+    // Used for sections holding custom parser, beacon or region subclasses
+    private static final int ENCODING_SERIALIZED = 1;
     public static int MIN_SCAN_JOB_INTERVAL_MILLIS = 300000; //  5 minutes
 
     private Map<Region, RangeState> mRangedRegionState = new HashMap<Region, RangeState>();
@@ -50,6 +67,10 @@ public class ScanState implements Serializable {
     private boolean mBackgroundMode;
     private long mLastScanStartTimeMillis = 0l;
     private transient Context mContext;
+    // The sections as last read or saved
+    private transient ScanStateCheckpoint mCheckpoint = new ScanStateCheckpoint();
+    // Sections whose fields are in use, and so are encoded again on save
+    private transient boolean[] mSectionsLoaded = { true, true, true, true };
 
     public Boolean getBackgroundMode() {
         return mBackgroundMode;
@@ -103,27 +124,33 @@ public class ScanState implements Serializable {
         mMonitoringStatus = monitoringStatus;
     }
 
-    public Map<Region, RangeState> getRangedRegionState() {
+    public synchronized Map<Region, RangeState> getRangedRegionState() {
+        loadSection(SECTION_RANGING);
         return mRangedRegionState;
     }
 
-    public void setRangedRegionState(Map<Region, RangeState> rangedRegionState) {
+    public synchronized void setRangedRegionState(Map<Region, RangeState> rangedRegionState) {
+        mSectionsLoaded[SECTION_RANGING] = true;
         mRangedRegionState = rangedRegionState;
     }
 
-    public ExtraDataBeaconTracker getExtraBeaconDataTracker() {
+    public synchronized ExtraDataBeaconTracker getExtraBeaconDataTracker() {
+        loadSection(SECTION_TRACKER);
         return mExtraBeaconDataTracker;
     }
 
-    public void setExtraBeaconDataTracker(ExtraDataBeaconTracker extraDataBeaconTracker) {
+    public synchronized void setExtraBeaconDataTracker(ExtraDataBeaconTracker extraDataBeaconTracker) {
+        mSectionsLoaded[SECTION_TRACKER] = true;
         mExtraBeaconDataTracker = extraDataBeaconTracker;
     }
 
-    public Set<BeaconParser> getBeaconParsers() {
+    public synchronized Set<BeaconParser> getBeaconParsers() {
+        loadSection(SECTION_PARSERS);
         return mBeaconParsers;
     }
 
-    public void setBeaconParsers(Set<BeaconParser> beaconParsers) {
+    public synchronized void setBeaconParsers(Set<BeaconParser> beaconParsers) {
+        mSectionsLoaded[SECTION_PARSERS] = true;
         mBeaconParsers = beaconParsers;
     }
 
@@ -135,93 +162,188 @@ public class ScanState implements Serializable {
     }
 
     public static ScanState restore(Context context) {
-        ScanState scanState = null;
         synchronized (ScanState.class) {
-            FileInputStream inputStream = null;
-            ObjectInputStream objectInputStream = null;
-            try {
-                inputStream = context.openFileInput(STATUS_PRESERVATION_FILE_NAME);
-                objectInputStream = new ObjectInputStream(inputStream);
-                scanState = (ScanState) objectInputStream.readObject();
-                scanState.mContext = context;
-            } catch (FileNotFoundException fnfe) {
-                LogManager.w(TAG, "Serialized ScanState does not exist.  This may be normal on first run.");
+            ScanState scanState = new ScanState(context);
+            ScanStateCheckpoint checkpoint = ScanStateCheckpoint.read(
+                    new File(context.getFilesDir(), STATUS_PRESERVATION_FILE_NAME));
+            if (checkpoint != null) {
+                scanState.mCheckpoint = checkpoint;
+                Arrays.fill(scanState.mSectionsLoaded, false);
+                // The other sections are only decoded when they are first used
+                scanState.loadSection(SECTION_SETTINGS);
             }
-            catch (IOException | ClassNotFoundException | ClassCastException e) {
-                if (e instanceof InvalidClassException) {
-                    LogManager.d(TAG, "Serialized ScanState has wrong class. Just ignoring saved state...");
-                }
-                else {
-                    LogManager.e(TAG, "Deserialization exception");
-                    Log.e(TAG, "error: ", e);
-                }
+            scanState.mMonitoringStatus = MonitoringStatus.getInstanceForApplication(context);
+            LogManager.d(TAG, "Scan state restore regions: monitored="+scanState.getMonitoringStatus().regions().size());
+            return scanState;
+        }
+    }
 
-            } finally {
-                if (null != inputStream) {
+    public void save() {
+        synchronized (ScanState.class) {
+            boolean changed = false;
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                // Sections never loaded cannot have changed, and are written again as they were read
+                if (mSectionsLoaded[section]) {
                     try {
-                        inputStream.close();
-                    } catch (IOException ignored) {
+                        changed |= mCheckpoint.setPayload(section, SECTION_VERSIONS[section], encodeSection(section));
+                    } catch (IOException e) {
+                        LogManager.e(TAG, "Error while saving scan status section %s: %s", section, e.getMessage());
                     }
                 }
-                if (objectInputStream != null) {
-                    try {
-                        objectInputStream.close();
-                    } catch (IOException ignored) {
-                    }
+            }
+            File file = new File(mContext.getFilesDir(), STATUS_PRESERVATION_FILE_NAME);
+            if (changed || !file.exists()) {
+                mCheckpoint.write(file, new File(mContext.getFilesDir(), TEMP_STATUS_PRESERVATION_FILE_NAME));
+                File legacyFile = new File(mContext.getFilesDir(), LEGACY_STATUS_PRESERVATION_FILE_NAME);
+                if (legacyFile.exists() && !legacyFile.delete()) {
+                    LogManager.w(TAG, "Cannot delete scan status saved by an earlier version");
                 }
             }
-            if (scanState == null) {
-                scanState = new ScanState(context);
+            else {
+                LogManager.d(TAG, "Scan status unchanged.  Not saving.");
+            }
+            mMonitoringStatus.saveMonitoringStatusIfOn();
+            // The scan job may be finished and the process killed as soon as this returns
+            mMonitoringStatus.flushMonitoringStatus();
+        }
+    }
+
+    private synchronized void loadSection(int section) {
+        if (mSectionsLoaded[section]) {
+            return;
+        }
+        mSectionsLoaded[section] = true;
+        byte[] payload = mCheckpoint.getPayload(section, SECTION_VERSIONS[section]);
+        if (payload == null) {
+            LogManager.d(TAG, "No saved scan status for section %s", section);
+            return;
+        }
+        try {
+            decodeSection(section, payload);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            LogManager.w(TAG, "Ignoring saved scan status for section %s: %s", section, e.getMessage());
+        }
+    }
 
+    private synchronized byte[] encodeSection(int section) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (section == SECTION_SETTINGS) {
+            out.writeByte(ENCODING_BINARY);
+            out.writeLong(mForegroundScanPeriod);
+            out.writeLong(mForegroundBetweenScanPeriod);
+            out.writeLong(mBackgroundScanPeriod);
+            out.writeLong(mBackgroundBetweenScanPeriod);
+            out.writeBoolean(mBackgroundMode);
+            out.writeLong(mLastScanStartTimeMillis);
+            out.flush();
+            return bytes.toByteArray();
+        }
+        Serializable fallback;
+        BeaconBatchCodec.Writer writer = new BeaconBatchCodec.Writer();
+        if (section == SECTION_PARSERS) {
+            fallback = new HashSet<>(mBeaconParsers);
+            if (BeaconBatchCodec.canEncodeParsers(mBeaconParsers)) {
+                writer.writeParsers(mBeaconParsers);
+                fallback = null;
             }
-            if (scanState.mExtraBeaconDataTracker == null) {
-                scanState.mExtraBeaconDataTracker = new ExtraDataBeaconTracker();
+        }
+        else if (section == SECTION_RANGING) {
+            fallback = new HashMap<>(mRangedRegionState);
+            if (canEncodeRangedRegionState()) {
+                writer.writeInt(mRangedRegionState.size());
+                for (Map.Entry<Region, RangeState> entry : mRangedRegionState.entrySet()) {
+                    writer.writeRegion(entry.getKey());
+                    entry.getValue().writeTo(writer);
+                }
+                fallback = null;
             }
-            scanState.mMonitoringStatus = MonitoringStatus.getInstanceForApplication(context);
-            LogManager.d(TAG, "Scan state restore regions: monitored="+scanState.getMonitoringStatus().regions().size()+" ranged="+scanState.getRangedRegionState().keySet().size());
-            return scanState;
         }
+        else {
+            fallback = mExtraBeaconDataTracker;
+            if (mExtraBeaconDataTracker.canEncode()) {
+                mExtraBeaconDataTracker.writeTo(writer);
+                fallback = null;
+            }
+        }
+        if (fallback == null) {
+            out.writeByte(ENCODING_BINARY);
+            out.write(writer.toByteArray());
+        }
+        else {
+            LogManager.d(TAG, "Using serialization for scan status section %s with custom classes", section);
+            out.writeByte(ENCODING_SERIALIZED);
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+            objectOutputStream.writeObject(fallback);
+            objectOutputStream.flush();
+        }
+        out.flush();
+        return bytes.toByteArray();
     }
 
-    public void save() {
-        synchronized (ScanState.class) {
-            // TODO: need to limit how big this object is somehow.
-            // Impose limits on ranged and monitored regions?
-            FileOutputStream outputStream = null;
-            ObjectOutputStream objectOutputStream = null;
-            try {
-                outputStream = mContext.openFileOutput(TEMP_STATUS_PRESERVATION_FILE_NAME, MODE_PRIVATE);
-                objectOutputStream = new ObjectOutputStream(outputStream);
-                objectOutputStream.writeObject(this);
-                File file = new File(mContext.getFilesDir(), STATUS_PRESERVATION_FILE_NAME);
-                File tempFile = new File(mContext.getFilesDir(), TEMP_STATUS_PRESERVATION_FILE_NAME);
-                LogManager.d(TAG, "Temp file is "+tempFile.getAbsolutePath());
-                LogManager.d(TAG, "Perm file is "+file.getAbsolutePath());
-
-                if (!file.delete()) {
-                    LogManager.e(TAG, "Error while saving scan status to file: Cannot delete existing file.");
-                }
-                if (!tempFile.renameTo(file)) {
-                    LogManager.e(TAG, "Error while saving scan status to file: Cannot rename temp file.");
-                }
-            } catch (IOException e) {
-                LogManager.e(TAG, "Error while saving scan status to file: ", e.getMessage());
-            } finally {
-                if (null != outputStream) {
-                    try {
-                        outputStream.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-                if (objectOutputStream != null) {
-                    try {
-                        objectOutputStream.close();
-                    } catch (IOException ignored) {
-                    }
+    @SuppressWarnings("unchecked")
+    private void decodeSection(int section, byte[] payload) throws IOException, ClassNotFoundException {
+        int encoding = payload.length > 0 ? payload[0] : -1;
+        if (section == SECTION_SETTINGS) {
+            if (encoding != ENCODING_BINARY) {
+                throw new IOException("Unknown encoding " + encoding);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+            long foregroundScanPeriod = in.readLong();
+            long foregroundBetweenScanPeriod = in.readLong();
+            long backgroundScanPeriod = in.readLong();
+            long backgroundBetweenScanPeriod = in.readLong();
+            boolean backgroundMode = in.readBoolean();
+            mLastScanStartTimeMillis = in.readLong();
+            mForegroundScanPeriod = foregroundScanPeriod;
+            mForegroundBetweenScanPeriod = foregroundBetweenScanPeriod;
+            mBackgroundScanPeriod = backgroundScanPeriod;
+            mBackgroundBetweenScanPeriod = backgroundBetweenScanPeriod;
+            mBackgroundMode = backgroundMode;
+            return;
+        }
+        byte[] data = Arrays.copyOfRange(payload, 1, payload.length);
+        Object fallback = null;
+        BeaconBatchCodec.Reader reader = null;
+        if (encoding == ENCODING_SERIALIZED) {
+            fallback = new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+        }
+        else if (encoding == ENCODING_BINARY) {
+            reader = new BeaconBatchCodec.Reader(data);
+        }
+        else {
+            throw new IOException("Unknown encoding " + encoding);
+        }
+        if (section == SECTION_PARSERS) {
+            mBeaconParsers = reader != null ? new HashSet<>(reader.readParsers()) : (Set<BeaconParser>) fallback;
+        }
+        else if (section == SECTION_RANGING) {
+            Map<Region, RangeState> rangedRegionState;
+            if (reader != null) {
+                rangedRegionState = new HashMap<>();
+                int count = reader.readInt();
+                for (int i = 0; i < count; i++) {
+                    Region region = reader.readRegion();
+                    rangedRegionState.put(region, RangeState.readFrom(reader, new Callback(mContext.getPackageName())));
                 }
             }
-            mMonitoringStatus.saveMonitoringStatusIfOn();
+            else {
+                rangedRegionState = (Map<Region, RangeState>) fallback;
+            }
+            mRangedRegionState = rangedRegionState;
+        }
+        else {
+            mExtraBeaconDataTracker = reader != null ? ExtraDataBeaconTracker.readFrom(reader) : (ExtraDataBeaconTracker) fallback;
+        }
+    }
+
+    private boolean canEncodeRangedRegionState() {
+        for (Map.Entry<Region, RangeState> entry : mRangedRegionState.entrySet()) {
+            if (!BeaconBatchCodec.canEncode(entry.getKey()) || !entry.getValue().canEncode()) {
+                return false;
+            }
         }
+        return true;
     }
 
     public int getScanJobIntervalMillis() {
@@ -260,7 +382,7 @@ public class ScanState implements Serializable {
 
 
     public void applyChanges(BeaconManager beaconManager) {
-        mBeaconParsers = new HashSet<>(beaconManager.getBeaconParsers());
+        setBeaconParsers(new HashSet<>(beaconManager.getBeaconParsers()));
         mForegroundScanPeriod = beaconManager.getForegroundScanPeriod();
         mForegroundBetweenScanPeriod = beaconManager.getForegroundBetweenScanPeriod();
         mBackgroundScanPeriod = beaconManager.getBackgroundScanPeriod();
@@ -268,7 +390,8 @@ public class ScanState implements Serializable {
         mBackgroundMode = beaconManager.getBackgroundMode();
 
         ArrayList<Region> existingMonitoredRegions = new ArrayList<>(mMonitoringStatus.regions());
-        ArrayList<Region> existingRangedRegions = new ArrayList<>(mRangedRegionState.keySet());
+        Map<Region, RangeState> rangedRegionState = getRangedRegionState();
+        ArrayList<Region> existingRangedRegions = new ArrayList<>(rangedRegionState.keySet());
         ArrayList<Region> newMonitoredRegions = new ArrayList<>(beaconManager.getMonitoredRegions());
         ArrayList<Region> newRangedRegions = new ArrayList<>(beaconManager.getRangedRegions());
         LogManager.d(TAG, "ranged regions: old="+existingRangedRegions.size()+" new="+newRangedRegions.size());
@@ -277,13 +400,13 @@ public class ScanState implements Serializable {
         for (Region newRangedRegion: newRangedRegions) {
             if (!existingRangedRegions.contains(newRangedRegion)) {
                 LogManager.d(TAG, "Starting ranging region: "+newRangedRegion);
-                mRangedRegionState.put(newRangedRegion, new RangeState(new Callback(mContext.getPackageName())));
+                rangedRegionState.put(newRangedRegion, new RangeState(new Callback(mContext.getPackageName()), newRangedRegion));
             }
         }
         for (Region existingRangedRegion: existingRangedRegions) {
             if (!newRangedRegions.contains(existingRangedRegion)) {
                 LogManager.d(TAG, "Stopping ranging region: "+existingRangedRegion);
-                mRangedRegionState.remove(existingRangedRegion);
+                rangedRegionState.remove(existingRangedRegion);
             }
         }
         LogManager.d(TAG, "Updated state with "+newRangedRegions.size()+" ranging regions and "+newMonitoredRegions.size()+" monitoring regions.");
@@ -0,0 +1,171 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The sections of a saved <code>ScanState</code>, as last read from or written to its file.
+ *
+ * The file holds a header followed by independently versioned sections:
+ * <pre>
+ *   int magic, byte file version, byte section count
+ *   per section: byte section id, byte section version, int length, payload
+ * </pre>
+ * A section with an unknown id or version is dropped on its own, leaving the other sections
+ * usable.  Payloads are kept as bytes, so a section that is never read back into a
+ * <code>ScanState</code> is written again unchanged without being decoded or encoded, and the
+ * file is not written at all when no section has changed.
+ *
+ * @hide
+ */
+class ScanStateCheckpoint {
+    private static final String TAG = ScanStateCheckpoint.class.getSimpleName();
+    private static final int MAGIC = 0x41425353;
+    private static final int VERSION = 1;
+    static final int SECTION_SETTINGS = 0;
+    static final int SECTION_PARSERS = 1;
+    static final int SECTION_RANGING = 2;
+    static final int SECTION_TRACKER = 3;
+    static final int SECTION_COUNT = 4;
+
+    private final byte[][] mPayloads = new byte[SECTION_COUNT][];
+    private final int[] mVersions = new int[SECTION_COUNT];
+
+    /**
+     * @return the payload of the section, or null if it is missing or has another version
+     */
+    @Nullable
+    byte[] getPayload(int section, int version) {
+        return mVersions[section] == version ? mPayloads[section] : null;
+    }
+
+    /**
+     * @return true if the payload differs from the one held for the section
+     */
+    boolean setPayload(int section, int version, @NonNull byte[] payload) {
+        if (mVersions[section] == version && Arrays.equals(mPayloads[section], payload)) {
+            return false;
+        }
+        mVersions[section] = version;
+        mPayloads[section] = payload;
+        return true;
+    }
+
+    /**
+     * @return the sections saved in the file, or null if there is none or it cannot be read
+     */
+    @Nullable
+    static ScanStateCheckpoint read(@NonNull File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                LogManager.w(TAG, "Ignoring scan state file in an unknown format");
+                return null;
+            }
+            ScanStateCheckpoint checkpoint = new ScanStateCheckpoint();
+            int sectionCount = in.readUnsignedByte();
+            for (int i = 0; i < sectionCount; i++) {
+                int section = in.readUnsignedByte();
+                int version = in.readUnsignedByte();
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Invalid section length " + length);
+                }
+                if (section >= SECTION_COUNT) {
+                    LogManager.d(TAG, "Skipping unknown scan state section %s", section);
+                    skipFully(in, length);
+                    continue;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                checkpoint.mVersions[section] = version;
+                checkpoint.mPayloads[section] = payload;
+            }
+            return checkpoint;
+        } catch (FileNotFoundException e) {
+            LogManager.d(TAG, "Scan state file does not exist.  This may be normal on first run.");
+            return null;
+        } catch (IOException e) {
+            LogManager.w(TAG, "Cannot read scan state, message: %s", e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the sections to a temporary file and renames it over the file, so a reader never
+     * sees a partly written file.
+     */
+    void write(@NonNull File file, @NonNull File tempFile) {
+        FileOutputStream outputStream = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            int sectionCount = 0;
+            for (byte[] payload : mPayloads) {
+                if (payload != null) {
+                    sectionCount++;
+                }
+            }
+            out.writeByte(sectionCount);
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                if (mPayloads[section] != null) {
+                    out.writeByte(section);
+                    out.writeByte(mVersions[section]);
+                    out.writeInt(mPayloads[section].length);
+                    out.write(mPayloads[section]);
+                }
+            }
+            out.flush();
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(bytes.toByteArray());
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file)) {
+                LogManager.e(TAG, "Error while saving scan status to file: Cannot rename temp file.");
+            }
+        } catch (IOException e) {
+            LogManager.e(TAG, "Error while saving scan status to file: ", e.getMessage());
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -30,12 +30,22 @@ public class SettingsData implements Serializable {
     Long mRegionExitPeriod;
     Boolean mUseTrackingCache;
     Boolean mHardwareEqualityEnforced;
+    Boolean mRangeDeltaReportingEnabled;
+    Double mRangeDeltaRssiThreshold;
+    Double mRangeDeltaDistanceThreshold;
+    Integer mExtraDataMaxTrackedDevices;
+    Long mExtraDataTimeToLiveMillis;
+    Boolean mScanCycleOnScanThreadEnabled;
+    Long mBatchScanReportDelayMillis;
 
     // The following configuration settings are not implemented here, so they cannot be set when
     // the scanning service is running in another process
     //        BeaconManager.setDistanceModelUpdateUrl(...)
+    //        BeaconManager.setDistanceLookupTableEnabled(...)
     //        BeaconManager.setRssiFilterImplClass(...)
+    //        BeaconManager.setRssiFilterFactory(...)
     //        BeaconManager.setBeaconSimulator(...)
+    //        BeaconManager.setScanCycleLooper(...)
     //        beaconManager.setNonBeaconLeScanCallback(...)
 
     public Bundle toBundle() {
@@ -92,6 +102,19 @@ public class SettingsData implements Serializable {
         BeaconManager.setRegionExitPeriod(mRegionExitPeriod);
         RangeState.setUseTrackingCache(mUseTrackingCache);
         Beacon.setHardwareEqualityEnforced(mHardwareEqualityEnforced);
+        if (mRangeDeltaReportingEnabled != null) {
+            RangeState.setDeltaReportingEnabled(mRangeDeltaReportingEnabled);
+            RangeState.setDeltaThresholds(mRangeDeltaRssiThreshold, mRangeDeltaDistanceThreshold);
+        }
+        if (mExtraDataMaxTrackedDevices != null) {
+            ExtraDataBeaconTracker.setLimits(mExtraDataMaxTrackedDevices, mExtraDataTimeToLiveMillis);
+        }
+        if (mScanCycleOnScanThreadEnabled != null) {
+            BeaconManager.setScanCycleOnScanThreadEnabled(mScanCycleOnScanThreadEnabled);
+        }
+        if (mBatchScanReportDelayMillis != null) {
+            BeaconManager.setBatchScanReportDelayMillis(mBatchScanReportDelayMillis);
+        }
     }
 
     public SettingsData collect(@NonNull Context context) {
@@ -102,6 +125,13 @@ public class SettingsData implements Serializable {
         mRegionExitPeriod = BeaconManager.getRegionExitPeriod();
         mUseTrackingCache = RangeState.getUseTrackingCache();
         mHardwareEqualityEnforced = Beacon.getHardwareEqualityEnforced();
+        mRangeDeltaReportingEnabled = RangeState.getDeltaReportingEnabled();
+        mRangeDeltaRssiThreshold = RangeState.getDeltaRssiThreshold();
+        mRangeDeltaDistanceThreshold = RangeState.getDeltaDistanceThreshold();
+        mExtraDataMaxTrackedDevices = ExtraDataBeaconTracker.getMaxTrackedDevices();
+        mExtraDataTimeToLiveMillis = ExtraDataBeaconTracker.getTimeToLiveMillis();
+        mScanCycleOnScanThreadEnabled = BeaconManager.isScanCycleOnScanThreadEnabled();
+        mBatchScanReportDelayMillis = BeaconManager.getBatchScanReportDelayMillis();
         return this;
     }
 
@@ -0,0 +1,366 @@
+package org.altbeacon.beacon.service;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed layout, memory-mapped file through which a scanner running in a separate process
+ * publishes the inside/outside state of each monitored region, so the application process can
+ * read them without messages or deserializing saved state.
+ *
+ * The scanner also publishes a heartbeat every scan cycle along with its scan periods.  Readers
+ * ignore the region states once the heartbeat is older than a couple of scan cycles, so the state
+ * of a scanner process that died or was stopped is not reported as current.
+ *
+ * Only the scanner process writes.  Writers make the sequence number in the header odd while they
+ * update the mapped data, then store a checksum of the data and make the sequence number even
+ * again.  Readers copy the data and retry if the sequence number was odd or changed meanwhile, or
+ * if the copy does not match the checksum, so they never block the scanner and never see a
+ * partial update.
+ *
+ * <pre>
+ *   header: int magic, int layout version, int sequence, int checksum, int data length
+ *   data:   long heartbeat elapsed realtime, long scan period, long between scan period,
+ *           byte flags, byte reserved, short region count, then one fixed size slot per region:
+ *           byte inside, short unique id length, unique id
+ * </pre>
+ * Regions are matched by unique id, as in <code>Region#equals</code>.
+ *
+ * Internal library class.  Do not use directly from outside the library
+ *
+ * @hide
+ */
+public class SharedScanState {
+    private static final String TAG = SharedScanState.class.getSimpleName();
+    public static final String SHARED_STATE_FILE_NAME = "org.altbeacon.beacon.service.shared_scan_state";
+    static final int MAX_REGIONS = 128;
+    static final int SLOT_SIZE = 256;
+    // Allowed on top of two scan cycles between heartbeats before the scanner is presumed gone
+    static final long HEARTBEAT_GRACE_MILLIS = 30000;
+    private static final int MAGIC = 0x41425348;
+    private static final int LAYOUT_VERSION = 2;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int CHECKSUM_OFFSET = 12;
+    private static final int DATA_LENGTH_OFFSET = 16;
+    private static final int DATA_OFFSET = 20;
+    private static final int HEARTBEAT_OFFSET = 0;
+    private static final int SCAN_PERIOD_OFFSET = 8;
+    private static final int BETWEEN_SCAN_PERIOD_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 24;
+    private static final int REGION_COUNT_OFFSET = 26;
+    private static final int SLOTS_OFFSET = 28;
+    private static final int FILE_SIZE = DATA_OFFSET + SLOTS_OFFSET + MAX_REGIONS * SLOT_SIZE;
+    private static final int FLAG_REGIONS = 1 << 1;
+    // Set when some regions did not fit, so readers must not treat a missing region as outside
+    private static final int FLAG_REGIONS_INCOMPLETE = 1 << 2;
+    private static final int MAX_READ_ATTEMPTS = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static SharedScanState sInstance;
+
+    private final File mFile;
+    private MappedByteBuffer mWritableBuffer;
+    private MappedByteBuffer mReadableBuffer;
+
+    public static synchronized SharedScanState getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new SharedScanState(new File(context.getFilesDir(), SHARED_STATE_FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    SharedScanState(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * Publishes the scan periods the scanner is using, which tell readers how often to expect a
+     * heartbeat
+     */
+    public void publishScanPeriods(long scanPeriod, long betweenScanPeriod) {
+        publishScanPeriods(scanPeriod, betweenScanPeriod, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void publishScanPeriods(long scanPeriod, long betweenScanPeriod, long now) {
+        ByteBuffer buffer = writableBuffer();
+        if (buffer == null) {
+            return;
+        }
+        beginWrite(buffer);
+        buffer.putLong(DATA_OFFSET + HEARTBEAT_OFFSET, now);
+        buffer.putLong(DATA_OFFSET + SCAN_PERIOD_OFFSET, scanPeriod);
+        buffer.putLong(DATA_OFFSET + BETWEEN_SCAN_PERIOD_OFFSET, betweenScanPeriod);
+        endWrite(buffer);
+    }
+
+    /**
+     * Tells readers the scanner is still running.  Called at the end of every scan cycle.
+     */
+    public void publishHeartbeat() {
+        publishHeartbeat(SystemClock.elapsedRealtime());
+    }
+
+    synchronized void publishHeartbeat(long now) {
+        ByteBuffer buffer = writableBuffer();
+        if (buffer == null) {
+            return;
+        }
+        beginWrite(buffer);
+        buffer.putLong(DATA_OFFSET + HEARTBEAT_OFFSET, now);
+        endWrite(buffer);
+    }
+
+    /**
+     * Tells readers the scanner has stopped, so its region states are no longer current
+     */
+    public synchronized void publishStopped() {
+        ByteBuffer buffer = writableBuffer();
+        if (buffer == null) {
+            return;
+        }
+        beginWrite(buffer);
+        buffer.putLong(DATA_OFFSET + HEARTBEAT_OFFSET, 0);
+        endWrite(buffer);
+    }
+
+    /**
+     * Publishes whether the scanner considers itself inside each monitored region, replacing the
+     * regions published before
+     */
+    public void publishRegionStates(@NonNull Map<Region, Boolean> insideByRegion) {
+        publishRegionStates(insideByRegion, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void publishRegionStates(@NonNull Map<Region, Boolean> insideByRegion, long now) {
+        ByteBuffer buffer = writableBuffer();
+        if (buffer == null) {
+            return;
+        }
+        // Encoded before the write starts so readers retry for as short a time as possible
+        ByteBuffer slots = ByteBuffer.allocate(Math.min(insideByRegion.size(), MAX_REGIONS) * SLOT_SIZE);
+        int regionCount = 0;
+        boolean complete = insideByRegion.size() <= MAX_REGIONS;
+        for (Map.Entry<Region, Boolean> entry : insideByRegion.entrySet()) {
+            if (regionCount == MAX_REGIONS) {
+                break;
+            }
+            if (writeSlot(slots, regionCount * SLOT_SIZE, entry.getKey(), entry.getValue())) {
+                regionCount++;
+            }
+            else {
+                complete = false;
+            }
+        }
+        beginWrite(buffer);
+        buffer.putLong(DATA_OFFSET + HEARTBEAT_OFFSET, now);
+        int flags = (buffer.get(DATA_OFFSET + FLAGS_OFFSET) | FLAG_REGIONS) & ~FLAG_REGIONS_INCOMPLETE;
+        if (!complete) {
+            LogManager.w(TAG, "Only %s of %s monitored regions can be shared with other processes",
+                    regionCount, insideByRegion.size());
+            flags |= FLAG_REGIONS_INCOMPLETE;
+        }
+        buffer.put(DATA_OFFSET + FLAGS_OFFSET, (byte) flags);
+        buffer.putShort(DATA_OFFSET + REGION_COUNT_OFFSET, (short) regionCount);
+        ByteBuffer target = buffer.duplicate();
+        target.position(DATA_OFFSET + SLOTS_OFFSET);
+        target.put(slots.array(), 0, regionCount * SLOT_SIZE);
+        endWrite(buffer);
+    }
+
+    /**
+     * @return true if the scanner last published the region as inside, false if outside or not
+     * monitored, or null if the scanner has not published complete region states or has not
+     * published a heartbeat recently
+     */
+    @Nullable
+    public Boolean readInsideState(@NonNull Region region) {
+        return readInsideState(region, SystemClock.elapsedRealtime());
+    }
+
+    @Nullable
+    Boolean readInsideState(@NonNull Region region, long now) {
+        byte[] data = readData();
+        if (data == null || (data[FLAGS_OFFSET] & FLAG_REGIONS) == 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (!isHeartbeatCurrent(buffer, now)) {
+            LogManager.d(TAG, "Scanner has not published a heartbeat recently.  Ignoring its region states.");
+            return null;
+        }
+        byte[] uniqueId = region.getUniqueId() == null ? new byte[0] : region.getUniqueId().getBytes(UTF_8);
+        int regionCount = buffer.getShort(REGION_COUNT_OFFSET);
+        for (int i = 0; i < regionCount; i++) {
+            int slot = SLOTS_OFFSET + i * SLOT_SIZE;
+            int uniqueIdLength = buffer.getShort(slot + 1);
+            if (uniqueIdLength == uniqueId.length &&
+                    regionMatches(data, slot + 3, uniqueId)) {
+                return data[slot] != 0;
+            }
+        }
+        if ((data[FLAGS_OFFSET] & FLAG_REGIONS_INCOMPLETE) != 0) {
+            return null;
+        }
+        return false;
+    }
+
+    private static boolean isHeartbeatCurrent(ByteBuffer data, long now) {
+        long heartbeat = data.getLong(HEARTBEAT_OFFSET);
+        // A heartbeat in the future was published before the device rebooted
+        if (heartbeat == 0 || heartbeat > now) {
+            return false;
+        }
+        long cycleMillis = data.getLong(SCAN_PERIOD_OFFSET) + data.getLong(BETWEEN_SCAN_PERIOD_OFFSET);
+        return now - heartbeat <= 2 * cycleMillis + HEARTBEAT_GRACE_MILLIS;
+    }
+
+    private static boolean writeSlot(ByteBuffer slots, int slot, Region region, Boolean inside) {
+        byte[] uniqueId = region.getUniqueId() == null ? new byte[0] : region.getUniqueId().getBytes(UTF_8);
+        if (3 + uniqueId.length > SLOT_SIZE) {
+            return false;
+        }
+        slots.position(slot);
+        slots.put((byte) (inside != null && inside ? 1 : 0));
+        slots.putShort((short) uniqueId.length);
+        slots.put(uniqueId);
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] uniqueId) {
+        for (int i = 0; i < uniqueId.length; i++) {
+            if (data[offset + i] != uniqueId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void beginWrite(ByteBuffer buffer) {
+        buffer.putInt(SEQUENCE_OFFSET, buffer.getInt(SEQUENCE_OFFSET) + 1);
+    }
+
+    private static void endWrite(ByteBuffer buffer) {
+        int dataLength = SLOTS_OFFSET + buffer.getShort(DATA_OFFSET + REGION_COUNT_OFFSET) * SLOT_SIZE;
+        buffer.putInt(DATA_LENGTH_OFFSET, dataLength);
+        buffer.putInt(CHECKSUM_OFFSET, checksum(buffer, dataLength));
+        buffer.putInt(SEQUENCE_OFFSET, buffer.getInt(SEQUENCE_OFFSET) + 1);
+    }
+
+    private static int checksum(ByteBuffer buffer, int dataLength) {
+        byte[] data = new byte[dataLength];
+        ByteBuffer source = buffer.duplicate();
+        source.position(DATA_OFFSET);
+        source.get(data);
+        return checksum(data);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return a consistent copy of the data, or null if there is none or it is being rewritten
+     */
+    @Nullable
+    private byte[] readData() {
+        ByteBuffer buffer = readableBuffer();
+        if (buffer == null) {
+            return null;
+        }
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            int sequence = buffer.getInt(SEQUENCE_OFFSET);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != LAYOUT_VERSION) {
+                return null;
+            }
+            int dataLength = buffer.getInt(DATA_LENGTH_OFFSET);
+            int checksum = buffer.getInt(CHECKSUM_OFFSET);
+            if (dataLength < SLOTS_OFFSET || dataLength > FILE_SIZE - DATA_OFFSET) {
+                continue;
+            }
+            byte[] data = new byte[dataLength];
+            ByteBuffer source = buffer.duplicate();
+            source.position(DATA_OFFSET);
+            source.get(data);
+            if (buffer.getInt(SEQUENCE_OFFSET) == sequence && checksum(data) == checksum) {
+                return data;
+            }
+        }
+        LogManager.d(TAG, "Shared scan state is being rewritten.  Not reading it.");
+        return null;
+    }
+
+    private synchronized ByteBuffer writableBuffer() {
+        if (mWritableBuffer == null) {
+            mWritableBuffer = map(true);
+            if (mWritableBuffer != null) {
+                if (mWritableBuffer.getInt(0) != MAGIC || mWritableBuffer.getInt(4) != LAYOUT_VERSION) {
+                    mWritableBuffer.putInt(SEQUENCE_OFFSET, 1);
+                    mWritableBuffer.putInt(0, MAGIC);
+                    mWritableBuffer.putInt(4, LAYOUT_VERSION);
+                    mWritableBuffer.putLong(DATA_OFFSET + HEARTBEAT_OFFSET, 0);
+                    mWritableBuffer.put(DATA_OFFSET + FLAGS_OFFSET, (byte) 0);
+                    mWritableBuffer.putShort(DATA_OFFSET + REGION_COUNT_OFFSET, (short) 0);
+                    endWrite(mWritableBuffer);
+                }
+                else if ((mWritableBuffer.getInt(SEQUENCE_OFFSET) & 1) != 0) {
+                    // A previous scanner process died while writing
+                    endWrite(mWritableBuffer);
+                }
+            }
+        }
+        return mWritableBuffer;
+    }
+
+    private synchronized ByteBuffer readableBuffer() {
+        if (mWritableBuffer != null) {
+            return mWritableBuffer;
+        }
+        if (mReadableBuffer == null && mFile.length() == FILE_SIZE) {
+            mReadableBuffer = map(false);
+        }
+        return mReadableBuffer;
+    }
+
+    private MappedByteBuffer map(boolean writable) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, writable ? "rw" : "r");
+            if (writable && file.length() != FILE_SIZE) {
+                file.setLength(FILE_SIZE);
+            }
+            // The mapping stays valid after the file is closed
+            return file.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    0, FILE_SIZE);
+        } catch (IOException e) {
+            LogManager.w(TAG, "Cannot map shared scan state file: %s", e.getMessage());
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -28,8 +28,11 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 
+import org.altbeacon.beacon.BeaconBatchCodec;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -39,11 +42,13 @@ import java.io.Serializable;
  * @hide
  */
 public class StartRMData implements Serializable, Parcelable {
+    private static final String TAG = StartRMData.class.getSimpleName();
     private static final String SCAN_PERIOD_KEY = "scanPeriod";
     private static final String BETWEEN_SCAN_PERIOD_KEY = "betweenScanPeriod";
     private static final String BACKGROUND_FLAG_KEY = "backgroundFlag";
     private static final String CALLBACK_PACKAGE_NAME_KEY = "callbackPackageName";
     private static final String REGION_KEY = "region";
+    private static final String REGION_BYTES_KEY = "regionBytes";
 
     private Region mRegion;
     private long mScanPeriod;
@@ -120,7 +125,20 @@ public class StartRMData implements Serializable, Parcelable {
         bundle.putBoolean(BACKGROUND_FLAG_KEY, this.mBackgroundFlag);
         bundle.putString(CALLBACK_PACKAGE_NAME_KEY, this.mCallbackPackageName);
         if (mRegion != null) {
-            bundle.putSerializable(REGION_KEY, mRegion);
+            byte[] regionBytes = null;
+            if (BeaconBatchCodec.canEncode(mRegion)) {
+                try {
+                    regionBytes = BeaconBatchCodec.encodeRegion(mRegion);
+                } catch (IOException e) {
+                    LogManager.e(TAG, "Cannot encode region", e);
+                }
+            }
+            if (regionBytes != null) {
+                bundle.putByteArray(REGION_BYTES_KEY, regionBytes);
+            }
+            else {
+                bundle.putSerializable(REGION_KEY, mRegion);
+            }
         }
         return bundle;
     }
@@ -129,7 +147,15 @@ public class StartRMData implements Serializable, Parcelable {
         bundle.setClassLoader(Region.class.getClassLoader());
         boolean valid = false;
         StartRMData data = new StartRMData();
-        if (bundle.containsKey(REGION_KEY)) {
+        if (bundle.containsKey(REGION_BYTES_KEY)) {
+            try {
+                data.mRegion = BeaconBatchCodec.decodeRegion(bundle.getByteArray(REGION_BYTES_KEY));
+                valid = true;
+            } catch (IOException e) {
+                LogManager.e(TAG, "Cannot decode region", e);
+            }
+        }
+        else if (bundle.containsKey(REGION_KEY)) {
             data.mRegion = (Region)bundle.getSerializable(REGION_KEY);
             valid = true;
         }
@@ -1,18 +1,30 @@
 package org.altbeacon.beacon.service.scanner;
 
 import android.bluetooth.BluetoothDevice;
-import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 /**
  * Android API agnostic Bluetooth scan callback wrapper.
  * <p>
- * Since Android bluetooth scan callbacks occur on the main thread it is expected that these
- * callbacks will also occur on the main thread.
+ * These callbacks occur on the thread running scan cycles.  This is the main thread unless
+ * {@link org.altbeacon.beacon.BeaconManager#setScanCycleOnScanThreadEnabled(boolean)} or
+ * {@link org.altbeacon.beacon.BeaconManager#setScanCycleLooper(android.os.Looper)} is used.
+ * Pre-Lollipop scan results are delivered to <code>onLeScan</code> on a Bluetooth binder thread.
  *
  * Created by dyoung on 10/6/14.
  */
-@MainThread
 public interface CycledLeScanCallback {
     void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+    /**
+     * Called with scan results the Bluetooth controller delivered together, at the same indexes
+     * of each array.
+     *
+     * @param onProcessed if not null, must be run once all of the scan results have been
+     *                    processed.  It may be run on any thread.
+     */
+    void onLeScanBatch(@NonNull BluetoothDevice[] devices, @NonNull int[] rssis,
+                       @NonNull byte[][] scanRecords, @Nullable Runnable onProcessed);
     void onCycleEnd();
 }
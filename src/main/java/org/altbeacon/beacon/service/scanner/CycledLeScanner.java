@@ -5,6 +5,7 @@ import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
@@ -15,7 +16,6 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.support.annotation.AnyThread;
-import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
 import android.support.annotation.WorkerThread;
 
@@ -25,6 +25,8 @@ import org.altbeacon.beacon.startup.StartupBroadcastReceiver;
 import org.altbeacon.bluetooth.BluetoothCrashResolver;
 
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @TargetApi(18)
 public abstract class CycledLeScanner {
@@ -56,7 +58,10 @@ public abstract class CycledLeScanner {
     protected long mBetweenScanPeriod;
 
     /**
-     * Main thread handle for scheduling scan cycle tasks.
+     * Handle to the thread running scan cycles, the main thread unless
+     * {@link BeaconManager#setScanCycleOnScanThreadEnabled(boolean)} or
+     * {@link BeaconManager#setScanCycleLooper(Looper)} moves them elsewhere.  Scan cycle state is
+     * only touched on this thread.
      * <p>
      * Use this to schedule deferred tasks such as the following:
      * <ul>
@@ -65,7 +70,7 @@ public abstract class CycledLeScanner {
      * </ul>
      */
     @NonNull
-    protected final Handler mHandler = new Handler(Looper.getMainLooper());
+    protected final Handler mHandler;
 
     /**
      * Handler to background thread for interacting with the low-level Android BLE scanner.
@@ -104,6 +109,27 @@ public abstract class CycledLeScanner {
      */
     private volatile boolean mDistinctPacketsDetectedPerScan = false;
     private static final long ANDROID_N_MIN_SCAN_CYCLE_MILLIS = 6000l;
+    // How long to wait for results held by the Bluetooth controller before ending a cycle anyway
+    private static final long PENDING_RESULTS_FLUSH_TIMEOUT_MILLIS = 1000l;
+    // How long a caller waits for the scan cycle thread before going on without it
+    private static final long CYCLE_THREAD_WAIT_TIMEOUT_MILLIS = 2000l;
+    // True while a scan cycle is waiting for held results to be delivered and processed before it ends
+    private boolean mAwaitingPendingResults = false;
+    // Identifies the latest request for held results, so that the answer to an earlier request
+    // cannot end a later scan cycle
+    private int mPendingResultsRequestId = 0;
+    // True from just before the latest request is made to the Bluetooth stack, until a batch
+    // answers it
+    private boolean mPendingResultsRequestIssued = false;
+    private final Runnable mPendingResultsTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mAwaitingPendingResults) {
+                LogManager.w(TAG, "Timed out waiting for batched scan results.  Ending scan cycle.");
+                finishScanCycle();
+            }
+        }
+    };
 
     protected CycledLeScanner(Context context, long scanPeriod, long betweenScanPeriod, boolean backgroundFlag, CycledLeScanCallback cycledLeScanCallback, BluetoothCrashResolver crashResolver) {
         mScanPeriod = scanPeriod;
@@ -116,6 +142,13 @@ public abstract class CycledLeScanner {
         mScanThread = new HandlerThread("CycledLeScannerThread");
         mScanThread.start();
         mScanHandler = new Handler(mScanThread.getLooper());
+
+        Looper cycleLooper = BeaconManager.getScanCycleLooper();
+        if (cycleLooper == null) {
+            cycleLooper = BeaconManager.isScanCycleOnScanThreadEnabled() ?
+                    mScanThread.getLooper() : Looper.getMainLooper();
+        }
+        mHandler = new Handler(cycleLooper);
     }
 
     public static CycledLeScanner createScanner(Context context, long scanPeriod, long betweenScanPeriod, boolean backgroundFlag, CycledLeScanCallback cycledLeScanCallback, BluetoothCrashResolver crashResolver) {
@@ -170,8 +203,17 @@ public abstract class CycledLeScanner {
      * between LOW_POWER_MODE vs. LOW_LATENCY_MODE
      * @param backgroundFlag
      */
-    @MainThread
-    public void setScanPeriods(long scanPeriod, long betweenScanPeriod, boolean backgroundFlag) {
+    @AnyThread
+    public void setScanPeriods(final long scanPeriod, final long betweenScanPeriod, final boolean backgroundFlag) {
+        if (!isOnCycleThread()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setScanPeriods(scanPeriod, betweenScanPeriod, backgroundFlag);
+                }
+            });
+            return;
+        }
         LogManager.d(TAG, "Set scan periods called with %s, %s Background mode must have changed.",
                 scanPeriod, betweenScanPeriod);
         if (mBackgroundFlag != backgroundFlag) {
@@ -211,8 +253,17 @@ public abstract class CycledLeScanner {
         }
     }
 
-    @MainThread
+    @AnyThread
     public void start() {
+        if (!isOnCycleThread()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    start();
+                }
+            });
+            return;
+        }
         LogManager.d(TAG, "start called");
         mScanningEnabled = true;
         if (!mScanCyclerStarted) {
@@ -222,8 +273,17 @@ public abstract class CycledLeScanner {
         }
     }
 
-    @MainThread
+    @AnyThread
     public void stop() {
+        if (!isOnCycleThread()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            });
+            return;
+        }
         LogManager.d(TAG, "stop called");
         mScanningEnabled = false;
         if (mScanCyclerStarted) {
@@ -254,8 +314,18 @@ public abstract class CycledLeScanner {
         mDistinctPacketsDetectedPerScan = detected;
     }
 
-    @MainThread
+    @AnyThread
     public void destroy() {
+        if (!isOnCycleThread()) {
+            // Queued behind any earlier stop, so that stop is not removed below before it runs
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    destroy();
+                }
+            });
+            return;
+        }
         LogManager.d(TAG, "Destroying");
 
         // Remove any postDelayed Runnables queued for the next scan cycle
@@ -275,13 +345,123 @@ public abstract class CycledLeScanner {
         });
     }
 
+    /**
+     * Runs the task on the thread running scan cycles after everything already queued there, such
+     * as an earlier {@link #stop()}, and waits for it to finish.  Use this to stop scanning or to
+     * replace the state scan cycles work on, so that no scan cycle ends while it runs and any
+     * final scan cycle has ended before the caller goes on.
+     */
+    @AnyThread
+    public void runOnCycleThreadAndWait(final Runnable task) {
+        if (isOnCycleThread()) {
+            task.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        if (!posted) {
+            // The scan thread has quit, so no scan cycle can be running
+            task.run();
+            return;
+        }
+        try {
+            if (!done.await(CYCLE_THREAD_WAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LogManager.w(TAG, "Timed out waiting for the scan cycle thread");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the caller is on the thread running scan cycles
+     */
+    @AnyThread
+    protected boolean isOnCycleThread() {
+        return Looper.myLooper() == mHandler.getLooper();
+    }
+
+    /**
+     * Asks the scanner to deliver any scan results the Bluetooth controller is holding back, so
+     * they are processed in the cycle that is ending.  Just before making the request to the
+     * Bluetooth stack, implementations must call {@link #onPendingResultsRequested(int)} with the
+     * request id, so the answer cannot arrive first, and pass the batch answering it to
+     * {@link #onBatchScanResults}.
+     *
+     * @return true if the request will be made
+     */
+    protected boolean flushPendingResults(int requestId) {
+        return false;
+    }
+
+    /**
+     * Marks the request for held results as being made to the Bluetooth stack, so that the next
+     * batch delivered is taken as its answer.  Batches delivered earlier were reported on their
+     * own schedule and do not end the scan cycle.  If the request then fails, the scan cycle ends
+     * when waiting for the answer times out.
+     */
+    @AnyThread
+    protected void onPendingResultsRequested(final int requestId) {
+        if (!isOnCycleThread()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPendingResultsRequested(requestId);
+                }
+            });
+            return;
+        }
+        if (mAwaitingPendingResults && requestId == mPendingResultsRequestId) {
+            mPendingResultsRequestIssued = true;
+        }
+    }
+
+    /**
+     * Passes scan results the Bluetooth controller delivered together to the callback.  If they
+     * answer the request made by {@link #flushPendingResults(int)}, the scan cycle ends once the
+     * callback has processed all of them.  Must be called on the thread running scan cycles.
+     */
+    protected void onBatchScanResults(@NonNull BluetoothDevice[] devices, @NonNull int[] rssis,
+                                      @NonNull byte[][] scanRecords) {
+        Runnable onProcessed = null;
+        if (mAwaitingPendingResults && mPendingResultsRequestIssued) {
+            mPendingResultsRequestIssued = false;
+            final int requestId = mPendingResultsRequestId;
+            // Give processing the batch as long as delivering it was given
+            mHandler.removeCallbacks(mPendingResultsTimeout);
+            mHandler.postDelayed(mPendingResultsTimeout, PENDING_RESULTS_FLUSH_TIMEOUT_MILLIS);
+            onProcessed = new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mAwaitingPendingResults && requestId == mPendingResultsRequestId) {
+                                finishScanCycle();
+                            }
+                        }
+                    });
+                }
+            };
+        }
+        mCycledLeScanCallback.onLeScanBatch(devices, rssis, scanRecords, onProcessed);
+    }
+
     protected abstract void stopScan();
 
     protected abstract boolean deferScanIfNeeded();
 
     protected abstract void startScan();
 
-    @MainThread
     protected void scanLeDevice(final Boolean enable) {
         try {
             mScanCyclerStarted = true;
@@ -357,7 +537,6 @@ public abstract class CycledLeScanner {
         }
     }
 
-    @MainThread
     protected void scheduleScanCycleStop() {
         // Stops scanning after a pre-defined scan period.
         long millisecondsUntilStop = mScanCycleStopTime - SystemClock.elapsedRealtime();
@@ -368,22 +547,32 @@ public abstract class CycledLeScanner {
                 setWakeUpAlarm();
             }
             mHandler.postDelayed(new Runnable() {
-                @MainThread
                 @Override
                 public void run() {
                     scheduleScanCycleStop();
                 }
             }, millisecondsUntilStop > 1000 ? 1000 : millisecondsUntilStop);
         } else {
+            if (mScanningEnabled && !mAwaitingPendingResults && flushPendingResults(++mPendingResultsRequestId)) {
+                LogManager.d(TAG, "Waiting for batched scan results before ending scan cycle");
+                mAwaitingPendingResults = true;
+                mPendingResultsRequestIssued = false;
+                mHandler.postDelayed(mPendingResultsTimeout, PENDING_RESULTS_FLUSH_TIMEOUT_MILLIS);
+                return;
+            }
             finishScanCycle();
         }
     }
 
     protected abstract void finishScan();
 
-    @MainThread
     private void finishScanCycle() {
         LogManager.d(TAG, "Done with scan cycle");
+        if (mAwaitingPendingResults) {
+            mAwaitingPendingResults = false;
+            mPendingResultsRequestIssued = false;
+            mHandler.removeCallbacks(mPendingResultsTimeout);
+        }
         try {
             mCycledLeScanCallback.onCycleEnd();
             if (mScanning) {
@@ -5,7 +5,6 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.SystemClock;
-import android.support.annotation.MainThread;
 import android.support.annotation.WorkerThread;
 
 import org.altbeacon.beacon.logging.LogManager;
@@ -38,7 +37,6 @@ public class CycledLeScannerForJellyBeanMr2 extends CycledLeScanner {
                 setWakeUpAlarm();
             }
             mHandler.postDelayed(new Runnable() {
-                @MainThread
                 @Override
                 public void run() {
                     scanLeDevice(true);
@@ -2,6 +2,7 @@ package org.altbeacon.beacon.service.scanner;
 
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
@@ -31,6 +32,8 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
     private long mBackgroundLScanStartTime = 0l;
     private long mBackgroundLScanFirstDetectionTime = 0l;
     private boolean mMainScanCycleActive = false;
+    // True while the Bluetooth controller may be holding back results until its report delay
+    private boolean mBatchScanActive = false;
     private final BeaconManager mBeaconManager;
 
     public CycledLeScannerForLollipop(Context context, long scanPeriod, long betweenScanPeriod, boolean backgroundFlag, CycledLeScanCallback cycledLeScanCallback, BluetoothCrashResolver crashResolver) {
@@ -40,6 +43,7 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
 
     @Override
     protected void stopScan() {
+        mBatchScanActive = false;
         postStopLeScan();
     }
 
@@ -144,7 +148,6 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
                 setWakeUpAlarm();
             }
             mHandler.postDelayed(new Runnable() {
-                @MainThread
                 @Override
                 public void run() {
                     scanLeDevice(true);
@@ -168,14 +171,30 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
         List<ScanFilter> filters = new ArrayList<ScanFilter>();
         ScanSettings settings = null;
 
+        mBatchScanActive = false;
         if (!mMainScanCycleActive) {
             LogManager.d(TAG, "starting filtered scan in SCAN_MODE_LOW_POWER");
             settings = (new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)).build();
             filters = new ScanFilterUtils().createScanFiltersForBeaconParsers(
                           mBeaconManager.getBeaconParsers());
         } else {
-            LogManager.d(TAG, "starting non-filtered scan in SCAN_MODE_LOW_LATENCY");
-            settings = (new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)).build();
+            ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            long reportDelayMillis = BeaconManager.getBatchScanReportDelayMillis();
+            if (reportDelayMillis > 0 && isOffloadedScanBatchingSupported()) {
+                // The controller holds results until the delay expires or the cycle ends and
+                // flushes them, so the app is woken once per batch rather than per advertisement
+                LogManager.d(TAG, "starting non-filtered batch scan in SCAN_MODE_LOW_LATENCY with a report delay of %s millis",
+                        reportDelayMillis);
+                builder.setReportDelay(reportDelayMillis);
+                mBatchScanActive = true;
+            }
+            else {
+                if (reportDelayMillis > 0) {
+                    LogManager.w(TAG, "Batch scanning is not supported on this device.  Scan results will be delivered individually.");
+                }
+                LogManager.d(TAG, "starting non-filtered scan in SCAN_MODE_LOW_LATENCY");
+            }
+            settings = builder.build();
         }
 
         if (settings != null) {
@@ -190,6 +209,37 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
         mScanningPaused = true;
     }
 
+    @Override
+    protected boolean flushPendingResults(final int requestId) {
+        if (!mBatchScanActive) {
+            return false;
+        }
+        final BluetoothLeScanner scanner = getScanner();
+        if (scanner == null) {
+            return false;
+        }
+        final ScanCallback scanCallback = getNewLeScanCallback();
+        mScanHandler.post(new Runnable() {
+            @WorkerThread
+            @Override
+            public void run() {
+                try {
+                    // Marked first, as the answer may be delivered before the flush returns
+                    onPendingResultsRequested(requestId);
+                    scanner.flushPendingScanResults(scanCallback);
+                } catch (IllegalStateException e) {
+                    LogManager.w(TAG, "Cannot flush scan results. Bluetooth may be turned off.");
+                } catch (NullPointerException npe) {
+                    LogManager.e(npe, TAG, "Cannot flush scan results. Unexpected NPE.");
+                } catch (SecurityException e) {
+                    // Thrown by Samsung Knox devices if bluetooth access denied for an app
+                    LogManager.e(TAG, "Cannot flush scan results.  Security Exception");
+                }
+            }
+        });
+        return true;
+    }
+
     private void postStartLeScan(final List<ScanFilter> filters, final ScanSettings settings) {
         final BluetoothLeScanner scanner = getScanner();
         if (scanner == null) {
@@ -263,6 +313,17 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
         return false;
     }
 
+    private boolean isOffloadedScanBatchingSupported() {
+        try {
+            BluetoothAdapter bluetoothAdapter = getBluetoothAdapter();
+            return bluetoothAdapter != null && bluetoothAdapter.isOffloadedScanBatchingSupported();
+        }
+        catch (SecurityException e) {
+            LogManager.w(TAG, "SecurityException checking if batch scanning is supported");
+        }
+        return false;
+    }
+
     private BluetoothLeScanner getScanner() {
         try {
             if (mScanner == null) {
@@ -287,7 +348,16 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
             leScanCallback = new ScanCallback() {
                 @MainThread
                 @Override
-                public void onScanResult(int callbackType, ScanResult scanResult) {
+                public void onScanResult(final int callbackType, final ScanResult scanResult) {
+                    if (!isOnCycleThread()) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onScanResult(callbackType, scanResult);
+                            }
+                        });
+                        return;
+                    }
                     if (LogManager.isVerboseLoggingEnabled()) {
                         LogManager.d(TAG, "got record");
                         List<ParcelUuid> uuids = scanResult.getScanRecord().getServiceUuids();
@@ -306,15 +376,31 @@ public class CycledLeScannerForLollipop extends CycledLeScanner {
 
                 @MainThread
                 @Override
-                public void onBatchScanResults(List<ScanResult> results) {
-                    LogManager.d(TAG, "got batch records");
-                    for (ScanResult scanResult : results) {
-                        mCycledLeScanCallback.onLeScan(scanResult.getDevice(),
-                                scanResult.getRssi(), scanResult.getScanRecord().getBytes());
+                public void onBatchScanResults(final List<ScanResult> results) {
+                    if (!isOnCycleThread()) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onBatchScanResults(results);
+                            }
+                        });
+                        return;
+                    }
+                    LogManager.d(TAG, "got %s batch records", results.size());
+                    BluetoothDevice[] devices = new BluetoothDevice[results.size()];
+                    int[] rssis = new int[results.size()];
+                    byte[][] scanRecords = new byte[results.size()][];
+                    for (int i = 0; i < results.size(); i++) {
+                        ScanResult scanResult = results.get(i);
+                        devices[i] = scanResult.getDevice();
+                        rssis[i] = scanResult.getRssi();
+                        scanRecords[i] = scanResult.getScanRecord().getBytes();
                     }
                     if (mBackgroundLScanStartTime > 0) {
                         LogManager.d(TAG, "got a filtered batch scan result in the background.");
                     }
+                    // Ends the scan cycle once processed if it answers the flush at its end
+                    CycledLeScannerForLollipop.this.onBatchScanResults(devices, rssis, scanRecords);
                 }
 
                 @MainThread
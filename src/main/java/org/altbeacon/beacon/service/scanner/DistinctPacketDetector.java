@@ -2,9 +2,8 @@ package org.altbeacon.beacon.service.scanner;
 
 import android.support.annotation.NonNull;
 
-import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by dyoung on 4/8/17.
@@ -15,32 +14,78 @@ import java.util.Set;
  * requires stopping and restarting scanning on these devices.  This allows detecting if that is
  * necessary.
  * <p>
- * <strong>This class is not thread safe.</strong>
+ * Packets are remembered as 64 bit fingerprints of the MAC address and scan record, computed
+ * without copying either, in a fixed size open addressed table updated with compare-and-set.  It
+ * is safe to call from many scan processing threads at once.  Two different packets share a
+ * fingerprint with negligible probability at the number of packets tracked.
  */
 public class DistinctPacketDetector {
     // Sanity limit for the number of packets to track, so we don't use too much memory
     private static final int MAX_PACKETS_TO_TRACK = 1000;
+    // At least twice the packets tracked, so probe sequences stay short
+    private static final int TABLE_SIZE = 2048;
+    private static final long EMPTY = 0;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
 
     @NonNull
-    private final Set<ByteBuffer> mDistinctPacketsDetected = new HashSet<>();
+    private final AtomicLongArray mFingerprints = new AtomicLongArray(TABLE_SIZE);
+    @NonNull
+    private final AtomicInteger mCount = new AtomicInteger();
 
     public void clearDetections() {
-        mDistinctPacketsDetected.clear();
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            mFingerprints.set(i, EMPTY);
+        }
+        mCount.set(0);
     }
 
+    /**
+     * @return false if the same packet from the same MAC address was seen since detections were
+     * last cleared.  Once the tracking limit is reached, packets not already tracked are reported
+     * as distinct without being tracked.
+     */
     public boolean isPacketDistinct(@NonNull String originMacAddress, @NonNull byte[] scanRecord) {
-        byte[] macBytes = originMacAddress.getBytes();
-        ByteBuffer buffer = ByteBuffer.allocate(macBytes.length+scanRecord.length);
-        buffer.put(macBytes);
-        buffer.put(scanRecord);
-        buffer.rewind(); // rewind puts position back to beginning so .equals and .hashCode work
+        long fingerprint = fingerprint(originMacAddress, scanRecord);
+        int index = (int) fingerprint & (TABLE_SIZE - 1);
+        for (int probes = 0; probes < TABLE_SIZE; ) {
+            long existing = mFingerprints.get(index);
+            if (existing == fingerprint) {
+                return false;
+            }
+            if (existing == EMPTY) {
+                if (mCount.get() >= MAX_PACKETS_TO_TRACK) {
+                    return true;
+                }
+                if (mFingerprints.compareAndSet(index, EMPTY, fingerprint)) {
+                    mCount.incrementAndGet();
+                    return true;
+                }
+                // Another thread filled the slot, so look at it again
+                continue;
+            }
+            index = (index + 1) & (TABLE_SIZE - 1);
+            probes++;
+        }
+        return true;
+    }
 
-        if (mDistinctPacketsDetected.size() == MAX_PACKETS_TO_TRACK) {
-            return mDistinctPacketsDetected.contains(buffer);
+    private static long fingerprint(String originMacAddress, byte[] scanRecord) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < originMacAddress.length(); i++) {
+            hash = (hash ^ originMacAddress.charAt(i)) * FNV_PRIME;
         }
-        else {
-            return mDistinctPacketsDetected.add(buffer);
+        // Separates the address from the record, so moving bytes between them changes the hash
+        hash = (hash ^ originMacAddress.length()) * FNV_PRIME;
+        for (byte b : scanRecord) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
         }
+        // Spreads the bits so the low bits used for the table index depend on every input byte
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
     }
-
 }
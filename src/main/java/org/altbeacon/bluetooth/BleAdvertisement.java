@@ -21,16 +21,10 @@ public class BleAdvertisement {
     }
     private List<Pdu> parsePdus() {
         ArrayList<Pdu> pdus = new ArrayList<Pdu>();
-        Pdu pdu = null;
-        int index = 0;
-        do {
-            pdu = Pdu.parse(mBytes, index);
-            if (pdu != null) {
-                index = index + pdu.getDeclaredLength()+1;
-                pdus.add(pdu);
-            }
+        PduCursor cursor = new PduCursor(mBytes);
+        while (cursor.next()) {
+            pdus.add(Pdu.fromCursor(cursor));
         }
-        while (pdu != null && index < mBytes.length);
         return pdus;
     }
 
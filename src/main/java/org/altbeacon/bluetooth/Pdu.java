@@ -52,6 +52,21 @@ public class Pdu {
         return pdu;
     }
 
+    /**
+     * Copy the PDU the cursor is currently positioned on
+     * @param cursor
+     * @return
+     */
+    static Pdu fromCursor(PduCursor cursor) {
+        Pdu pdu = new Pdu();
+        pdu.mType = cursor.getType();
+        pdu.mDeclaredLength = cursor.getDeclaredLength();
+        pdu.mStartIndex = cursor.getStartIndex();
+        pdu.mEndIndex = cursor.getEndIndex();
+        pdu.mBytes = cursor.getBytes();
+        return pdu;
+    }
+
     /**
      * PDU type field
      * @return
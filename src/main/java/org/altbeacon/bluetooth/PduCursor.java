@@ -0,0 +1,171 @@
+package org.altbeacon.bluetooth;
+
+/**
+ * Walks the Payload Data Units (PDUs) of a BLE advertisement in place, without allocating a
+ * <code>Pdu</code> object for each one.  The cursor reads the same structure as
+ * {@link BleAdvertisement}, but exposes one PDU at a time from the raw byte array.
+ *
+ * A single cursor may be reset and reused for many advertisements.  The position of the first
+ * manufacturer data or service data PDU is remembered, so the advertisement only needs to be
+ * walked once no matter how many <code>BeaconParser</code> instances look at it.
+ *
+ * <strong>This class is not thread safe.</strong>
+ */
+public class PduCursor {
+    private static final int BEACON_PDU_UNKNOWN = -2;
+    private static final int BEACON_PDU_NONE = -1;
+
+    private byte[] mBytes;
+    private int mNextIndex;
+    private int mBeaconPduIndex = BEACON_PDU_UNKNOWN;
+
+    private byte mType;
+    private int mDeclaredLength;
+    private int mStartIndex;
+    private int mEndIndex;
+
+    /**
+     * Makes a cursor that must be pointed at an advertisement with {@link #reset(byte[])}
+     */
+    public PduCursor() {
+        mBytes = new byte[0];
+    }
+
+    /**
+     * Makes a cursor positioned before the first PDU of the advertisement
+     * @param bytes
+     */
+    public PduCursor(byte[] bytes) {
+        reset(bytes);
+    }
+
+    /**
+     * Points the cursor at a new advertisement, positioned before its first PDU
+     * @param bytes
+     * @return this cursor
+     */
+    public PduCursor reset(byte[] bytes) {
+        mBytes = bytes;
+        mBeaconPduIndex = BEACON_PDU_UNKNOWN;
+        rewind();
+        return this;
+    }
+
+    /**
+     * Moves the cursor back before the first PDU of the current advertisement
+     */
+    public void rewind() {
+        mNextIndex = 0;
+        mType = 0;
+        mDeclaredLength = 0;
+        mStartIndex = 0;
+        mEndIndex = -1;
+    }
+
+    /**
+     * Advances to the next PDU
+     * @return false if there are no more PDUs in the advertisement
+     */
+    public boolean next() {
+        if (mNextIndex >= mBytes.length || !readAt(mNextIndex)) {
+            mNextIndex = mBytes.length;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the first manufacturer data or service data PDU, which is the PDU beacon layouts are
+     * decoded from.  The position is computed once per advertisement and reused afterwards.
+     * @return false if the advertisement contains no such PDU
+     */
+    public boolean moveToBeaconPdu() {
+        if (mBeaconPduIndex == BEACON_PDU_UNKNOWN) {
+            mBeaconPduIndex = BEACON_PDU_NONE;
+            rewind();
+            while (next()) {
+                if (mType == Pdu.GATT_SERVICE_UUID_PDU_TYPE || mType == Pdu.MANUFACTURER_DATA_PDU_TYPE) {
+                    mBeaconPduIndex = mStartIndex - 2;
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (mBeaconPduIndex == BEACON_PDU_NONE) {
+            return false;
+        }
+        return readAt(mBeaconPduIndex);
+    }
+
+    private boolean readAt(int index) {
+        if (mBytes.length - index < 2) {
+            return false;
+        }
+        byte length = mBytes[index];
+        int firstIndex = index + 2;
+        if (length <= 0 || firstIndex >= mBytes.length) {
+            return false;
+        }
+        mType = mBytes[index + 1];
+        mDeclaredLength = length;
+        mStartIndex = firstIndex;
+        // The End index is the startIndex + the length, because the first byte is the length
+        // field and the length field does not include the length field itself in the count
+        mEndIndex = index + length;
+        if (mEndIndex >= mBytes.length) {
+            mEndIndex = mBytes.length - 1;
+        }
+        mNextIndex = index + length + 1;
+        return true;
+    }
+
+    /**
+     * The advertisement this cursor walks
+     * @return
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * PDU type field of the current PDU
+     * @return
+     */
+    public byte getType() {
+        return mType;
+    }
+
+    /**
+     * PDU length from header of the current PDU
+     * @return
+     */
+    public int getDeclaredLength() {
+        return mDeclaredLength;
+    }
+
+    /**
+     * Actual length of the current PDU (may be less than declared length if fewer bytes are
+     * actually available.)
+     * @return
+     */
+    public int getActualLength() {
+        return mEndIndex - mStartIndex + 1;
+    }
+
+    /**
+     * Start index within byte buffer of the current PDU's payload, which starts after the length
+     * and the type
+     * @return
+     */
+    public int getStartIndex() {
+        return mStartIndex;
+    }
+
+    /**
+     * End index within byte buffer of the current PDU
+     * @return
+     */
+    public int getEndIndex() {
+        return mEndIndex;
+    }
+}
@@ -0,0 +1,60 @@
+package org.altbeacon.beacon;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class BeaconBatchCodecTest {
+
+    @Test
+    public void copiedBeaconsDoNotChangeWithOriginalsTest() {
+        Beacon beacon = new AltBeacon.Builder().setId1("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6").setId2("1").setId3("2")
+                .setRssi(-60).setTxPower(-59).setBluetoothAddress("01:02:03:04:05:06").build();
+        beacon.setRunningAverageRssi(-61.5);
+        List<Beacon> copies = BeaconBatchCodec.copyBeacons(Arrays.asList(beacon));
+        beacon.setRunningAverageRssi(-70.0);
+
+        Beacon copy = copies.get(0);
+        assertTrue("Copy should keep the beacon class", copy instanceof AltBeacon);
+        assertEquals("Copy should equal the original", beacon, copy);
+        assertEquals("Copy should keep the running average rssi it was copied with", -61.5, copy.getRunningAverageRssi(), 0.0);
+    }
+
+    @Test
+    public void doesNotEncodeUnknownSubclassesTest() {
+        Beacon beacon = new Beacon.Builder().setId1("1").build();
+        Beacon subclassBeacon = new Beacon() {};
+        assertTrue("Beacon should be encodable", BeaconBatchCodec.canEncode(Arrays.asList(beacon)));
+        assertFalse("Beacon subclass should not be encodable", BeaconBatchCodec.canEncode(Arrays.asList(beacon, subclassBeacon)));
+    }
+
+    @Test
+    public void parsersRoundTripTest() throws Exception {
+        BeaconParser uidParser = new BeaconParser("eddystone-uid").setBeaconLayout(BeaconParser.EDDYSTONE_UID_LAYOUT);
+        uidParser.setHardwareAssistManufacturerCodes(new int[] { 0x00e0 });
+        uidParser.setAllowPduOverflow(false);
+        uidParser.addExtraDataParser(new BeaconParser("eddystone-tlm").setBeaconLayout(BeaconParser.EDDYSTONE_TLM_LAYOUT));
+        List<BeaconParser> parsers = Arrays.asList(new AltBeaconParser(), uidParser);
+        assertTrue("Parsers should be encodable", BeaconBatchCodec.canEncodeParsers(parsers));
+
+        BeaconBatchCodec.Writer writer = new BeaconBatchCodec.Writer();
+        writer.writeParsers(parsers);
+        List<BeaconParser> restored = new BeaconBatchCodec.Reader(writer.toByteArray()).readParsers();
+
+        assertEquals("Parsers should be restored", parsers, restored);
+        assertTrue("Parser class should be restored", restored.get(0) instanceof AltBeaconParser);
+        assertEquals("Hardware assist manufacturers should be restored", 0x00e0, restored.get(1).getHardwareAssistManufacturers()[0]);
+        assertEquals("Matching beacon type code should be restored", uidParser.getMatchingBeaconTypeCode(), restored.get(1).getMatchingBeaconTypeCode());
+        assertEquals("Extra data parsers should be restored", uidParser.getExtraDataParsers(), restored.get(1).getExtraDataParsers());
+    }
+}
@@ -19,6 +19,10 @@ import org.junit.runner.RunWith;
 import org.junit.Test;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
 
 @Config(sdk = 18)
@@ -98,6 +102,24 @@ public class BeaconParserTest {
         assertEquals("manufacturer should be parsed", 0x118 ,beacon.getManufacturer());
     }
 
+    @Test
+    public void testRecognizeBeaconAfterParserIsDeserialized() throws Exception {
+        org.robolectric.shadows.ShadowLog.stream = System.err;
+        byte[] bytes = hexStringToByteArray("02011a1aff180112342f234454cf6d4a0fadf2f4911ba9ffa600010002c5");
+        BeaconParser parser = new BeaconParser();
+        parser.setBeaconLayout("m:2-3=1234,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25");
+        ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteOutputStream);
+        objectOutputStream.writeObject(parser);
+        objectOutputStream.close();
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(byteOutputStream.toByteArray()));
+        BeaconParser restoredParser = (BeaconParser) objectInputStream.readObject();
+        Beacon beacon = restoredParser.fromScanData(bytes, -55, null);
+        assertNotNull("beacon should be parsed by a deserialized parser", beacon);
+        assertEquals("uuid should be parsed", "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", beacon.getIdentifier(0).toString());
+        assertEquals("txPower should be parsed", -59, beacon.getTxPower());
+    }
+
     @Test
     public void testAllowsAccessToParserIdentifier() {
         LogManager.setLogger(Loggers.verboseLogger());
@@ -329,6 +351,20 @@ public class BeaconParserTest {
         assertNull("beacon not be parsed without an exception being thrown", beacon);
     }
 
+    @Test
+    public void testParsesLittleAndBigEndianDataFields() {
+        org.robolectric.shadows.ShadowLog.stream = System.err;
+        byte[] bytes = hexStringToByteArray("02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c509");
+        BeaconParser parser = new BeaconParser();
+        parser.setBeaconLayout("m:2-3=beac,i:4-19,p:24-24,d:20-21l,d:22-23,d:4-7");
+        Beacon beacon = parser.fromScanData(bytes, -55, null);
+        assertEquals("little endian data field should be parsed", Long.valueOf(0x0100l), beacon.getDataFields().get(0));
+        assertEquals("big endian data field should be parsed", Long.valueOf(2l), beacon.getDataFields().get(1));
+        assertEquals("four byte data field should be parsed as unsigned", Long.valueOf(0x2f234454l), beacon.getDataFields().get(2));
+        assertEquals("beacon type code should be parsed", 0xbeac, beacon.getBeaconTypeCode());
+        assertEquals("txPower should be parsed", -59, beacon.getTxPower());
+    }
+
     @Test
     public void testCanParseLongDataTypeOfDifferentSize(){
         // Create a beacon parser
@@ -7,6 +7,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.robolectric.annotation.Config;
@@ -206,6 +207,30 @@ public class BeaconTest {
                 .build();
         assertTrue("hashCode() should not throw exception", beacon.hashCode() >= Integer.MIN_VALUE);
     }
+
+    @Test
+    public void testEqualBeaconsHaveEqualIdentityKeysAndHashCodes() {
+        Beacon beacon1 = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3").setRssi(4)
+                .setBluetoothAddress("1:2:3:4:5:6").build();
+        Beacon beacon2 = new Beacon.Builder().setId1("1").setId2("2").setId3("3").setRssi(-80)
+                .setBluetoothAddress("1:2:3:4:5:7").setParserIdentifier("other").build();
+        assertTrue("Beacons with same identifiers are equal", beacon1.equals(beacon2));
+        assertEquals("Equal beacons should have equal identity keys", beacon1.getIdentityKey(), beacon2.getIdentityKey());
+        assertEquals("Equal beacons should have equal hash codes", beacon1.hashCode(), beacon2.hashCode());
+    }
+
+    @Test
+    public void testIdentityKeyIncludesMacWhenHardwareEqualityEnforced() {
+        Beacon beacon1 = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3")
+                .setBluetoothAddress("1:2:3:4:5:6").build();
+        Beacon beacon2 = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3")
+                .setBluetoothAddress("1:2:3:4:5:7").build();
+        assertEquals("Identity keys should ignore macs by default", beacon1.getIdentityKey(), beacon2.getIdentityKey());
+        Beacon.setHardwareEqualityEnforced(true);
+        assertFalse("Identity keys should differ by mac when hardware equality is enforced",
+                beacon1.getIdentityKey().equals(beacon2.getIdentityKey()));
+    }
+
     // utilty methods for testing serialization
 
     private byte[] convertToBytes(Object object) throws IOException {
@@ -0,0 +1,132 @@
+package org.altbeacon.beacon;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class NotifierExecutorsTest {
+
+    /**
+     * Holds tasks until the test runs them, in any order, like a thread pool might
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+    }
+
+    private static Runnable record(final List<String> calls, final String call) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                calls.add(call);
+            }
+        };
+    }
+
+    @Test
+    public void callsNotifiersWithoutExecutorOnSubmittingThreadTest() {
+        NotifierExecutors executors = new NotifierExecutors();
+        List<String> calls = new ArrayList<>();
+        executors.execute(new Object(), new Region("region", null, null, null), record(calls, "called"));
+        assertEquals("Callback should run immediately", "[called]", calls.toString());
+    }
+
+    @Test
+    public void preservesOrderPerRegionTest() {
+        NotifierExecutors executors = new NotifierExecutors();
+        ManualExecutor executor = new ManualExecutor();
+        Object notifier = new Object();
+        executors.setExecutor(notifier, executor);
+        Region region1 = new Region("region1", null, null, null);
+        Region region2 = new Region("region2", null, null, null);
+        List<String> calls = new ArrayList<>();
+        executors.execute(notifier, region1, record(calls, "region1 cycle1"));
+        executors.execute(notifier, region1, record(calls, "region1 cycle2"));
+        executors.execute(notifier, region2, record(calls, "region2 cycle1"));
+        assertEquals("Each region should be scheduled once", 2, executor.runnables.size());
+
+        // Run the second region's task first, as a pool thread might
+        executor.runnables.remove(1).run();
+        executor.runnables.remove(0).run();
+        assertEquals("Calls for a region should run in order", "[region2 cycle1, region1 cycle1, region1 cycle2]", calls.toString());
+
+        executors.execute(notifier, region1, record(calls, "region1 cycle3"));
+        assertEquals("Idle region should be scheduled again", 1, executor.runnables.size());
+        executor.runnables.remove(0).run();
+        assertEquals("Later call should run", "region1 cycle3", calls.get(3));
+    }
+
+    @Test
+    public void usesDefaultExecutorForNotifiersWithoutOneTest() {
+        NotifierExecutors executors = new NotifierExecutors();
+        ManualExecutor executor = new ManualExecutor();
+        executors.setDefaultExecutor(executor);
+        List<String> calls = new ArrayList<>();
+        executors.execute(new Object(), new Region("region", null, null, null), record(calls, "called"));
+        assertEquals("Callback should wait for the default executor", 0, calls.size());
+        executor.runnables.remove(0).run();
+        assertEquals("Callback should run on the default executor", "[called]", calls.toString());
+    }
+
+    @Test
+    public void callsNotifierOnSubmittingThreadWhenExecutorRejectsTest() {
+        NotifierExecutors executors = new NotifierExecutors();
+        Object notifier = new Object();
+        executors.setExecutor(notifier, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                throw new RejectedExecutionException();
+            }
+        });
+        Region region = new Region("region", null, null, null);
+        List<String> calls = new ArrayList<>();
+        executors.execute(notifier, region, record(calls, "cycle1"));
+        executors.execute(notifier, region, record(calls, "cycle2"));
+        assertEquals("Rejected callbacks should still be called, in order", "[cycle1, cycle2]", calls.toString());
+    }
+
+    @Test
+    public void callsNotifierAfterQueuedCallbacksWhenExecutorRemovedTest() {
+        NotifierExecutors executors = new NotifierExecutors();
+        ManualExecutor executor = new ManualExecutor();
+        Object notifier = new Object();
+        executors.setExecutor(notifier, executor);
+        Region region = new Region("region", null, null, null);
+        List<String> calls = new ArrayList<>();
+        executors.execute(notifier, region, record(calls, "cycle1"));
+        executors.setExecutor(notifier, null);
+        executors.execute(notifier, region, record(calls, "cycle2"));
+        assertEquals("Callback should wait behind the queued one", 0, calls.size());
+        executor.runnables.remove(0).run();
+        assertEquals("Callbacks should run in order", "[cycle1, cycle2]", calls.toString());
+
+        executors.execute(notifier, region, record(calls, "cycle3"));
+        assertEquals("With nothing queued the callback should run immediately", "cycle3", calls.get(2));
+    }
+
+    @Test
+    public void tellsEqualNotifiersApartTest() {
+        NotifierExecutors executors = new NotifierExecutors();
+        ManualExecutor executor = new ManualExecutor();
+        executors.setExecutor(new Region("notifier", null, null, null), executor);
+        List<String> calls = new ArrayList<>();
+        executors.execute(new Region("notifier", null, null, null), new Region("region", null, null, null),
+                record(calls, "called"));
+        assertEquals("An equal but distinct notifier should not share the executor", "[called]", calls.toString());
+        assertEquals(0, executor.runnables.size());
+    }
+}
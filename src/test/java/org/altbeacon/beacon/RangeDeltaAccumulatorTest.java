@@ -0,0 +1,50 @@
+package org.altbeacon.beacon;
+
+import org.altbeacon.beacon.service.RangingData;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RangeDeltaAccumulatorTest {
+    private final Region mRegion = new Region("all", null, null, null);
+
+    private Beacon getBeacon(String id2, int rssi) {
+        return new Beacon.Builder().setId1("1").setId2(id2).setRssi(rssi).build();
+    }
+
+    @Test
+    public void classifiesChangesAgainstKnownBeaconsTest() {
+        RangeDeltaAccumulator accumulator = new RangeDeltaAccumulator();
+        RangeDeltaAccumulator.Delta delta = accumulator.apply(new RangingData(
+                Arrays.asList(getBeacon("1", -60), getBeacon("2", -70)), Collections.<Beacon>emptyList(), true, mRegion));
+        assertEquals("Both beacons should have appeared", 2, delta.appearedBeacons.size());
+        assertEquals("Both beacons should be visible", 2, delta.visibleBeacons.size());
+
+        delta = accumulator.apply(new RangingData(
+                Arrays.asList(getBeacon("1", -70)), Arrays.asList(getBeacon("2", -70)), false, mRegion));
+        assertEquals("No beacons should have appeared", 0, delta.appearedBeacons.size());
+        assertEquals("Beacon 1 should have changed", -70, delta.changedBeacons.get(0).getRssi());
+        assertEquals("Beacon 2 should have disappeared", "2", delta.disappearedBeacons.get(0).getId2().toString());
+        assertEquals("Only beacon 1 should be visible", 1, delta.visibleBeacons.size());
+    }
+
+    @Test
+    public void resetForgetsBeaconsNotReportedAgainTest() {
+        RangeDeltaAccumulator accumulator = new RangeDeltaAccumulator();
+        accumulator.apply(new RangingData(
+                Arrays.asList(getBeacon("1", -60), getBeacon("2", -70)), Collections.<Beacon>emptyList(), true, mRegion));
+        RangeDeltaAccumulator.Delta delta = accumulator.apply(new RangingData(
+                Arrays.asList(getBeacon("1", -60), getBeacon("3", -70)), Collections.<Beacon>emptyList(), true, mRegion));
+        assertEquals("Beacon 1 should have changed", 1, delta.changedBeacons.size());
+        assertEquals("Beacon 3 should have appeared", "3", delta.appearedBeacons.get(0).getId2().toString());
+        assertEquals("Beacon 2 should have disappeared", "2", delta.disappearedBeacons.get(0).getId2().toString());
+    }
+}
@@ -0,0 +1,42 @@
+package org.altbeacon.beacon.distance;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(sdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CurveFittedDistanceCalculatorTest {
+    private static final double COEFFICIENT1 = 0.42093;
+    private static final double COEFFICIENT2 = 6.9476;
+    private static final double COEFFICIENT3 = 0.54992;
+
+    @Test
+    public void lookupTableStaysWithinDocumentedErrorTest() {
+        CurveFittedDistanceCalculator exact = new CurveFittedDistanceCalculator(COEFFICIENT1, COEFFICIENT2, COEFFICIENT3);
+        CurveFittedDistanceCalculator table = exact.withLookupTable();
+        assertTrue("Lookup table should be enabled", table.isLookupTableEnabled());
+        for (int txPower = -100; txPower <= -30; txPower++) {
+            for (double rssi = -110.0; rssi <= -20.0; rssi += 0.037) {
+                double exactDistance = exact.calculateDistance(txPower, rssi);
+                double relativeErrorBound = (rssi > txPower ? 10 : COEFFICIENT2) * 0.05 / -rssi;
+                assertEquals("Distance for txPower " + txPower + " and rssi " + rssi + " should be within the bound",
+                        exactDistance, table.calculateDistance(txPower, rssi), exactDistance * relativeErrorBound * 1.01);
+            }
+        }
+    }
+
+    @Test
+    public void lookupTableMatchesExactValuesOnStepsAndOutsideTableTest() {
+        CurveFittedDistanceCalculator exact = new CurveFittedDistanceCalculator(COEFFICIENT1, COEFFICIENT2, COEFFICIENT3);
+        CurveFittedDistanceCalculator table = new CurveFittedDistanceCalculator(COEFFICIENT1, COEFFICIENT2, COEFFICIENT3, true);
+        assertEquals("Distance should be exact on a 0.1 dB step", exact.calculateDistance(-59, -75.3), table.calculateDistance(-59, -75.3), 1e-9);
+        assertEquals("Distance should be exact for an rssi outside the table", exact.calculateDistance(-59, -130.0), table.calculateDistance(-59, -130.0), 0.0);
+        assertEquals("Distance should be exact for a txPower outside the table", exact.calculateDistance(3, -75.3), table.calculateDistance(3, -75.3), 0.0);
+        assertEquals("Distance should be unknown for an rssi of 0", -1.0, table.calculateDistance(-59, 0), 0.0);
+    }
+}
@@ -8,7 +8,11 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 
+import java.io.File;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 
 @Config(sdk = 18)
@@ -64,6 +68,28 @@ public class ModelSpecificDistanceCalculatorTest {
 		assertEquals("Distance should be as predicted by coefficients at 3 meters", 2.661125466, distance, 0.1);
 	}
 
+	@Test
+	public void testReusesResolvedModel() {
+		org.robolectric.shadows.ShadowLog.stream = System.err;
+		final Context applicationContext = ShadowApplication.getInstance().getApplicationContext();
+
+		final AndroidModel model = new AndroidModel("5.0.2", "LXG22.67-7.1", "Moto X Pro", "XT1115");
+		ModelSpecificDistanceCalculator first = new ModelSpecificDistanceCalculator(applicationContext, null, model);
+		assertTrue("Resolved model should be saved", new File(applicationContext.getFilesDir(), "model-distance-resolved.dat").exists());
+		ModelSpecificDistanceCalculator second = new ModelSpecificDistanceCalculator(applicationContext, null, model);
+		assertNull("Model map should not be loaded again", second.mModelMap);
+		assertEquals("should be Moto X Pro", "Moto X Pro", second.getModel().getModel());
+		assertEquals("Distance should be the same as with the model map", first.calculateDistance(-49, -58), second.calculateDistance(-49, -58), 0.0);
+	}
+
+	@Test
+	public void testCalculatesDistanceWhileResolvingInBackground() {
+		org.robolectric.shadows.ShadowLog.stream = System.err;
+
+		DistanceCalculator distanceCalculator = ModelSpecificDistanceCalculator.createInBackground(null, null);
+		assertEquals("Distance should be 1.0 for same power and rssi", 1.0, distanceCalculator.calculateDistance(-59, -59), 0.1);
+	}
+
 	@Test
 	public void testConcurrentModificationException() {
 		org.robolectric.shadows.ShadowLog.stream = System.err;
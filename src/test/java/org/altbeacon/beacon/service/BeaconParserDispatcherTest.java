@@ -0,0 +1,106 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.altbeacon.beacon.AltBeaconParser;
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconParser;
+import org.altbeacon.bluetooth.PduCursor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class BeaconParserDispatcherTest {
+    private static final String ALTBEACON_PACKET = "02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c509000000";
+    private static final String IBEACON_PACKET = "02011a1aff4c000215e2c56db5dffb48d2b060d0f5a71096e000010004c5";
+    private static final String EDDYSTONE_TLM_PACKET = "0201060303aafe1516aafe2001021203130414243405152535";
+
+    public static byte[] hexStringToByteArray(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
+
+    private List<BeaconParser> getParsers() {
+        List<BeaconParser> parsers = new ArrayList<>();
+        parsers.add(new AltBeaconParser());
+        parsers.add(new BeaconParser("ibeacon").setBeaconLayout("m:2-3=0215,i:4-19,i:20-21,i:22-23,p:24-24"));
+        BeaconParser eddystoneUidParser = new BeaconParser("eddystone_uid").setBeaconLayout(BeaconParser.EDDYSTONE_UID_LAYOUT);
+        eddystoneUidParser.addExtraDataParser(new BeaconParser("eddystone_tlm").setBeaconLayout(BeaconParser.EDDYSTONE_TLM_LAYOUT));
+        parsers.add(eddystoneUidParser);
+        parsers.add(new BeaconParser("eddystone_url").setBeaconLayout(BeaconParser.EDDYSTONE_URL_LAYOUT));
+        return parsers;
+    }
+
+    @Test
+    public void testDispatchesToMatchingParser() {
+        BeaconParserDispatcher dispatcher = new BeaconParserDispatcher(getParsers());
+        Beacon altBeacon = dispatcher.fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null);
+        Beacon iBeacon = dispatcher.fromScanData(hexStringToByteArray(IBEACON_PACKET), -55, null);
+        assertEquals("AltBeacon packet should be parsed by the AltBeacon parser", "altbeacon", altBeacon.getParserIdentifier());
+        assertEquals("iBeacon packet should be parsed by the iBeacon parser", "ibeacon", iBeacon.getParserIdentifier());
+    }
+
+    @Test
+    public void testDispatchesToExtraDataParser() {
+        BeaconParserDispatcher dispatcher = new BeaconParserDispatcher(getParsers());
+        Beacon beacon = dispatcher.fromScanData(hexStringToByteArray(EDDYSTONE_TLM_PACKET), -55, null);
+        assertNotNull("Eddystone-TLM packet should be parsed", beacon);
+        assertEquals("Eddystone-TLM packet should be parsed by the extra data parser", "eddystone_tlm", beacon.getParserIdentifier());
+        assertTrue("Eddystone-TLM beacon should be extra beacon data", beacon.isExtraBeaconData());
+    }
+
+    @Test
+    public void testReturnsNullForUnknownPacket() {
+        BeaconParserDispatcher dispatcher = new BeaconParserDispatcher(getParsers());
+        Beacon beacon = dispatcher.fromScanData(hexStringToByteArray("02011a1bff1801ffff2f234454cf6d4a0fadf2f4911ba9ffa600010002c509000000"), -55, null);
+        assertNull("Packet matching no parser should not be parsed", beacon);
+    }
+
+    @Test
+    public void testTriesParsersThatOverrideFromScanData() {
+        List<BeaconParser> parsers = getParsers();
+        parsers.add(new BeaconParser() {
+            @Override
+            public Beacon fromScanData(byte[] scanData, int rssi, BluetoothDevice device) {
+                return new Beacon.Builder().setId1("1").setParserIdentifier("custom").build();
+            }
+        });
+        BeaconParserDispatcher dispatcher = new BeaconParserDispatcher(parsers);
+        Beacon beacon = dispatcher.fromScanData(hexStringToByteArray("0201060303aafe"), -55, null);
+        assertNotNull("Custom parser should be tried for a packet no layout matches", beacon);
+        assertEquals("Custom parser should parse the packet", "custom", beacon.getParserIdentifier());
+    }
+
+    @Test
+    public void testTriesParsersThatOverrideOnlyProtectedFromScanData() {
+        List<BeaconParser> parsers = getParsers();
+        BeaconParser customParser = new BeaconParser("custom") {
+            @Override
+            protected Beacon fromScanData(PduCursor advertisement, int rssi, BluetoothDevice device, Beacon beacon) {
+                return new Beacon.Builder().setId1("1").setParserIdentifier("custom").build();
+            }
+        };
+        customParser.setBeaconLayout("m:2-3=abcd,i:4-19,i:20-21,i:22-23,p:24-24");
+        parsers.add(customParser);
+        BeaconParserDispatcher dispatcher = new BeaconParserDispatcher(parsers);
+        Beacon beacon = dispatcher.fromScanData(hexStringToByteArray("0201060303aafe"), -55, null);
+        assertNotNull("Custom parser should be tried for a packet its layout does not match", beacon);
+        assertEquals("Custom parser should parse the packet", "custom", beacon.getParserIdentifier());
+    }
+}
@@ -1,6 +1,7 @@
 package org.altbeacon.beacon.service;
 
 import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
 import android.os.AsyncTask;
 import android.os.Build;
 
@@ -8,6 +9,7 @@ import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
 import org.altbeacon.beacon.service.scanner.CycledLeScanCallback;
+import org.altbeacon.beacon.service.scanner.NonBeaconLeScanCallback;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -16,9 +18,13 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.util.ServiceController;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by dyoung on 7/1/15.
@@ -65,4 +71,44 @@ public class BeaconServiceTest {
         // is thrown.  Maybe we don't care about this exception, so we could remove this.
         Thread.sleep(100);
     }
+
+    @Test
+    public void batchLargerThanScanBufferIsProcessedBeforeCompletionTest() throws Exception {
+        final ServiceController<BeaconService> beaconServiceServiceController =
+                Robolectric.buildService(BeaconService.class);
+        beaconServiceServiceController.attach();
+        BeaconService beaconService = beaconServiceServiceController.get();
+        beaconService.onCreate();
+        CycledLeScanCallback callback = beaconService.getCycledLeScanCallback();
+        BeaconManager beaconManager = BeaconManager.getInstanceForApplication(beaconService);
+        final AtomicInteger processedCount = new AtomicInteger();
+        beaconManager.setNonBeaconLeScanCallback(new NonBeaconLeScanCallback() {
+            @Override
+            public void onNonBeaconLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                processedCount.incrementAndGet();
+            }
+        });
+        try {
+            int batchSize = BeaconManager.getScanBufferCapacity() * 2;
+            byte[][] scanRecords = new byte[batchSize][];
+            for (int i = 0; i < batchSize; i++) {
+                scanRecords[i] = new byte[1];
+            }
+            final CountDownLatch processed = new CountDownLatch(1);
+            final AtomicInteger processedCountAtCompletion = new AtomicInteger();
+            callback.onLeScanBatch(new BluetoothDevice[batchSize], new int[batchSize], scanRecords, new Runnable() {
+                @Override
+                public void run() {
+                    processedCountAtCompletion.set(processedCount.get());
+                    processed.countDown();
+                }
+            });
+            assertTrue("Completion should be reported", processed.await(5, TimeUnit.SECONDS));
+            assertEquals("Every scan result should be processed before completion is reported",
+                    batchSize, processedCountAtCompletion.get());
+        }
+        finally {
+            beaconManager.setNonBeaconLeScanCallback(null);
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package org.altbeacon.beacon.service;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconBatchCodec;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -8,6 +9,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import dalvik.annotation.TestTargetClass;
@@ -15,6 +17,7 @@ import dalvik.annotation.TestTargetClass;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 18)
@@ -170,4 +173,155 @@ public class ExtraDataBeaconTrackerTest {
         assertEquals("rssi should be updated", beaconUpdate.getRssi(), trackedBeacon.getRssi());
         assertEquals("data fields should be updated", beaconUpdate.getDataFields(), trackedBeacon.getExtraDataFields());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void splitTrackerKeepsExtraDataInOwningShard() {
+        Beacon beacon = getGattBeacon();
+        Beacon extraDataBeacon = getGattBeaconExtraData();
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(beacon);
+        tracker.track(extraDataBeacon);
+        int shardIndex = ExtraDataBeaconTracker.shardIndexOf(beacon.getBluetoothAddress(), 4);
+        ExtraDataBeaconTracker[] shards = tracker.split(4);
+        Beacon trackedBeacon = shards[shardIndex].track(getGattBeacon());
+        assertEquals("extra data should be kept by the owning shard", extraDataBeacon.getDataFields(), trackedBeacon.getExtraDataFields());
+        for (int i = 0; i < shards.length; i++) {
+            if (i != shardIndex) {
+                assertEquals("other shards should not hold extra data for the beacon", 0, shards[i].track(getGattBeacon()).getExtraDataFields().size());
+            }
+        }
+    }
+
+    @Test
+    public void mergedShardUpdatesTracker() {
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(getGattBeacon());
+        int shardIndex = ExtraDataBeaconTracker.shardIndexOf(getGattBeacon().getBluetoothAddress(), 2);
+        ExtraDataBeaconTracker[] shards = tracker.split(2);
+        Beacon extraDataBeacon2 = getGattBeaconExtraData2();
+        shards[shardIndex].track(extraDataBeacon2);
+        tracker.mergeChanges(Arrays.asList(shards[0].takeChanges(), shards[1].takeChanges()));
+        Beacon trackedBeacon = tracker.track(getGattBeacon());
+        assertEquals("extra data tracked by the shard should be merged", extraDataBeacon2.getDataFields(), trackedBeacon.getExtraDataFields());
+    }
+
+    @Test
+    public void onlyChangedDevicesAreMerged() {
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:06"), 0);
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:07"), 1);
+        ExtraDataBeaconTracker[] shards = tracker.split(1);
+        shards[0].track(getGattBeaconExtraDataWithAddress("01:02:03:04:05:07"), 2);
+        ExtraDataBeaconTracker.Changes changes = shards[0].takeChanges();
+        assertEquals("only the device seen by the shard should be changed", 1, changes.size());
+        tracker.mergeChanges(Arrays.asList(changes), 3);
+        assertEquals("unchanged devices should be kept", 2, tracker.size());
+        assertEquals("changes should only be taken once", 0, shards[0].takeChanges().size());
+        Beacon trackedBeacon = tracker.track(getGattBeaconWithAddress("01:02:03:04:05:07"), 4);
+        assertEquals("extra data tracked by the shard should be merged", getDataFields(), trackedBeacon.getExtraDataFields());
+    }
+
+    @Test
+    public void leastRecentlySeenDeviceIsEvictedAtCapacity() {
+        ExtraDataBeaconTracker.setLimits(2, ExtraDataBeaconTracker.DEFAULT_TIME_TO_LIVE_MILLIS);
+        try {
+            ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+            tracker.track(getGattBeaconWithAddress("01:02:03:04:05:06"), 0);
+            tracker.track(getGattBeaconWithAddress("01:02:03:04:05:07"), 1);
+            tracker.track(getGattBeaconWithAddress("01:02:03:04:05:06"), 2);
+            tracker.track(getGattBeaconWithAddress("01:02:03:04:05:08"), 3);
+            assertEquals("tracker should be bounded", 2, tracker.size());
+            assertNull("extra data for the evicted device is not merged",
+                    tracker.track(getGattBeaconExtraDataWithAddress("01:02:03:04:05:07"), 4));
+            tracker.track(getGattBeaconExtraDataWithAddress("01:02:03:04:05:06"), 5);
+            Beacon trackedBeacon = tracker.track(getGattBeaconWithAddress("01:02:03:04:05:06"), 6);
+            assertEquals("recently seen device should be kept", getDataFields(), trackedBeacon.getExtraDataFields());
+        }
+        finally {
+            ExtraDataBeaconTracker.setLimits(ExtraDataBeaconTracker.DEFAULT_MAX_TRACKED_DEVICES,
+                    ExtraDataBeaconTracker.DEFAULT_TIME_TO_LIVE_MILLIS);
+        }
+    }
+
+    @Test
+    public void mergedDevicesAreEvictedInLastSeenOrder() {
+        String firstAddress = "01:02:03:04:05:06";
+        String secondAddress = "01:02:03:04:05:07";
+        for (int i = 8; ExtraDataBeaconTracker.shardIndexOf(firstAddress, 2) ==
+                ExtraDataBeaconTracker.shardIndexOf(secondAddress, 2); i++) {
+            secondAddress = String.format("01:02:03:04:05:%02d", i);
+        }
+        ExtraDataBeaconTracker.setLimits(2, ExtraDataBeaconTracker.DEFAULT_TIME_TO_LIVE_MILLIS);
+        try {
+            ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+            ExtraDataBeaconTracker[] shards = tracker.split(2);
+            ExtraDataBeaconTracker firstShard = shards[ExtraDataBeaconTracker.shardIndexOf(firstAddress, 2)];
+            ExtraDataBeaconTracker secondShard = shards[ExtraDataBeaconTracker.shardIndexOf(secondAddress, 2)];
+            firstShard.track(getGattBeaconWithAddress(firstAddress), 10);
+            secondShard.track(getGattBeaconWithAddress(secondAddress), 5);
+            // The shard holding the most recently seen device is merged first
+            tracker.mergeChanges(Arrays.asList(firstShard.takeChanges(), secondShard.takeChanges()), 11);
+            tracker.track(getGattBeaconWithAddress("01:02:03:04:05:99"), 12);
+            assertNull("the least recently seen device should be evicted",
+                    tracker.track(getGattBeaconExtraDataWithAddress(secondAddress), 13));
+            tracker.track(getGattBeaconExtraDataWithAddress(firstAddress), 14);
+            Beacon trackedBeacon = tracker.track(getGattBeaconWithAddress(firstAddress), 15);
+            assertEquals("the most recently seen device should be kept", getDataFields(), trackedBeacon.getExtraDataFields());
+        }
+        finally {
+            ExtraDataBeaconTracker.setLimits(ExtraDataBeaconTracker.DEFAULT_MAX_TRACKED_DEVICES,
+                    ExtraDataBeaconTracker.DEFAULT_TIME_TO_LIVE_MILLIS);
+        }
+    }
+
+    @Test
+    public void expiredDeviceIsEvicted() {
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        long timeToLive = ExtraDataBeaconTracker.DEFAULT_TIME_TO_LIVE_MILLIS;
+        tracker.track(getGattBeacon(), 0);
+        tracker.track(getGattBeaconExtraData(), 1);
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:07"), timeToLive);
+        assertEquals("device seen within the time to live is kept", 2, tracker.size());
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:07"), timeToLive + 2);
+        assertEquals("expired device should be evicted", 1, tracker.size());
+        Beacon trackedBeacon = tracker.track(getGattBeacon(), timeToLive + 3);
+        assertEquals("extra data of the expired device is gone", 0, trackedBeacon.getExtraDataFields().size());
+    }
+
+    @Test
+    public void bluetoothAddressIsPackedIntoKey() {
+        assertEquals(0x0102030405a6L, ExtraDataBeaconTracker.parseBluetoothAddress("01:02:03:04:05:A6"));
+        assertEquals(0x0102030405a6L, ExtraDataBeaconTracker.parseBluetoothAddress("01:02:03:04:05:a6"));
+        assertEquals("simulated addresses fall back to the hash code", "not an address".hashCode() & 0xffffffffL,
+                ExtraDataBeaconTracker.parseBluetoothAddress("not an address"));
+    }
+
+    @Test
+    public void trackerIsRestoredFromWrittenBytes() throws Exception {
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(getGattBeacon(), 0);
+        tracker.track(getGattBeaconExtraData(), 1);
+        assertTrue("tracker should be encodable", tracker.canEncode());
+        BeaconBatchCodec.Writer writer = new BeaconBatchCodec.Writer();
+        tracker.writeTo(writer);
+        ExtraDataBeaconTracker restored = ExtraDataBeaconTracker.readFrom(new BeaconBatchCodec.Reader(writer.toByteArray()));
+        assertEquals("tracked devices should be restored", 1, restored.size());
+        Beacon trackedBeacon = restored.track(getGattBeacon(), 2);
+        assertEquals("extra data should be restored", getDataFields(), trackedBeacon.getExtraDataFields());
+    }
+
+    Beacon getGattBeaconWithAddress(String bluetoothAddress) {
+        return new Beacon.Builder().setId1("1")
+                .setBluetoothAddress(bluetoothAddress)
+                .setServiceUuid(1234)
+                .build();
+    }
+
+    Beacon getGattBeaconExtraDataWithAddress(String bluetoothAddress) {
+        return new Beacon.Builder()
+                .setBluetoothAddress(bluetoothAddress)
+                .setServiceUuid(1234)
+                .setDataFields(getDataFields())
+                .build();
+    }
+}
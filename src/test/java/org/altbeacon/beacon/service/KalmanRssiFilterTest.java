@@ -0,0 +1,47 @@
+package org.altbeacon.beacon.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class KalmanRssiFilterTest {
+
+    @Test
+    public void firstMeasurementIsEstimateTest() {
+        KalmanRssiFilter filter = new KalmanRssiFilter();
+        assertTrue("No measurements should be available initially", filter.noMeasurementsAvailable());
+        filter.addMeasurement(-50);
+        assertFalse("Measurement should be available", filter.noMeasurementsAvailable());
+        assertEquals("First measurement should be the estimate", -50.0, filter.calculateRssi(), 0.0);
+    }
+
+    @Test
+    public void smoothsMeasurementsTest() {
+        KalmanRssiFilter filter = new KalmanRssiFilter(0.5, 16.0);
+        for (int i = 0; i < 50; i++) {
+            filter.addMeasurement(i % 2 == 0 ? -60 : -70, i * 100l);
+        }
+        assertEquals("Estimate should settle near the mean", -65.0, filter.calculateRssi(), 1.0);
+    }
+
+    @Test
+    public void followsChangesFasterAfterGapTest() {
+        KalmanRssiFilter steady = new KalmanRssiFilter(0.5, 16.0);
+        KalmanRssiFilter gap = new KalmanRssiFilter(0.5, 16.0);
+        for (int i = 0; i < 50; i++) {
+            steady.addMeasurement(-60, i * 100l);
+            gap.addMeasurement(-60, i * 100l);
+        }
+        steady.addMeasurement(-80, 5000l);
+        gap.addMeasurement(-80, 60000l);
+        assertTrue("Measurement after a gap should move the estimate further",
+                gap.calculateRssi() < steady.calculateRssi() - 5);
+    }
+}
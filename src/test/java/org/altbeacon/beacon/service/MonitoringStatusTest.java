@@ -7,6 +7,7 @@ import android.os.Build;
 import android.util.Log;
 
 import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Identifier;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
@@ -20,10 +21,14 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.util.ServiceController;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by dyoung on 7/1/16.
@@ -56,16 +61,40 @@ public class MonitoringStatusTest {
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Test
-    public void clearsStatusOfOver50RegionsTest() throws Exception {
+    public void savesStatusOfThousandsOfRegionsTest() throws Exception {
         Context context = ShadowApplication.getInstance().getApplicationContext();
         MonitoringStatus monitoringStatus = new MonitoringStatus(context);
-        for (int i = 0; i < 51; i++) {
+        for (int i = 0; i < 5000; i++) {
             Region region = new Region(""+i, null, null, null);
-            monitoringStatus.addRegion(region, null);
+            monitoringStatus.addLocalRegion(region);
         }
         monitoringStatus.saveMonitoringStatusIfOn();
         MonitoringStatus monitoringStatus2 = new MonitoringStatus(context);
-        assertEquals("restored regions should be none", 0, monitoringStatus2.regions().size());
+        assertEquals("restored regions should be same number as saved", 5000, monitoringStatus2.regions().size());
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void restoresRegionDefinitionsAndStateTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        MonitoringStatus monitoringStatus = new MonitoringStatus(context);
+        Region region = new Region("door", Arrays.asList(Identifier.parse("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6"),
+                null, Identifier.parse("7")), "01:02:03:04:05:06");
+        Region outsideRegion = new Region("outside", Identifier.parse("1"), null, null);
+        monitoringStatus.addLocalRegion(region).markInside();
+        monitoringStatus.addLocalRegion(outsideRegion);
+        monitoringStatus.saveMonitoringStatusIfOn();
+        MonitoringStatus monitoringStatus2 = new MonitoringStatus(context);
+        Region restoredRegion = null;
+        for (Region candidate : monitoringStatus2.regions()) {
+            if (candidate.equals(region)) {
+                restoredRegion = candidate;
+            }
+        }
+        assertTrue("restored region should have same identifiers", region.hasSameIdentifiers(restoredRegion));
+        assertEquals("restored region should have same bluetooth address", "01:02:03:04:05:06", restoredRegion.getBluetoothAddress());
+        assertTrue("restored region should be inside", monitoringStatus2.stateOf(region).getInside());
+        assertFalse("restored region should be outside", monitoringStatus2.stateOf(outsideRegion).getInside());
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -84,6 +113,22 @@ public class MonitoringStatusTest {
         assertEquals("restored regions should be none", 0, monitoringStatus2.regions().size());
     }
 
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void coalescesMonitoringStatusTimeUpdatesTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        MonitoringStatus monitoringStatus = new MonitoringStatus(context);
+        monitoringStatus.addRegion(new Region("0", null, null, null), null);
+        monitoringStatus.flushMonitoringStatus();
+        File file = context.getFileStreamPath(MonitoringStatus.STATUS_PRESERVATION_FILE_NAME);
+        long savedTime = file.lastModified();
+        long activityTime = (savedTime / 1000 + 10) * 1000;
+        monitoringStatus.updateMonitoringStatusTime(activityTime);
+        assertEquals("file should not be touched for recent activity", savedTime, file.lastModified());
+        monitoringStatus.flushMonitoringStatus();
+        assertEquals("file should have latest activity time after flush", activityTime, file.lastModified());
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Test
     public void allowsAccessToRegionsAfterRestore() throws Exception {
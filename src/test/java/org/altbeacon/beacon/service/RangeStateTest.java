@@ -0,0 +1,192 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RangeStateTest {
+    private final Region mRegion = new Region("near", Identifier.parse("1"), null, null);
+
+    private static class CountingFactory implements RssiFilter.Factory {
+        final List<RssiFilter> created = new ArrayList<>();
+        final List<RssiFilter> recycled = new ArrayList<>();
+
+        @NonNull
+        @Override
+        public RssiFilter createFilter() {
+            RssiFilter filter = new ArmaRssiFilter(0.5);
+            created.add(filter);
+            return filter;
+        }
+
+        @Override
+        public void recycleFilter(@NonNull RssiFilter filter) {
+            recycled.add(filter);
+        }
+    }
+
+    @After
+    public void after() {
+        BeaconManager.setRssiFilterFactory(mRegion, null);
+        BeaconManager.setRssiFilterFactory(null);
+        RangeState.setDeltaThresholds(RangeState.DEFAULT_DELTA_RSSI_THRESHOLD, RangeState.DEFAULT_DELTA_DISTANCE_THRESHOLD);
+    }
+
+    private Beacon getBeacon(String id2, int rssi) {
+        return new Beacon.Builder().setId1("1").setId2(id2).setRssi(rssi).build();
+    }
+
+    @Test
+    public void usesRegionSpecificRssiFilterFactoryTest() {
+        CountingFactory regionFactory = new CountingFactory();
+        CountingFactory defaultFactory = new CountingFactory();
+        BeaconManager.setRssiFilterFactory(defaultFactory);
+        BeaconManager.setRssiFilterFactory(mRegion, regionFactory);
+        Beacon beacon = new Beacon.Builder().setId1("1").setId2("2").setRssi(-60).build();
+
+        new RangeState(new Callback(null), mRegion).addBeacon(beacon);
+        assertEquals("Region factory should create the filter", 1, regionFactory.created.size());
+        assertEquals("Default factory should not be used", 0, defaultFactory.created.size());
+
+        new RangeState(new Callback(null), new Region("other", null, null, null)).addBeacon(beacon);
+        assertEquals("Default factory should be used for other regions", 1, defaultFactory.created.size());
+    }
+
+    @Test
+    public void recyclesFiltersOfDumpedBeaconsTest() {
+        CountingFactory factory = new CountingFactory() {
+            @NonNull
+            @Override
+            public RssiFilter createFilter() {
+                RssiFilter filter = new RunningAverageRssiFilter(0l);
+                created.add(filter);
+                return filter;
+            }
+        };
+        BeaconManager.setRssiFilterFactory(mRegion, factory);
+        RangeState rangeState = new RangeState(new Callback(null), mRegion);
+        rangeState.addBeacon(new Beacon.Builder().setId1("1").setId2("2").setRssi(-60).build());
+        // Measurements expire immediately, so the beacon is dumped
+        rangeState.finalizeBeacons();
+        assertEquals("Filter of dumped beacon should be recycled", factory.created, factory.recycled);
+    }
+
+    @Test
+    public void reportsOnlyBeaconChangesTest() {
+        // Filter estimates are the last measurement, so rssi changes are predictable
+        BeaconManager.setRssiFilterFactory(mRegion, ArmaRssiFilter.factory(1.0));
+        RangeState.setDeltaThresholds(5.0, Double.MAX_VALUE);
+        RangeState rangeState = new RangeState(new Callback(null), mRegion);
+
+        rangeState.addBeacon(getBeacon("1", -60));
+        rangeState.addBeacon(getBeacon("2", -70));
+        RangingData changes = rangeState.finalizeBeaconChanges(mRegion);
+        assertEquals("Both beacons should be reported as new", 2, changes.getBeacons().size());
+        assertTrue("First report should reset the client", changes.isReset());
+
+        rangeState.addBeacon(getBeacon("1", -62));
+        rangeState.addBeacon(getBeacon("2", -80));
+        changes = rangeState.finalizeBeaconChanges(mRegion);
+        assertEquals("Only the beacon past the threshold should be reported", 1, changes.getBeacons().size());
+        assertEquals("Beacon 2 should be reported", "2", changes.getBeacons().iterator().next().getId2().toString());
+        assertEquals("No beacons should be removed", 0, changes.getRemovedBeacons().size());
+        assertFalse("Later reports should not reset the client", changes.isReset());
+
+        rangeState.addBeacon(getBeacon("1", -61));
+        changes = rangeState.finalizeBeaconChanges(mRegion);
+        assertEquals("No beacons should be updated", 0, changes.getBeacons().size());
+        assertEquals("Beacon 2 should be removed", 1, changes.getRemovedBeacons().size());
+
+        rangeState.addBeacon(getBeacon("1", -61));
+        assertNull("Nothing should be reported without changes", rangeState.finalizeBeaconChanges(mRegion));
+    }
+
+    @Test
+    public void rangesBeaconsAddedFromSeveralThreadsTest() throws InterruptedException {
+        final RangeState rangeState = new RangeState(new Callback(null), mRegion);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        rangeState.addBeacon(getBeacon(String.valueOf(threadIndex * 50 + j), -60));
+                        rangeState.addBeacon(getBeacon(String.valueOf(threadIndex * 50 + j), -62));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("Every beacon should be ranged once", 200, rangeState.finalizeBeacons().size());
+    }
+
+    @Test
+    public void rangesBeaconsAddedByPartitionOwnersConcurrentlyTest() throws InterruptedException {
+        final RangeState rangeState = new RangeState(new Callback(null), mRegion);
+        final RangeState.Partition[] partitions = new RangeState.Partition[4];
+        Thread[] threads = new Thread[partitions.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int threadIndex = i;
+            // Each thread stands in for a scan processing shard that owns its partition
+            partitions[i] = rangeState.partitionFor(new Object());
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        partitions[threadIndex].addBeacon(getBeacon(String.valueOf(threadIndex * 50 + j), -60));
+                        // Seen by every shard, as a beacon changing its address might be
+                        partitions[threadIndex].addBeacon(getBeacon("1000", -60 - threadIndex));
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        // Finalizing while the shards add beacons must not fail or lose beacons
+        for (int i = 0; i < 20; i++) {
+            rangeState.finalizeBeacons();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            for (int j = 0; j < 50; j++) {
+                partitions[i].addBeacon(getBeacon(String.valueOf(i * 50 + j), -60));
+            }
+            partitions[i].addBeacon(getBeacon("1000", -60 - i));
+        }
+        Collection<Beacon> beacons = rangeState.finalizeBeacons();
+        assertEquals("Every beacon should be ranged once", 201, beacons.size());
+        Set<String> ids = new HashSet<>();
+        for (Beacon beacon : beacons) {
+            ids.add(beacon.getId2().toString());
+        }
+        assertEquals("No beacon should be reported twice", 201, ids.size());
+    }
+}
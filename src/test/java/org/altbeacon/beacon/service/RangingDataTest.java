@@ -2,6 +2,7 @@ package org.altbeacon.beacon.service;
 
 import android.content.Context;
 
+import org.altbeacon.beacon.AltBeacon;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.Identifier;
 import org.altbeacon.beacon.Beacon;
@@ -16,10 +17,14 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import android.os.Bundle;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 18)
@@ -53,6 +58,65 @@ public class RangingDataTest {
         assertEquals("region identifier 1 shouild be restored", "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", data2.getRegion().getId1().toString());
     }
 
+    @Test
+    public void testBatchRestoresAllBeaconFields() throws Exception {
+        Region region = new Region("testRegion", Arrays.asList(Identifier.parse("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6"), null, null), "01:02:03:04:05:06");
+        Beacon altBeacon = new AltBeacon.Builder().setId1("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6").setId2("1").setId3("2")
+                .setRssi(-60).setTxPower(-59).setBluetoothAddress("01:02:03:04:05:06").setBeaconTypeCode(0xbeac)
+                .setDataFields(Arrays.asList(7L)).build();
+        Beacon beacon = new Beacon.Builder().setId1("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6").setId2("1").setId3("3")
+                .setRssi(-70).setRunningAverageRssi(-68.5).setTxPower(-59).setBluetoothAddress("01:02:03:04:05:07")
+                .setBluetoothName("door").setManufacturer(0x0118).setServiceUuid(0xfeaa).setParserIdentifier("eddystone")
+                .setExtraDataFields(Arrays.asList(8L, 9L)).setMultiFrameBeacon(true).build();
+        RangingData data = new RangingData(Arrays.asList(altBeacon), Arrays.asList(beacon), true, region);
+        RangingData data2 = RangingData.fromBundle(data.toBundle());
+
+        assertEquals("region should be restored", region, data2.getRegion());
+        assertEquals("region bluetooth address should be restored", "01:02:03:04:05:06", data2.getRegion().getBluetoothAddress());
+        assertNull("region wildcard identifier should be restored", data2.getRegion().getId2());
+        assertTrue("data should be restored as changes", data2.isDelta());
+        assertTrue("reset flag should be restored", data2.isReset());
+        Beacon altBeacon2 = data2.getBeacons().iterator().next();
+        assertTrue("beacon class should be restored", altBeacon2 instanceof AltBeacon);
+        assertEquals("identifiers should be restored", altBeacon.getIdentifiers(), altBeacon2.getIdentifiers());
+        assertEquals("rssi should be restored", -60, altBeacon2.getRssi());
+        assertEquals("tx power should be restored", -59, altBeacon2.getTxPower());
+        assertEquals("beacon type code should be restored", 0xbeac, altBeacon2.getBeaconTypeCode());
+        assertEquals("data fields should be restored", Arrays.asList(7L), altBeacon2.getDataFields());
+        Iterator<Beacon> removed = data2.getRemovedBeacons().iterator();
+        Beacon beacon2 = removed.next();
+        assertEquals("removed beacon should be restored", beacon, beacon2);
+        assertEquals("bluetooth address should be restored", "01:02:03:04:05:07", beacon2.getBluetoothAddress());
+        assertEquals("running average rssi should be restored", -68.5, beacon2.getRunningAverageRssi(), 0.0);
+        assertEquals("bluetooth name should be restored", "door", beacon2.getBluetoothName());
+        assertEquals("manufacturer should be restored", 0x0118, beacon2.getManufacturer());
+        assertEquals("service uuid should be restored", 0xfeaa, beacon2.getServiceUuid());
+        assertEquals("parser identifier should be restored", "eddystone", beacon2.getParserIdentifier());
+        assertEquals("extra data fields should be restored", Arrays.asList(8L, 9L), beacon2.getExtraDataFields());
+        assertTrue("multi frame flag should be restored", beacon2.isMultiFrameBeacon());
+        assertNull("unset bluetooth name should stay null", altBeacon2.getBluetoothName());
+    }
+
+    @Test
+    public void undecodableBatchIsDropped() throws Exception {
+        Bundle bundle = new Bundle();
+        bundle.putByteArray("batch", new byte[] {0x01, 0x02, 0x03});
+        assertNull("ranging data that cannot be decoded should be dropped", RangingData.fromBundle(bundle));
+        Bundle monitoringBundle = new Bundle();
+        monitoringBundle.putByteArray("regionBytes", new byte[] {0x01, 0x02, 0x03});
+        monitoringBundle.putBoolean("inside", true);
+        assertNull("monitoring data that cannot be decoded should be dropped", MonitoringData.fromBundle(monitoringBundle));
+    }
+
+    @Test
+    public void testMonitoringDataSerialization() throws Exception {
+        Region region = new Region("testRegion", Identifier.parse("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6"), Identifier.parse("1"), null);
+        MonitoringData data = MonitoringData.fromBundle(new MonitoringData(true, region).toBundle());
+        assertEquals("region should be restored", region, data.getRegion());
+        assertNull("wildcard identifier should be restored", data.getRegion().getId3());
+        assertTrue("inside flag should be restored", data.isInside());
+    }
+
     @Test
     // On MacBookPro 2.5 GHz Core I7, 10000 serialization/deserialiation cycles of RangingData took 22ms
     public void testSerializationBenchmark() throws Exception {
@@ -0,0 +1,80 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RegionIndexTest {
+    private static final String UUID = "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6";
+
+    private Beacon getBeacon(int major, int minor, String bluetoothAddress) {
+        return new Beacon.Builder().setId1(UUID).setId2(String.valueOf(major)).setId3(String.valueOf(minor))
+                .setBluetoothAddress(bluetoothAddress).build();
+    }
+
+    @Test
+    public void testFindsRegionsByIdentifiersWildcardsAndAddress() {
+        Region all = new Region("all", null, null, null);
+        Region uuid = new Region("uuid", Identifier.parse(UUID), null, null);
+        Region door1 = new Region("door1", Identifier.parse(UUID), Identifier.parse("1"), null);
+        Region door2 = new Region("door2", Identifier.parse(UUID), Identifier.parse("2"), null);
+        Region minor7 = new Region("minor7", null, null, Identifier.parse("7"));
+        Region device = new Region("device", "01:02:03:04:05:06");
+        RegionIndex index = new RegionIndex(Arrays.asList(all, uuid, door1, door2, minor7, device));
+
+        assertEquals("Beacon should match wildcard, uuid, door and minor regions",
+                new HashSet<>(Arrays.asList(all, uuid, door1, minor7)),
+                new HashSet<>(index.matchingRegions(getBeacon(1, 7, "11:22:33:44:55:66"))));
+        assertEquals("Beacon should match the region for its lower case bluetooth address",
+                new HashSet<>(Arrays.asList(all, uuid, door2, device)),
+                new HashSet<>(index.matchingRegions(getBeacon(2, 8, "01:02:03:04:05:06".toLowerCase()))));
+    }
+
+    @Test
+    public void testMatchesSameRegionsAsLinearSearch() {
+        Random random = new Random(1);
+        List<Region> regions = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Identifier id2 = random.nextInt(10) == 0 ? null : Identifier.parse(String.valueOf(random.nextInt(100)));
+            Identifier id3 = random.nextInt(2) == 0 ? null : Identifier.parse(String.valueOf(random.nextInt(10)));
+            regions.add(new Region("region" + i, Identifier.parse(UUID), id2, id3));
+        }
+        RegionIndex index = new RegionIndex(regions);
+        for (int i = 0; i < 500; i++) {
+            Beacon beacon = getBeacon(random.nextInt(100), random.nextInt(10), "01:02:03:04:05:06");
+            List<Region> expected = new ArrayList<>();
+            for (Region region : regions) {
+                if (region.matchesBeacon(beacon)) {
+                    expected.add(region);
+                }
+            }
+            assertEquals("Index should match the same regions as a linear search",
+                    new HashSet<>(expected), new HashSet<>(index.matchingRegions(beacon)));
+        }
+    }
+
+    @Test
+    public void testDetectsChangedRegions() {
+        Region region = new Region("door1", Identifier.parse(UUID), Identifier.parse("1"), null);
+        RegionIndex index = new RegionIndex(Arrays.asList(region));
+        assertTrue("Index should be current for the same region instances", index.isIndexOf(Arrays.asList(region)));
+        Region redefined = new Region("door1", Identifier.parse(UUID), Identifier.parse("2"), null);
+        assertFalse("Index should not be current for a redefined region", index.isIndexOf(Arrays.asList(redefined)));
+    }
+}
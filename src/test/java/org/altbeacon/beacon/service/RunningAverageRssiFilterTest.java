@@ -6,6 +6,9 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 18)
@@ -18,6 +21,45 @@ public class RunningAverageRssiFilterTest {
         filter.addMeasurement(-50);
         assertEquals("First measurement should be -50", String.valueOf(filter.calculateRssi()), "-50.0");
     }
+    @Test
+    public void clipsHighestAndLowestMeasurementsTest() {
+        RunningAverageRssiFilter filter = new RunningAverageRssiFilter();
+        filter.addMeasurement(-100);
+        for (int i = 1; i <= 18; i++) {
+            filter.addMeasurement(-50 - i);
+        }
+        filter.addMeasurement(200);
+        // 20 measurements: the lowest 3 and highest 3 are clipped, leaving -66 through -53
+        assertEquals("Average should exclude clipped measurements", -59.5, filter.calculateRssi(), 0.0);
+    }
+
+    @Test
+    public void clipsMeasurementsWithinHistogramRangeTest() {
+        RunningAverageRssiFilter filter = new RunningAverageRssiFilter();
+        for (int i = 0; i < 4; i++) {
+            filter.addMeasurement(-40);
+            filter.addMeasurement(-80);
+        }
+        for (int i = 0; i < 12; i++) {
+            filter.addMeasurement(-50 - i);
+        }
+        // 20 measurements: three of the four -80 and three of the four -40 measurements are
+        // clipped, leaving -80, -61 through -50 and -40
+        assertEquals("Average should exclude clipped measurements", -786.0 / 14, filter.calculateRssi(), 0.000001);
+    }
+
+    @Test
+    public void factoryReusesRecycledFiltersTest() {
+        RssiFilter.Factory factory = RunningAverageRssiFilter.factory(5000l);
+        RssiFilter filter = factory.createFilter();
+        filter.addMeasurement(-50);
+        factory.recycleFilter(filter);
+        RssiFilter reused = factory.createFilter();
+        assertSame("Recycled filter should be reused", filter, reused);
+        assertTrue("Reused filter should have no measurements", reused.noMeasurementsAvailable());
+        assertNotSame("Pool should be empty", reused, factory.createFilter());
+    }
+
     @Test
     public void rangedBeaconDoesNotOverrideSampleExpirationMillisecondsText() {
         RangedBeacon.setSampleExpirationMilliseconds(20000);
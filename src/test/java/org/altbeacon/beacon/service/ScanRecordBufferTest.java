@@ -0,0 +1,108 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class ScanRecordBufferTest {
+    private static final BluetoothDevice DEVICE_1 = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:01");
+    private static final BluetoothDevice DEVICE_2 = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:02");
+
+    /**
+     * Holds consumers until the test runs them, so the buffer can be filled deterministically
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            while (!runnables.isEmpty()) {
+                runnables.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingProcessor implements ScanRecordBuffer.Processor {
+        final List<Integer> rssis = new ArrayList<>();
+
+        @Override
+        public void process(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            rssis.add(rssi);
+        }
+    }
+
+    private ScanRecordBuffer fill(ScanBufferOverflowPolicy policy, RecordingProcessor processor, ManualExecutor executor) {
+        ScanRecordBuffer buffer = new ScanRecordBuffer(3, policy, new ScanRecordBuffer.Processor[] { processor }, executor);
+        buffer.offer(DEVICE_1, -50, new byte[0]);
+        buffer.offer(DEVICE_2, -51, new byte[0]);
+        buffer.offer(DEVICE_1, -52, new byte[0]);
+        return buffer;
+    }
+
+    @Test
+    public void testProcessesScanResultsInOrder() {
+        RecordingProcessor processor = new RecordingProcessor();
+        ManualExecutor executor = new ManualExecutor();
+        ScanRecordBuffer buffer = fill(ScanBufferOverflowPolicy.DROP_OLDEST, processor, executor);
+        assertEquals("A single consumer should be scheduled", 1, executor.runnables.size());
+        executor.runAll();
+        assertEquals("All scan results should be processed in order", "[-50, -51, -52]", processor.rssis.toString());
+        assertEquals("Buffer should be empty", 0, buffer.size());
+
+        buffer.offer(DEVICE_2, -53, new byte[0]);
+        assertEquals("Idle consumer should be scheduled again", 1, executor.runnables.size());
+        executor.runAll();
+        assertEquals("Later scan result should be processed", "[-50, -51, -52, -53]", processor.rssis.toString());
+    }
+
+    @Test
+    public void testDropOldest() {
+        RecordingProcessor processor = new RecordingProcessor();
+        ManualExecutor executor = new ManualExecutor();
+        ScanRecordBuffer buffer = fill(ScanBufferOverflowPolicy.DROP_OLDEST, processor, executor);
+        assertTrue("New scan result should be accepted", buffer.offer(DEVICE_2, -53, new byte[0]));
+        executor.runAll();
+        assertEquals("Oldest scan result should be dropped", "[-51, -52, -53]", processor.rssis.toString());
+        assertEquals("One scan result should be counted as dropped", 1, buffer.takeDroppedCount());
+        assertEquals("Dropped count should be reset", 0, buffer.takeDroppedCount());
+    }
+
+    @Test
+    public void testDropNewest() {
+        RecordingProcessor processor = new RecordingProcessor();
+        ManualExecutor executor = new ManualExecutor();
+        ScanRecordBuffer buffer = fill(ScanBufferOverflowPolicy.DROP_NEWEST, processor, executor);
+        assertFalse("New scan result should be rejected", buffer.offer(DEVICE_2, -53, new byte[0]));
+        executor.runAll();
+        assertEquals("Newest scan result should be dropped", "[-50, -51, -52]", processor.rssis.toString());
+        assertEquals("One scan result should be counted as dropped", 1, buffer.takeDroppedCount());
+    }
+
+    @Test
+    public void testCoalescePerDevice() {
+        RecordingProcessor processor = new RecordingProcessor();
+        ManualExecutor executor = new ManualExecutor();
+        ScanRecordBuffer buffer = fill(ScanBufferOverflowPolicy.COALESCE_PER_DEVICE, processor, executor);
+        assertTrue("New scan result should be accepted", buffer.offer(DEVICE_2, -53, new byte[0]));
+        executor.runAll();
+        assertEquals("Waiting scan result from the same device should be replaced", "[-50, -53, -52]", processor.rssis.toString());
+    }
+}
@@ -9,7 +9,12 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Build;
 
+import org.altbeacon.beacon.AltBeaconParser;
+import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.BeaconParser;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
 import org.altbeacon.beacon.service.scanner.CycledLeScanCallback;
@@ -22,9 +27,14 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.util.ServiceController;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by dyoung on 7/1/15.
@@ -54,4 +64,44 @@ public class ScanStateTest {
         assertEquals("Scan start time should be restored",
                 scanState.getLastScanStartTimeMillis(), scanState2.getLastScanStartTimeMillis());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void rangingStateAndTrackerAreRestoredTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        scanState.setMonitoringStatus(new MonitoringStatus(context));
+        Region region = new Region("myRegion", Identifier.parse("1"), null, null);
+        RangeState rangeState = new RangeState(new Callback(context.getPackageName()), region);
+        Beacon beacon = new Beacon.Builder().setId1("1").setId2("2").setId3("3").setRssi(-60)
+                .setBluetoothAddress("01:02:03:04:05:06").setServiceUuid(0xfeaa).build();
+        rangeState.addBeacon(beacon);
+        scanState.getRangedRegionState().put(region, rangeState);
+        scanState.getExtraBeaconDataTracker().track(beacon);
+        scanState.setBeaconParsers(new HashSet<BeaconParser>(Arrays.asList(new AltBeaconParser())));
+        scanState.save();
+
+        ScanState scanState2 = ScanState.restore(context);
+        assertTrue("Ranged region should be restored", scanState2.getRangedRegionState().containsKey(region));
+        assertEquals("Tracked device should be restored", 1, scanState2.getExtraBeaconDataTracker().size());
+        assertEquals("Beacon parsers should be restored", scanState.getBeaconParsers(), scanState2.getBeaconParsers());
+    }
+
+    @Test
+    public void unchangedStateIsNotRewrittenTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        scanState.setMonitoringStatus(new MonitoringStatus(context));
+        scanState.setLastScanStartTimeMillis(1234);
+        scanState.save();
+        File file = new File(context.getFilesDir(), "android-beacon-library-scan-checkpoint");
+        assertTrue("Scan state file should exist", file.setLastModified(1000));
+
+        ScanState scanState2 = ScanState.restore(context);
+        scanState2.getRangedRegionState();
+        scanState2.save();
+        assertEquals("Unchanged scan state should not be rewritten", 1000, file.lastModified());
+        scanState2.setLastScanStartTimeMillis(5678);
+        scanState2.save();
+        assertNotEquals("Changed scan state should be rewritten", 1000, file.lastModified());
+    }
+}
@@ -0,0 +1,85 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class SharedScanStateTest {
+    private File mFile;
+
+    @Before
+    public void before() throws Exception {
+        mFile = File.createTempFile("shared_scan_state", null);
+        mFile.delete();
+        mFile.deleteOnExit();
+    }
+
+    @Test
+    public void readerSeesPublishedStateTest() {
+        // Separate instances map the file separately, as the scanner and app processes do
+        SharedScanState scanner = new SharedScanState(mFile);
+        SharedScanState app = new SharedScanState(mFile);
+        Region insideRegion = new Region("inside", Identifier.parse("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6"), null, null);
+        Region outsideRegion = new Region("outside", "01:02:03:04:05:06");
+        assertNull("Nothing should be read before the scanner publishes", app.readInsideState(insideRegion, 1000));
+
+        Map<Region, Boolean> insideByRegion = new HashMap<>();
+        insideByRegion.put(insideRegion, true);
+        insideByRegion.put(outsideRegion, false);
+        scanner.publishScanPeriods(1100, 0, 1000);
+        scanner.publishRegionStates(insideByRegion, 1000);
+
+        assertEquals("Inside state should be shared", Boolean.TRUE, app.readInsideState(insideRegion, 1000));
+        assertEquals("Outside state should be shared", Boolean.FALSE, app.readInsideState(outsideRegion, 1000));
+        assertEquals("Unmonitored regions should be outside", Boolean.FALSE, app.readInsideState(new Region("other", null, null, null), 1000));
+
+        insideByRegion.put(insideRegion, false);
+        scanner.publishRegionStates(insideByRegion, 2000);
+        assertEquals("Updated state should be shared", Boolean.FALSE, app.readInsideState(insideRegion, 2000));
+    }
+
+    @Test
+    public void regionsThatDoNotFitAreReportedUnknownTest() {
+        SharedScanState scanner = new SharedScanState(mFile);
+        SharedScanState app = new SharedScanState(mFile);
+        Map<Region, Boolean> insideByRegion = new HashMap<>();
+        for (int i = 0; i <= SharedScanState.MAX_REGIONS; i++) {
+            insideByRegion.put(new Region("region" + i, null, null, null), true);
+        }
+        scanner.publishRegionStates(insideByRegion, 1000);
+        assertEquals("Published regions should be shared", Boolean.TRUE, app.readInsideState(new Region("region0", null, null, null), 1000));
+        assertNull("Unpublished regions should be unknown", app.readInsideState(new Region("other", null, null, null), 1000));
+    }
+
+    @Test
+    public void stateOfScannerWithoutRecentHeartbeatIsIgnoredTest() {
+        SharedScanState scanner = new SharedScanState(mFile);
+        SharedScanState app = new SharedScanState(mFile);
+        Region region = new Region("inside", null, null, null);
+        Map<Region, Boolean> insideByRegion = new HashMap<>();
+        insideByRegion.put(region, true);
+        scanner.publishScanPeriods(1100, 10000, 1000);
+        scanner.publishRegionStates(insideByRegion, 1000);
+
+        long expired = 1000 + 2 * 11100 + SharedScanState.HEARTBEAT_GRACE_MILLIS + 1;
+        assertNull("State should be ignored without a recent heartbeat", app.readInsideState(region, expired));
+        scanner.publishHeartbeat(expired - 1);
+        assertEquals("State should be shared after a heartbeat", Boolean.TRUE, app.readInsideState(region, expired));
+        assertNull("State published before a reboot should be ignored", app.readInsideState(region, 500));
+        scanner.publishStopped();
+        assertNull("State of a stopped scanner should be ignored", app.readInsideState(region, expired));
+    }
+}
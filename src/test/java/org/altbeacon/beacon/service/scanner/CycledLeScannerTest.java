@@ -0,0 +1,129 @@
+package org.altbeacon.beacon.service.scanner;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class CycledLeScannerTest {
+
+    private static class TestScanner extends CycledLeScanner {
+        final List<Integer> flushRequestIds = new ArrayList<>();
+        private final boolean mBatching;
+
+        TestScanner(long scanPeriod, boolean batching, CycledLeScanCallback callback) {
+            super(ShadowApplication.getInstance().getApplicationContext(), scanPeriod, 0, false, callback, null);
+            mBatching = batching;
+        }
+
+        @Override
+        protected void stopScan() {
+        }
+
+        @Override
+        protected boolean deferScanIfNeeded() {
+            return false;
+        }
+
+        @Override
+        protected void startScan() {
+        }
+
+        @Override
+        protected void finishScan() {
+        }
+
+        @Override
+        protected boolean flushPendingResults(int requestId) {
+            if (!mBatching) {
+                return false;
+            }
+            flushRequestIds.add(requestId);
+            return true;
+        }
+
+        @Override
+        protected BluetoothAdapter getBluetoothAdapter() {
+            return null;
+        }
+    }
+
+    private static class RecordingCallback implements CycledLeScanCallback {
+        final List<String> events = new ArrayList<>();
+        final List<Runnable> batchCompletions = new ArrayList<>();
+
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        }
+
+        @Override
+        public void onLeScanBatch(BluetoothDevice[] devices, int[] rssis, byte[][] scanRecords,
+                                  Runnable onProcessed) {
+            events.add("batch");
+            batchCompletions.add(onProcessed);
+        }
+
+        @Override
+        public void onCycleEnd() {
+            events.add("cycle end");
+        }
+    }
+
+    @Test
+    public void finalScanCycleEndsBeforeStopReturnsTest() {
+        final RecordingCallback callback = new RecordingCallback();
+        final CycledLeScanner scanner = new TestScanner(1100, false, callback);
+        scanner.start();
+        scanner.runOnCycleThreadAndWait(new Runnable() {
+            @Override
+            public void run() {
+                scanner.stop();
+                scanner.destroy();
+            }
+        });
+        callback.events.add("state saved");
+        assertEquals("The final scan cycle should end before stopping returns",
+                Arrays.asList("cycle end", "state saved"), callback.events);
+    }
+
+    @Test
+    public void scanCycleEndsOnlyOnceFlushedBatchIsProcessedTest() {
+        RecordingCallback callback = new RecordingCallback();
+        // With no scan period, the first scan cycle asks for held results as soon as it starts
+        TestScanner scanner = new TestScanner(0, true, callback);
+        scanner.start();
+        assertEquals("Held results should be requested", 1, scanner.flushRequestIds.size());
+        int requestId = scanner.flushRequestIds.get(0);
+
+        scanner.onBatchScanResults(new BluetoothDevice[0], new int[0], new byte[0][]);
+        assertNull("A batch delivered before the request was made should not end the cycle",
+                callback.batchCompletions.get(0));
+
+        scanner.onPendingResultsRequested(requestId);
+        scanner.onBatchScanResults(new BluetoothDevice[0], new int[0], new byte[0][]);
+        assertNotNull("The batch answering the request should report when it is processed",
+                callback.batchCompletions.get(1));
+        assertEquals("The cycle should not end before the batch is processed",
+                Arrays.asList("batch", "batch"), callback.events);
+
+        callback.batchCompletions.get(1).run();
+        ShadowLooper.runUiThreadTasks();
+        assertEquals("The cycle should end once the batch is processed",
+                Arrays.asList("batch", "batch", "cycle end"), callback.events);
+    }
+}
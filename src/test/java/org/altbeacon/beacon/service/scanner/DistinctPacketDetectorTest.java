@@ -5,6 +5,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -54,4 +58,47 @@ public class DistinctPacketDetectorTest {
         assertTrue("second call with same packet after clear should be distinct", secondResult);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void packetSeenOnManyThreadsIsDistinctOnlyOnce() throws Exception {
+        final DistinctPacketDetector dpd = new DistinctPacketDetector();
+        final AtomicInteger distinctCount = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 500; i++) {
+                        if (dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {(byte) i, (byte) (i >> 8)})) {
+                            distinctCount.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("each packet should be distinct exactly once", 500, distinctCount.get());
+    }
+
+    @Test
+    public void trackedPacketIsNotDistinctAfterLimitIsReached() throws Exception {
+        DistinctPacketDetector dpd = new DistinctPacketDetector();
+        for (int i = 0; i < 2000; i++) {
+            dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {(byte) i, (byte) (i >> 8)});
+        }
+        assertFalse("tracked packet should not be distinct",
+                dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x00, 0x00}));
+        assertTrue("untracked packet should be distinct",
+                dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {(byte) 1999, (byte) (1999 >> 8)}));
+    }
+
+}
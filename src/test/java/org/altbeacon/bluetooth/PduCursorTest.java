@@ -0,0 +1,60 @@
+package org.altbeacon.bluetooth;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.robolectric.annotation.Config;
+
+@Config(sdk = 18)
+
+@RunWith(RobolectricTestRunner.class)
+
+public class PduCursorTest {
+    public static byte[] hexStringToByteArray(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
+
+    @Test
+    public void testWalksSamePdusAsBleAdvertisement() {
+        byte[] bytes = hexStringToByteArray("0201060303aafe1516aafe00e72f234454f4911ba9ffa60000000000010c09526164426561636f6e20470000000000000000000000000000000000000000");
+        BleAdvertisement bleAdvert = new BleAdvertisement(bytes);
+        PduCursor cursor = new PduCursor(bytes);
+        for (Pdu pdu : bleAdvert.getPdus()) {
+            assertTrue("Cursor should find every PDU", cursor.next());
+            assertEquals("PDU type should match", pdu.getType(), cursor.getType());
+            assertEquals("PDU start index should match", pdu.getStartIndex(), cursor.getStartIndex());
+            assertEquals("PDU end index should match", pdu.getEndIndex(), cursor.getEndIndex());
+            assertEquals("PDU declared length should match", pdu.getDeclaredLength(), cursor.getDeclaredLength());
+        }
+        assertFalse("Cursor should have no PDUs left", cursor.next());
+    }
+
+    @Test
+    public void testMovesToBeaconPdu() {
+        PduCursor cursor = new PduCursor(hexStringToByteArray("02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c509000000"));
+        assertTrue("AltBeacon advert should have a beacon PDU", cursor.moveToBeaconPdu());
+        assertEquals("Manufacturer data should start after flags and PDU header", 5, cursor.getStartIndex());
+        assertEquals("Beacon PDU should be manufacturer data type 0xff", (byte) 0xff, cursor.getType());
+
+        cursor.reset(hexStringToByteArray("0201060303aafe1516aafe2001021203130414243405152535"));
+        assertTrue("Eddystone advert should have a beacon PDU", cursor.moveToBeaconPdu());
+        assertEquals("Service data should start after flags, service list and PDU header", 9, cursor.getStartIndex());
+        cursor.next();
+        assertTrue("Beacon PDU should be found again after moving the cursor", cursor.moveToBeaconPdu());
+        assertEquals("Service data should still start at the same index", 9, cursor.getStartIndex());
+
+        cursor.reset(hexStringToByteArray("020106"));
+        assertFalse("Flags only advert should have no beacon PDU", cursor.moveToBeaconPdu());
+    }
+}